@@ -0,0 +1,277 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+// Reusable AES state for one voice stream, in one of two packet formats:
+//
+// CBC (what every client supports): the ciphers are looked up and keyed once per session instead of
+// once per packet; CBC with the session's fixed IV returns to its initial state after every doFinal,
+// so no per-packet init is needed either. Packets use the same framing as
+// SecurityUtils.encryptAudioAES/decryptAudioAES, so both ends can mix the two APIs.
+//
+// GCM (negotiated per call): each packet is [sequence number: 4 bytes][ciphertext][12 byte tag], with
+// the nonce made of the first 8 bytes of the session IV and the sequence number. There is no length
+// header or padding, every packet decrypts on its own (in any order, lost packets don't matter), and
+// a corrupted or forged packet fails the tag check instead of being played as noise.
+//
+// Either format can also go behind a MediaHeader. The header then carries the sequence number in
+// place of GCM's own 4 bytes, and GCM authenticates the header as additional data.
+//
+// Not thread-safe - give each sending or receiving thread its own context.
+public class AudioCryptoContext {
+    private static final String GCM_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_BITS = 96;
+    private static final int GCM_NONCE_LENGTH = 12;
+    private static final int SEQUENCE_LENGTH = 4;
+
+    // Voice packet formats, with the names used to negotiate them over signaling
+    public enum Mode {
+        CBC("AES-CBC"),
+        GCM("AES-GCM");
+
+        public final String wireName;
+
+        Mode(String wireName) {
+            this.wireName = wireName;
+        }
+
+        // The mode with this name, or null if unknown
+        public static Mode fromWireName(String name) {
+            for (Mode mode : values()) {
+                if (mode.wireName.equals(name)) {
+                    return mode;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Mode mode;
+    private final SecretKey key;
+    private final IvParameterSpec ivSpec;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private byte[] scratch = new byte[0]; // Length header + zero padded audio, reused across packets
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private final ByteBuffer padding = ByteBuffer.allocate(16); // Always zero, sliced to the pad length
+    private final byte[] nonce = new byte[GCM_NONCE_LENGTH]; // GCM: IV prefix + sequence number
+    private int nextSequence; // GCM: sequence number of the next packet sent (also in media headers)
+
+    AudioCryptoContext(SecretKey key, byte[] iv, String algorithm) throws GeneralSecurityException {
+        this.mode = Mode.CBC;
+        this.key = key;
+        this.ivSpec = new IvParameterSpec(iv);
+        this.encryptCipher = Cipher.getInstance(algorithm);
+        this.encryptCipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+        this.decryptCipher = Cipher.getInstance(algorithm);
+        this.decryptCipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+    }
+
+    // GCM context; the ciphers are looked up once and re-keyed with each packet's nonce
+    AudioCryptoContext(SecretKey key, byte[] iv) throws GeneralSecurityException {
+        this.mode = Mode.GCM;
+        this.key = key;
+        this.ivSpec = null;
+        this.encryptCipher = Cipher.getInstance(GCM_ALGORITHM);
+        this.decryptCipher = Cipher.getInstance(GCM_ALGORITHM);
+        System.arraycopy(iv, 0, nonce, 0, GCM_NONCE_LENGTH - SEQUENCE_LENGTH);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // Largest encrypted packet produced for an audio payload of the given size, in either mode
+    public static int maxEncryptedLength(int audioLength) {
+        return 4 + SecurityUtils.paddedAudioLength(audioLength) + 16; // Header, data, PKCS5 block
+    }
+
+    // Encrypt one audio packet (4 byte length header + audio, padded to the AES block size)
+    public byte[] encrypt(byte[] audioData, int offset, int length) throws GeneralSecurityException {
+        if (mode == Mode.GCM) {
+            byte[] packet = new byte[SEQUENCE_LENGTH + length + GCM_TAG_BITS / 8];
+            encrypt(ByteBuffer.wrap(audioData, offset, length), ByteBuffer.wrap(packet));
+            return packet;
+        }
+        int combinedLength = 4 + SecurityUtils.paddedAudioLength(length);
+        if (scratch.length < combinedLength) {
+            scratch = new byte[combinedLength];
+        }
+
+        SecurityUtils.writeAudioLength(scratch, length);
+        System.arraycopy(audioData, offset, scratch, 4, length);
+        // Zero the padding so nothing from a previous, longer packet leaks into this one
+        for (int i = 4 + length; i < combinedLength; i++) {
+            scratch[i] = 0;
+        }
+
+        try {
+            return encryptCipher.doFinal(scratch, 0, combinedLength);
+        } catch (GeneralSecurityException e) {
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+            throw e;
+        }
+    }
+
+    // Decrypt one audio packet and return only the original audio bytes
+    public byte[] decrypt(byte[] encryptedData, int offset, int length) throws GeneralSecurityException {
+        if (mode == Mode.GCM) {
+            ByteBuffer out = ByteBuffer.allocate(Math.max(0, length - SEQUENCE_LENGTH));
+            int audioLength = decrypt(ByteBuffer.wrap(encryptedData, offset, length), out);
+            byte[] result = new byte[audioLength];
+            out.get(result);
+            return result;
+        }
+        byte[] decryptedCombined;
+        try {
+            decryptedCombined = decryptCipher.doFinal(encryptedData, offset, length);
+        } catch (GeneralSecurityException e) {
+            // Make sure a bad packet can't leave the cipher mid-operation for the next one
+            decryptCipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+            // If decryption fails, this might be unencrypted data
+            throw new IllegalArgumentException("Could not decrypt audio data: " + e.getMessage());
+        }
+
+        int originalLength = SecurityUtils.readAudioLength(decryptedCombined, decryptedCombined.length);
+        byte[] result = new byte[originalLength];
+        System.arraycopy(decryptedCombined, 4, result, 0, originalLength);
+        return result;
+    }
+
+    // Encrypt the audio between audio's position and limit into out, starting at out's position.
+    // Nothing is allocated: the header and padding are fed to the cipher from reusable buffers.
+    // Returns the encrypted packet length; out's position is advanced past the packet.
+    public int encrypt(ByteBuffer audio, ByteBuffer out) throws GeneralSecurityException {
+        int length = audio.remaining();
+        int start = out.position();
+        if (mode == Mode.GCM) {
+            int sequence = nextSequence++;
+            out.putInt(sequence);
+            initGcm(encryptCipher, Cipher.ENCRYPT_MODE, sequence);
+            encryptCipher.doFinal(audio, out);
+            return out.position() - start;
+        }
+
+        header.clear();
+        header.putInt(length);
+        header.flip();
+        padding.clear();
+        padding.limit(SecurityUtils.paddedAudioLength(length) - length);
+
+        try {
+            encryptCipher.update(header, out);
+            encryptCipher.update(audio, out);
+            encryptCipher.doFinal(padding, out);
+        } catch (GeneralSecurityException e) {
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+            throw e;
+        }
+        return out.position() - start;
+    }
+
+    // Decrypt the packet between packet's position and limit into out, starting at out's position.
+    // Returns the audio payload length and leaves out's position/limit framing exactly that payload.
+    public int decrypt(ByteBuffer packet, ByteBuffer out) throws GeneralSecurityException {
+        int start = out.position();
+        if (mode == Mode.GCM) {
+            if (packet.remaining() < SEQUENCE_LENGTH + GCM_TAG_BITS / 8) {
+                throw new IllegalArgumentException("Audio packet too short for a GCM tag: " + packet.remaining() + " bytes");
+            }
+            initGcm(decryptCipher, Cipher.DECRYPT_MODE, packet.getInt());
+            try {
+                decryptCipher.doFinal(packet, out);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Could not decrypt audio data: " + e.getMessage());
+            }
+            out.limit(out.position());
+            out.position(start);
+            return out.remaining();
+        }
+        try {
+            decryptCipher.doFinal(packet, out);
+        } catch (GeneralSecurityException e) {
+            decryptCipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+            // If decryption fails, this might be unencrypted data
+            throw new IllegalArgumentException("Could not decrypt audio data: " + e.getMessage());
+        }
+
+        int decryptedLength = out.position() - start;
+        if (decryptedLength < 4) {
+            throw new IllegalArgumentException("Decrypted data too short to contain length header");
+        }
+        int originalLength =
+            ((out.get(start) & 0xFF) << 24) |
+            ((out.get(start + 1) & 0xFF) << 16) |
+            ((out.get(start + 2) & 0xFF) << 8) |
+            (out.get(start + 3) & 0xFF);
+        if (originalLength <= 0 || originalLength > decryptedLength - 4) {
+            throw new IllegalArgumentException("Invalid decoded audio length: " + originalLength);
+        }
+
+        out.limit(start + 4 + originalLength);
+        out.position(start + 4);
+        return originalLength;
+    }
+
+    // Encrypt one audio packet behind a media header; header's sequence number is assigned here
+    public byte[] encrypt(MediaHeader header, byte[] audioData, int offset, int length) throws GeneralSecurityException {
+        ByteBuffer packet = ByteBuffer.allocate(MediaHeader.LENGTH + maxEncryptedLength(length));
+        encrypt(header, ByteBuffer.wrap(audioData, offset, length), packet);
+        return java.util.Arrays.copyOf(packet.array(), packet.position());
+    }
+
+    // Write header, with the next sequence number, and then the encrypted audio (position..limit)
+    // into out. Returns the packet length; out's position is advanced past the packet.
+    public int encrypt(MediaHeader header, ByteBuffer audio, ByteBuffer out) throws GeneralSecurityException {
+        int start = out.position();
+        header.sequence = nextSequence++;
+        header.write(out);
+        if (mode == Mode.GCM) {
+            initGcm(encryptCipher, Cipher.ENCRYPT_MODE, header.sequence);
+            ByteBuffer aad = out.duplicate();
+            aad.position(start).limit(start + MediaHeader.LENGTH);
+            encryptCipher.updateAAD(aad);
+            encryptCipher.doFinal(audio, out);
+            return out.position() - start;
+        }
+        return MediaHeader.LENGTH + encrypt(audio, out);
+    }
+
+    // Decrypt a packet that starts with header (already read with MediaHeader.peek). Returns the
+    // audio payload length and leaves out framing it, like decrypt(ByteBuffer, ByteBuffer).
+    public int decrypt(MediaHeader header, ByteBuffer packet, ByteBuffer out) throws GeneralSecurityException {
+        int start = packet.position();
+        packet.position(start + MediaHeader.LENGTH);
+        if (mode != Mode.GCM) {
+            return decrypt(packet, out);
+        }
+        if (packet.remaining() < GCM_TAG_BITS / 8) {
+            throw new IllegalArgumentException("Audio packet too short for a GCM tag: " + packet.remaining() + " bytes");
+        }
+        int outStart = out.position();
+        initGcm(decryptCipher, Cipher.DECRYPT_MODE, header.sequence);
+        ByteBuffer aad = packet.duplicate();
+        aad.position(start).limit(start + MediaHeader.LENGTH);
+        try {
+            decryptCipher.updateAAD(aad);
+            decryptCipher.doFinal(packet, out);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Could not decrypt audio data: " + e.getMessage());
+        }
+        out.limit(out.position());
+        out.position(outStart);
+        return out.remaining();
+    }
+
+    private void initGcm(Cipher cipher, int opmode, int sequence) throws GeneralSecurityException {
+        int i = GCM_NONCE_LENGTH - SEQUENCE_LENGTH;
+        nonce[i] = (byte) (sequence >>> 24);
+        nonce[i + 1] = (byte) (sequence >>> 16);
+        nonce[i + 2] = (byte) (sequence >>> 8);
+        nonce[i + 3] = (byte) sequence;
+        cipher.init(opmode, key, new GCMParameterSpec(GCM_TAG_BITS, nonce));
+    }
+}
@@ -0,0 +1,297 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// In-memory prepaid balance store keyed by MSISDN. Balances are fixed-point cents (1/100 L.E.)
+// held in primitive arrays, so no update boxes or allocates anything. Subscribers are spread over
+// lock-striped open-addressing tables of [key, balance] pairs; debits, credits and reservations are
+// lock-free CAS loops on the balance slot, and a stripe's lock is only taken to add a subscriber
+// (and grow its table). Balances never go negative.
+public class BalanceLedger implements BalanceStore {
+    public static final long NOT_FOUND = BalanceStore.NOT_FOUND;
+
+    private static final long EMPTY = 0;               // Free key slot (real keys are always > 0)
+    private static final long MOVED = Long.MIN_VALUE;  // Balance slot already copied to a grown table
+    private static final int MAX_DIGITS = 17;          // Largest MSISDN whose key still fits in a long
+    private static final int MIN_TABLE_CAPACITY = 8;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    public BalanceLedger(int expectedSubscribers) {
+        this(expectedSubscribers, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public BalanceLedger(int expectedSubscribers, int stripeCount) {
+        int count = nextPowerOfTwo(Math.max(1, stripeCount));
+        int perStripe = Math.max(1, expectedSubscribers / count);
+        int capacity = nextPowerOfTwo(Math.max(MIN_TABLE_CAPACITY, perStripe * 4 / 3 + 1));
+
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+        this.stripeMask = count - 1;
+    }
+
+    public static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    public static double toAmount(long cents) {
+        return cents / 100.0;
+    }
+
+    @Override
+    public void put(String msisdn, long balance) {
+        put(msisdn, balance, true);
+    }
+
+    @Override
+    public boolean putIfAbsent(String msisdn, long balance) {
+        return put(msisdn, balance, false);
+    }
+
+    // Returns true if the subscriber was added
+    private boolean put(String msisdn, long balance, boolean overwrite) {
+        long key = keyOf(msisdn);
+        if (key < 0) {
+            throw new IllegalArgumentException("Invalid MSISDN: " + msisdn);
+        }
+        if (balance < 0) {
+            throw new IllegalArgumentException("Negative balance for " + msisdn + ": " + balance);
+        }
+        long hash = mix(key);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            AtomicLongArray slots = stripe.slots;
+            int index = indexOf(slots, key, hash);
+            if (index >= 0) {
+                if (overwrite) {
+                    slots.set(index + 1, balance);
+                }
+                return false;
+            }
+            if ((stripe.size + 1) * 4L > (slots.length() >> 1) * 3L) {
+                slots = grow(stripe);
+            }
+            insert(slots, key, hash, balance);
+            stripe.size++;
+            return true;
+        }
+    }
+
+    @Override
+    public long get(String msisdn) {
+        long key = keyOf(msisdn);
+        if (key < 0) {
+            return NOT_FOUND;
+        }
+        long hash = mix(key);
+        Stripe stripe = stripeFor(hash);
+        while (true) {
+            AtomicLongArray slots = stripe.slots;
+            int index = indexOf(slots, key, hash);
+            if (index < 0) {
+                return NOT_FOUND;
+            }
+            long balance = slots.get(index + 1);
+            if (balance != MOVED) {
+                return balance;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public long credit(String msisdn, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Negative credit: " + amount);
+        }
+        long key = keyOf(msisdn);
+        if (key < 0) {
+            return NOT_FOUND;
+        }
+        long hash = mix(key);
+        Stripe stripe = stripeFor(hash);
+        while (true) {
+            AtomicLongArray slots = stripe.slots;
+            int index = indexOf(slots, key, hash);
+            if (index < 0) {
+                return NOT_FOUND;
+            }
+            long balance = slots.get(index + 1);
+            if (balance == MOVED) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long updated = balance + amount;
+            if (slots.compareAndSet(index + 1, balance, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    @Override
+    public boolean debit(String msisdn, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Negative debit: " + amount);
+        }
+        long key = keyOf(msisdn);
+        if (key < 0) {
+            return false;
+        }
+        long hash = mix(key);
+        Stripe stripe = stripeFor(hash);
+        while (true) {
+            AtomicLongArray slots = stripe.slots;
+            int index = indexOf(slots, key, hash);
+            if (index < 0) {
+                return false;
+            }
+            long balance = slots.get(index + 1);
+            if (balance == MOVED) {
+                Thread.onSpinWait();
+                continue;
+            }
+            if (balance < amount) {
+                return false;
+            }
+            if (slots.compareAndSet(index + 1, balance, balance - amount)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public long debitUpTo(String msisdn, long amount) {
+        if (amount <= 0) {
+            return 0;
+        }
+        long key = keyOf(msisdn);
+        if (key < 0) {
+            return 0;
+        }
+        long hash = mix(key);
+        Stripe stripe = stripeFor(hash);
+        while (true) {
+            AtomicLongArray slots = stripe.slots;
+            int index = indexOf(slots, key, hash);
+            if (index < 0) {
+                return 0;
+            }
+            long balance = slots.get(index + 1);
+            if (balance == MOVED) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long taken = Math.min(balance, amount);
+            if (slots.compareAndSet(index + 1, balance, balance - taken)) {
+                return taken;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    // MSISDN digits as a number, with the digit count in the low bits so leading zeros still count.
+    // Returns -1 for anything that isn't 1-17 decimal digits.
+    static long keyOf(String msisdn) {
+        int length = msisdn.length();
+        if (length == 0 || length > MAX_DIGITS) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = msisdn.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value * 32 + length;
+    }
+
+    private Stripe stripeFor(long hash) {
+        return stripes[(int) (hash >>> 32) & stripeMask];
+    }
+
+    // Index of the key slot (the balance is at index + 1), or -1. Tables are never full, so the
+    // probe always ends at the key or at an empty slot.
+    private static int indexOf(AtomicLongArray slots, long key, long hash) {
+        int mask = (slots.length() >> 1) - 1;
+        int i = (int) hash & mask;
+        while (true) {
+            long k = slots.get(i << 1);
+            if (k == key) {
+                return i << 1;
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // Caller holds the stripe lock. The balance is published before the key, so a reader that finds
+    // the key always sees its balance.
+    private static void insert(AtomicLongArray slots, long key, long hash, long balance) {
+        int mask = (slots.length() >> 1) - 1;
+        int i = (int) hash & mask;
+        while (slots.get(i << 1) != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        slots.set((i << 1) + 1, balance);
+        slots.set(i << 1, key);
+    }
+
+    // Caller holds the stripe lock. Each balance is frozen with MOVED as it is copied, so an update
+    // racing with the copy retries against the grown table instead of being lost.
+    private static AtomicLongArray grow(Stripe stripe) {
+        AtomicLongArray old = stripe.slots;
+        AtomicLongArray grown = new AtomicLongArray(old.length() * 2);
+        for (int i = 0; i < old.length(); i += 2) {
+            long key = old.get(i);
+            if (key == EMPTY) {
+                continue;
+            }
+            long balance;
+            do {
+                balance = old.get(i + 1);
+            } while (!old.compareAndSet(i + 1, balance, MOVED));
+            insert(grown, key, mix(key), balance);
+        }
+        stripe.slots = grown;
+        return grown;
+    }
+
+    // 64-bit finalizer from MurmurHash3: spreads sequential MSISDNs over stripes and slots
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb93fe53e894fL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    private static final class Stripe {
+        volatile AtomicLongArray slots; // [key, balance] pairs, linear probing
+        int size;                       // Guarded by the stripe's lock
+
+        Stripe(int capacity) {
+            this.slots = new AtomicLongArray(capacity * 2);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+// Prepaid balances keyed by MSISDN, in fixed-point cents (see BalanceLedger.toCents/toAmount).
+// Implementations are safe for concurrent use, and balances never go negative.
+public interface BalanceStore extends Closeable {
+    long NOT_FOUND = Long.MIN_VALUE;
+
+    // Add a subscriber, or overwrite the balance of an existing one
+    void put(String msisdn, long balance);
+
+    // Add a subscriber unless it already exists; returns true if it was added
+    boolean putIfAbsent(String msisdn, long balance);
+
+    // Current balance in cents, or NOT_FOUND
+    long get(String msisdn);
+
+    // Add to a balance; returns the new balance, or NOT_FOUND
+    long credit(String msisdn, long amount);
+
+    // Take the full amount, or nothing if the balance can't cover it
+    boolean debit(String msisdn, long amount);
+
+    // Take as much of the amount as the balance allows; returns what was actually taken
+    long debitUpTo(String msisdn, long amount);
+
+    int size();
+
+    default boolean contains(String msisdn) {
+        return get(msisdn) != NOT_FOUND;
+    }
+
+    // Hold an amount up front (e.g. the first minute of a call). The caller keeps track of the hold
+    // and later commits or releases it.
+    default boolean reserve(String msisdn, long amount) {
+        return debit(msisdn, amount);
+    }
+
+    // Give a whole reservation back
+    default void release(String msisdn, long reserved) {
+        if (reserved > 0) {
+            credit(msisdn, reserved);
+        }
+    }
+
+    // Charge actual out of a reservation and give back the rest
+    default void commit(String msisdn, long reserved, long actual) {
+        if (actual > reserved) {
+            throw new IllegalArgumentException("Charge " + actual + " exceeds reservation " + reserved);
+        }
+        release(msisdn, reserved - actual);
+    }
+
+    // Make every update so far survive a power failure (in-memory stores have nothing to do)
+    default void sync() throws IOException {
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+}
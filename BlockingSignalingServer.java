@@ -0,0 +1,179 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Legacy signaling engine: one blocking thread per connected client. The threads come from the
+// given executor (e.g. bounded virtual threads), or are new platform threads by default.
+public class BlockingSignalingServer implements SignalingServer {
+    private static final int MAX_LINE_LENGTH = 64 * 1024; // Key exchange lines are well below this
+    private final int port;
+    private final Handler handler;
+    private final Executor clientExecutor;
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+
+    public BlockingSignalingServer(int port, Handler handler) {
+        this(port, handler, task -> new Thread(task).start());
+    }
+
+    public BlockingSignalingServer(int port, Handler handler, Executor clientExecutor) {
+        this.port = port;
+        this.handler = handler;
+        this.clientExecutor = clientExecutor;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        running = true;
+        new Thread(this::acceptConnections, "signaling-accept").start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            Log.error("Error closing signaling server: {}", e.getMessage());
+        }
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                try {
+                    // May wait here while the executor is at its limit, leaving new clients in the backlog
+                    clientExecutor.execute(() -> processClient(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    Log.warn("Dropping signaling connection: {}", e.getMessage());
+                    clientSocket.close();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("Error accepting signaling connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void processClient(Socket clientSocket) {
+        SocketConnection connection = new SocketConnection(clientSocket);
+        Exception cause = null;
+
+        try {
+            // Lines are read byte-wise from one buffered stream, so a switch to frames loses nothing
+            InputStream in = new BufferedInputStream(clientSocket.getInputStream());
+            connection.out = clientSocket.getOutputStream();
+            handler.onConnect(connection);
+
+            while (true) {
+                if (connection.binary) {
+                    SignalingCodec.Frame frame = SignalingCodec.readFrame(in);
+                    if (frame == null) {
+                        break;
+                    }
+                    handler.onFrame(connection, frame.type, frame.payload);
+                } else {
+                    String message = SignalingCodec.readLine(in, MAX_LINE_LENGTH);
+                    if (message == null) {
+                        break;
+                    }
+                    handler.onLine(connection, message);
+                }
+            }
+        } catch (Exception e) {
+            cause = e;
+        } finally {
+            connection.close();
+            handler.onDisconnect(connection, cause);
+        }
+    }
+
+    private static class SocketConnection implements Connection {
+        final Socket socket;
+        OutputStream out;
+        volatile boolean binary;
+        volatile Object attachment;
+
+        SocketConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void send(String line) {
+            write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void sendFrame(int type, byte[] payload) {
+            write(SignalingCodec.encode(type, payload));
+        }
+
+        // Whole messages under one lock, so termination messages from other threads don't interleave
+        private synchronized void write(byte[] message) {
+            try {
+                out.write(message);
+                out.flush();
+            } catch (IOException e) {
+                Log.error("Error sending to signaling client: {}", e.getMessage());
+            }
+        }
+
+        @Override
+        public void switchToBinary() {
+            binary = true;
+        }
+
+        @Override
+        public boolean isBinary() {
+            return binary;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (!socket.isClosed()) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                Log.error("Error closing client socket: {}", e.getMessage());
+            }
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return socket.getPort();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !socket.isClosed();
+        }
+
+        @Override
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Caps how many tasks of a thread-per-task executor run at once. execute() waits for a free permit,
+// so a burst of work slows down whoever submits it instead of starting unbounded threads (or, with
+// virtual threads, piling up sockets and file handles). A permit is held until the task returns.
+public class BoundedExecutor implements Executor {
+    private final ExecutorService threads;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+
+    public BoundedExecutor(ExecutorService threads, int maxConcurrent) {
+        this.threads = threads;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.permits = new Semaphore(this.maxConcurrent);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to run a task", e);
+        }
+        try {
+            threads.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public int getRunning() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    // Stop taking tasks and wait up to the timeout for the running ones; returns true if they all finished
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        threads.shutdown();
+        return threads.awaitTermination(timeout, unit);
+    }
+}
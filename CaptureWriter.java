@@ -0,0 +1,207 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Takes call recording off the voice path. Each recorded call gets a Capture: a bounded ring buffer
+// in direct (off-heap) memory that the voice receiver copies decrypted PCM into, which is all it
+// does per packet. One background thread drains every ring into its call's WavRecorder. The heap
+// holds a small object per call however many calls there are and however long they last, and a
+// slow disk never stalls packet processing: when a ring is full, the packet that doesn't fit is
+// dropped and counted instead.
+//
+// Rings of finished calls are reused, so the direct memory in use is one ring per concurrent call
+// at its peak, and nothing is left for the GC to free.
+public class CaptureWriter implements Closeable {
+    private final int ringSize;
+    private final long idleParkNanos;
+    private final Queue<Capture> captures = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> freeRings = new ConcurrentLinkedQueue<>();
+    private final Thread writerThread;
+    private final LongAdder bytesCaptured = new LongAdder();
+    private final LongAdder bytesDropped = new LongAdder();
+    private volatile boolean running = true;
+
+    // ringSize bytes of buffering per call; the writer checks the rings every pollMillis when idle
+    public CaptureWriter(int ringSize, long pollMillis) {
+        if (ringSize <= 0) {
+            throw new IllegalArgumentException("Ring size must be positive: " + ringSize);
+        }
+        this.ringSize = ringSize;
+        this.idleParkNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, pollMillis));
+
+        this.writerThread = new Thread(this::writeCaptures, "capture-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // Start buffering audio for recorder; the capture hands it back from finish()
+    public Capture open(WavRecorder recorder) {
+        ByteBuffer ring = freeRings.poll();
+        if (ring == null) {
+            ring = ByteBuffer.allocateDirect(ringSize);
+        }
+        Capture capture = new Capture(recorder, ring);
+        captures.add(capture);
+        return capture;
+    }
+
+    public long getBytesCaptured() {
+        return bytesCaptured.sum();
+    }
+
+    // Audio lost because a ring was full, i.e. the disk fell behind
+    public long getBytesDropped() {
+        return bytesDropped.sum();
+    }
+
+    // Audio waiting in the rings
+    public long getBufferedBytes() {
+        long buffered = 0;
+        for (Capture capture : captures) {
+            buffered += capture.getBufferedBytes();
+        }
+        return buffered;
+    }
+
+    // Off-heap memory held by rings, in use or pooled
+    public long getRingMemory() {
+        return (long) ringSize * (captures.size() + freeRings.size());
+    }
+
+    // Stop the writer thread. Captures still open are not written any more; finish them first.
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeCaptures() {
+        while (running) {
+            long written = 0;
+            for (Capture capture : captures) {
+                written += capture.drain();
+            }
+            if (written == 0) {
+                LockSupport.parkNanos(idleParkNanos);
+            }
+        }
+    }
+
+    // One call's ring. write() is called by the voice receiver, drain() by the writer thread and by
+    // finish(); the two sides only share the volatile head and tail positions.
+    public final class Capture {
+        private final WavRecorder recorder;
+        private final ByteBuffer ring;
+        private final ByteBuffer writeView;    // Guarded by this
+        private final ByteBuffer drainView;    // Guarded by drainLock
+        private final Object drainLock = new Object();
+        private volatile long head;            // Bytes drained so far
+        private volatile long tail;            // Bytes captured so far
+        private long dropped;                  // Guarded by this
+        private boolean closed;                // Guarded by this
+        private boolean released;              // Guarded by drainLock; the ring belongs to another call
+        private boolean failed;                // Guarded by drainLock; the recorder can't be written
+
+        private Capture(WavRecorder recorder, ByteBuffer ring) {
+            this.recorder = recorder;
+            this.ring = ring;
+            this.writeView = ring.duplicate();
+            this.drainView = ring.duplicate();
+        }
+
+        public WavRecorder getRecorder() {
+            return recorder;
+        }
+
+        // Copy audio into the ring. A packet that doesn't fit is dropped whole, so the recording
+        // stays aligned on sample boundaries. Ignored once the capture is finished.
+        public synchronized void write(byte[] data, int offset, int length) {
+            if (closed || length <= 0) {
+                return;
+            }
+            long end = tail;
+            if (length > ringSize - (end - head)) {
+                dropped += length;
+                bytesDropped.add(length);
+                return;
+            }
+            int position = (int) (end % ringSize);
+            int first = Math.min(length, ringSize - position);
+            writeView.clear();
+            writeView.position(position);
+            writeView.put(data, offset, first);
+            if (first < length) {
+                writeView.clear();
+                writeView.put(data, offset + first, length - first);
+            }
+            tail = end + length; // Publishes the bytes to the writer
+            bytesCaptured.add(length);
+        }
+
+        public long getBufferedBytes() {
+            return tail - head;
+        }
+
+        public synchronized long getBytesDropped() {
+            return dropped;
+        }
+
+        // Stop capturing, write out what is still buffered and give the ring back. Returns the
+        // recorder for the caller to close (or discard).
+        public WavRecorder finish() {
+            synchronized (this) {
+                if (closed) {
+                    return recorder;
+                }
+                closed = true; // No write() is running past this point
+            }
+            captures.remove(this);
+            synchronized (drainLock) {
+                drain();
+                released = true;
+            }
+            freeRings.add(ring);
+            return recorder;
+        }
+
+        // Write the buffered audio to the recorder; returns the number of bytes taken from the ring
+        private long drain() {
+            synchronized (drainLock) {
+                long start = head;
+                long end = tail;
+                if (released || start == end) {
+                    return 0;
+                }
+                if (!failed) {
+                    try {
+                        int position = (int) (start % ringSize);
+                        int first = (int) Math.min(end - start, ringSize - position);
+                        drainView.clear();
+                        drainView.position(position).limit(position + first);
+                        recorder.write(drainView);
+                        if (first < end - start) {
+                            drainView.clear();
+                            drainView.limit((int) (end - start - first));
+                            recorder.write(drainView);
+                        }
+                    } catch (Exception e) {
+                        // Stop writing this call rather than failing on every pass; the ring keeps draining
+                        failed = true;
+                        Log.error("Error recording audio to " + recorder.getPath() + ": " + e.getMessage());
+                    }
+                }
+                head = end; // Frees the space for write()
+                return end - start;
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+// Asynchronous group-commit writer for the CDR file. Callers only enqueue the formatted record;
+// a single background thread keeps the file open and writes records in batches, flushing every
+// N records or every T milliseconds (whichever comes first) and optionally fsyncing each batch.
+// The queue is bounded: when the disk falls behind, callers block instead of records being lost.
+//
+// A batch that fails to write is kept and retried, with the wait doubling from RETRY_MIN_MILLIS up
+// to RETRY_MAX_MILLIS; new records queue up behind it meanwhile. A partly written batch is cut off
+// the file first, so a retry never leaves a torn record. After MAX_WRITE_ATTEMPTS (or once closing) the
+// batch is given up on and appended to the spill file next to the CDR file, <name>.unwritten, for
+// billing to replay; only if that fails too are the records lost, each one logged in full.
+public class CdrWriter implements Closeable {
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_WRITE_ATTEMPTS = 8;
+    private static final long RETRY_MIN_MILLIS = 100;
+    private static final long RETRY_MAX_MILLIS = 5000;
+    // Queued by close(); compared by identity so no real record can be mistaken for it
+    private static final String CLOSE_MARKER = new String("CLOSE");
+
+    private final Path path;
+    private final Path spillPath;
+    private final FileChannel channel;
+    private final BlockingQueue<String> queue;
+    private final int flushEveryRecords;
+    private final long flushIntervalNanos;
+    private final boolean fsync;
+    private final Thread writerThread;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    // Counters for monitoring
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private final AtomicLong recordsSpilled = new AtomicLong();
+    private final AtomicLong recordsLost = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+    private volatile LongConsumer flushListener; // Told each batch's flush time, e.g. a latency histogram
+
+    public CdrWriter(Path path, int queueCapacity, int flushEveryRecords, long flushIntervalMillis,
+                     boolean fsync) throws IOException {
+        this.path = path;
+        this.spillPath = path.resolveSibling(path.getFileName() + ".unwritten");
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.flushEveryRecords = Math.max(1, flushEveryRecords);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMillis));
+        this.fsync = fsync;
+
+        this.writerThread = new Thread(this::writeRecords, "cdr-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Queue one CDR line (including its line terminator); blocks while the queue is full
+    public void append(String cdrLine) throws IOException {
+        if (!running) {
+            throw new IOException("CDR writer is closed");
+        }
+        try {
+            queue.put(cdrLine);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing CDR", e);
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten.get();
+    }
+
+    // Failed attempts to write a batch, including the ones a retry then wrote
+    public long getWriteFailures() {
+        return writeFailures.get();
+    }
+
+    // Records given up on and appended to the spill file instead
+    public long getRecordsSpilled() {
+        return recordsSpilled.get();
+    }
+
+    // Records that could be written to neither file
+    public long getRecordsLost() {
+        return recordsLost.get();
+    }
+
+    public Path getSpillPath() {
+        return spillPath;
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getLastFlushNanos() {
+        return lastFlushNanos;
+    }
+
+    public long getMaxFlushNanos() {
+        return maxFlushNanos;
+    }
+
+    public long getTotalFlushNanos() {
+        return totalFlushNanos.get();
+    }
+
+    // Called on the writer thread with the duration of every flush, in nanoseconds
+    public void setFlushListener(LongConsumer listener) {
+        this.flushListener = listener;
+    }
+
+    private void writeRecords() {
+        List<String> drained = new ArrayList<>(flushEveryRecords);
+        List<String> pending = new ArrayList<>(flushEveryRecords); // Records of the next batch, kept until written
+        long flushDeadline = System.nanoTime() + flushIntervalNanos;
+        boolean closing = false;
+        int failures = 0; // Of the pending batch, in a row
+
+        while (!closing || !pending.isEmpty()) {
+            try {
+                // While a failed batch waits for its retry, new records wait in the queue
+                if (failures == 0) {
+                    long waitNanos = !pending.isEmpty() ? flushDeadline - System.nanoTime() : flushIntervalNanos;
+                    String first = waitNanos > 0 ? queue.poll(waitNanos, TimeUnit.NANOSECONDS) : queue.poll();
+
+                    if (first != null) {
+                        if (pending.isEmpty()) {
+                            flushDeadline = System.nanoTime() + flushIntervalNanos;
+                        }
+                        drained.add(first);
+                        queue.drainTo(drained, flushEveryRecords - pending.size() - 1);
+                        for (String record : drained) {
+                            if (record == CLOSE_MARKER) {
+                                closing = true;
+                            } else {
+                                pending.add(record);
+                            }
+                        }
+                        drained.clear();
+
+                        if (closing) {
+                            // Anything that raced with close() still gets written
+                            queue.drainTo(pending);
+                        }
+                    }
+                }
+
+                boolean due = closing || failures > 0 || pending.size() >= flushEveryRecords
+                        || System.nanoTime() - flushDeadline >= 0;
+                if (!pending.isEmpty() && due) {
+                    flush(pending);
+                    pending.clear();
+                    failures = 0;
+                }
+            } catch (InterruptedException e) {
+                // Not expected - the writer is stopped with CLOSE_MARKER, never by interruption
+            } catch (IOException e) {
+                writeFailures.incrementAndGet();
+                failures++;
+                if (closing || !running || failures >= MAX_WRITE_ATTEMPTS) {
+                    Log.error("Giving up writing {} CDRs to {} after {} attempts: {}", 
+                              pending.size(), path, failures, e.getMessage());
+                    spill(pending);
+                    pending.clear();
+                    failures = 0;
+                } else {
+                    long backoff = Math.min(RETRY_MAX_MILLIS, RETRY_MIN_MILLIS << (failures - 1));
+                    Log.warn("Error writing {} CDRs to {}, retrying in {} ms: {}", 
+                             pending.size(), path, backoff, e.getMessage());
+                    pause(backoff);
+                }
+            }
+        }
+    }
+
+    // Write the records as one batch. If that fails, whatever part of it reached the file is cut
+    // off again, so the batch can be retried as a whole.
+    private void flush(List<String> records) throws IOException {
+        long start = System.nanoTime();
+        long size = channel.size();
+        try {
+            for (String record : records) {
+                buffer(record);
+            }
+            writeBatch();
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            batch.clear();
+            try {
+                channel.truncate(size);
+            } catch (IOException truncateError) {
+                // Nothing more to do; the retry may follow a torn record
+            }
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        recordsWritten.addAndGet(records.size());
+        flushCount.incrementAndGet();
+        totalFlushNanos.addAndGet(elapsed);
+        lastFlushNanos = elapsed;
+        if (elapsed > maxFlushNanos) {
+            maxFlushNanos = elapsed;
+        }
+        LongConsumer listener = flushListener;
+        if (listener != null) {
+            listener.accept(elapsed);
+        }
+    }
+
+    private void buffer(String record) throws IOException {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > batch.remaining()) {
+            writeBatch();
+        }
+        if (bytes.length > batch.capacity()) {
+            // Oversized record - write it on its own
+            ByteBuffer large = ByteBuffer.wrap(bytes);
+            while (large.hasRemaining()) {
+                channel.write(large);
+            }
+            return;
+        }
+        batch.put(bytes);
+    }
+
+    // Append records given up on to the spill file; if even that fails, log them so they can be recovered
+    private void spill(List<String> records) {
+        StringBuilder text = new StringBuilder();
+        for (String record : records) {
+            text.append(record);
+        }
+        try {
+            Files.write(spillPath, text.toString().getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            recordsSpilled.addAndGet(records.size());
+            Log.error("{} CDRs written to {} instead", records.size(), spillPath);
+        } catch (IOException e) {
+            recordsLost.addAndGet(records.size());
+            Log.error("Error writing CDRs to {}: {} - lost records follow", spillPath, e.getMessage());
+            for (String record : records) {
+                Log.error("Lost CDR: {}", record.trim());
+            }
+        }
+    }
+
+    // Wait before a retry, cut short by close()
+    private void pause(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        try {
+            while (running && System.nanoTime() - deadline < 0) {
+                Thread.sleep(Math.min(RETRY_MIN_MILLIS, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1));
+            }
+        } catch (InterruptedException e) {
+            // Not expected; retry early
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        batch.clear();
+    }
+
+    // Write everything still queued, sync it to disk and close the file
+    @Override
+    public void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            // The writer flushes everything queued ahead of the marker before it exits. Interrupting
+            // it instead would close the FileChannel underneath an in-flight write.
+            queue.put(CLOSE_MARKER);
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+}
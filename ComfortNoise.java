@@ -0,0 +1,85 @@
+// Comfort noise for discontinuous transmission (DTX). While the Mobile's voice activity detector
+// hears only background noise, it holds its voice packets back and sends a silence descriptor (SID)
+// now and then instead; the MSC fills the gap with noise at the level the SID gives, so the line
+// doesn't go dead between words. It is offered as "CN" alongside the voice codecs.
+//
+// A SID is a 3 byte voice packet payload, encrypted like any other: the noise level in -dBov (0 to
+// 127, as in RFC 3389 comfort noise), then the number of samples at the call rate it stands for
+// (16-bit LE), i.e. the silence held back since the previous packet. With a MediaHeader the payload
+// type marks a SID; without one, the length does, since the Mobile never sends voice that short.
+//
+// The noise itself is white, from a xorshift generator: cheap enough for the mixer thread and the
+// voice receivers, and nothing is allocated. One generator per thread; it isn't thread-safe.
+public final class ComfortNoise {
+    public static final String NAME = "CN";
+    public static final int SID_LENGTH = 3;
+    public static final int MAX_LEVEL = 127;
+    public static final int MAX_SID_SAMPLES = 0xFFFF;
+
+    private static final double FULL_SCALE_SQUARED = 32768.0 * 32768.0; // 0 dBov
+    private static final int[] AMPLITUDES = new int[MAX_LEVEL + 1];     // Peak of uniform noise, by level
+
+    static {
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            double rms = 32768.0 * Math.pow(10, -level / 20.0);
+            AMPLITUDES[level] = (int) Math.min(Short.MAX_VALUE, Math.round(rms * Math.sqrt(3)));
+        }
+    }
+
+    private int state = 0x2545F491;
+
+    // Energy in dBov of samples with the given mean square; digital silence is -MAX_LEVEL
+    public static double toDbov(double meanSquare) {
+        return meanSquare <= 0 ? -MAX_LEVEL : Math.max(-MAX_LEVEL, 10 * Math.log10(meanSquare / FULL_SCALE_SQUARED));
+    }
+
+    // SID level (-dBov, 0 to 127) for an energy in dBov
+    public static int toLevel(double dbov) {
+        return (int) Math.max(0, Math.min(MAX_LEVEL, Math.round(-dbov)));
+    }
+
+    // Write a SID; returns SID_LENGTH. Samples beyond MAX_SID_SAMPLES are not counted.
+    public static int encodeSid(int level, int samples, byte[] out, int offset) {
+        samples = Math.min(samples, MAX_SID_SAMPLES);
+        out[offset] = (byte) Math.max(0, Math.min(MAX_LEVEL, level));
+        out[offset + 1] = (byte) samples;
+        out[offset + 2] = (byte) (samples >> 8);
+        return SID_LENGTH;
+    }
+
+    public static int sidLevel(byte[] sid, int offset) {
+        return sid[offset] & MAX_LEVEL;
+    }
+
+    public static int sidSamples(byte[] sid, int offset) {
+        return (sid[offset + 1] & 0xFF) | ((sid[offset + 2] & 0xFF) << 8);
+    }
+
+    // Write samples of noise at level as 16-bit little-endian PCM
+    public void fill(byte[] pcm, int offset, int samples, int level) {
+        int amplitude = AMPLITUDES[Math.max(0, Math.min(MAX_LEVEL, level))];
+        for (int i = 0; i < samples; i++) {
+            int sample = next(amplitude);
+            pcm[offset++] = (byte) sample;
+            pcm[offset++] = (byte) (sample >> 8);
+        }
+    }
+
+    // Add samples of noise at level to a mix, starting at offset
+    public void mix(int[] mix, int offset, int samples, int level) {
+        int amplitude = AMPLITUDES[Math.max(0, Math.min(MAX_LEVEL, level))];
+        for (int i = offset; i < offset + samples; i++) {
+            mix[i] += next(amplitude);
+        }
+    }
+
+    // Uniform in [-amplitude, amplitude)
+    private int next(int amplitude) {
+        int x = state;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        state = x;
+        return (int) (((long) x * amplitude) >> 31);
+    }
+}
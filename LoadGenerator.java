@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load generator for sizing the MSC: simulates many subscribers in one JVM. Each call runs
+// Mobile's key exchange and START_CALL, streams the Mobile's test tones at real-time pace with
+// Mobile.sendAudioPacket, and sends END_CALL after its hold time. Calls arrive at random (Poisson)
+// at the given rate over a range of MSISDNs; each call gets its own (virtual, where available) thread.
+//
+// Against a local MSC every subscriber uses its own 127.x.y.z source address: the MSC matches voice
+// packets to calls by the caller's IP, so many calls from one address would be mixed up.
+public class LoadGenerator {
+    private static final String MSC_HOST = System.getProperty("load.host", "localhost");
+    private static final int SIGNALING_PORT = 5011;
+    private static final int VOICE_PORT = 5011;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BUFFER_SIZE = 1024; // Audio bytes per packet, as sent by the Mobile
+    private static final long PACKET_NANOS = TimeUnit.SECONDS.toNanos(BUFFER_SIZE / 2) / SAMPLE_RATE;
+    private static final int REPORT_SECONDS = Integer.getInteger("load.reportSeconds", 5);
+    // Share of each call with tones; the rest is quiet background noise, which the Mobile holds back
+    // when comfort noise is agreed. Conversations are about half silence.
+    private static final double VOICE_ACTIVITY = Double.parseDouble(System.getProperty("load.voiceActivity", "1"));
+    private static final int BACKGROUND_LEVEL = 60; // -dBov
+    private static final int SETUP_TIMEOUT_MILLIS = 10000;
+
+    private final String firstMsisdn;
+    private final int subscribers;
+    private final double callsPerSecond;
+    private final long holdNanos;
+    private final long runNanos;
+    private final InetAddress mscAddress;
+    private final boolean spreadLoopback;
+    private final AtomicIntegerArray busy; // 1 while a subscriber is in a call
+    private final byte[][] tonePackets;
+    private ExecutorService calls;
+
+    // Counters
+    private final LongAdder callsAttempted = new LongAdder();
+    private final LongAdder callsSetUp = new LongAdder();
+    private final LongAdder callsResumed = new LongAdder(); // Set up with a session ticket, no RSA
+    private final LongAdder callsRejected = new LongAdder();
+    private final LongAdder callsTerminated = new LongAdder();
+    private final LongAdder callsCompleted = new LongAdder();
+    private final LongAdder callsFailed = new LongAdder();
+    private final LongAdder callsSkipped = new LongAdder(); // Every subscriber was already busy
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder setupNanos = new LongAdder();
+    private final AtomicInteger activeCalls = new AtomicInteger();
+
+    public LoadGenerator(String firstMsisdn, int subscribers, double callsPerSecond,
+                         double holdSeconds, double runSeconds) throws IOException {
+        this.firstMsisdn = firstMsisdn;
+        this.subscribers = subscribers;
+        this.callsPerSecond = callsPerSecond;
+        this.holdNanos = (long) (holdSeconds * 1e9);
+        this.runNanos = (long) (runSeconds * 1e9);
+        this.mscAddress = InetAddress.getByName(MSC_HOST);
+        this.spreadLoopback = mscAddress.isLoopbackAddress() && mscAddress instanceof Inet4Address
+                && Boolean.parseBoolean(System.getProperty("load.spreadLoopback", "true"));
+        this.busy = new AtomicIntegerArray(subscribers);
+
+        // Same tones as Mobile's test mode, and with less than full voice activity a 1.5 s talk spurt
+        // of them followed by background noise for the silent share, cut into packet-sized pieces
+        // shared by all calls
+        byte[] tones = concat(Mobile.generateTestTone(440, SAMPLE_RATE, 0.1),
+                              Mobile.generateTestTone(880, SAMPLE_RATE, 0.1),
+                              Mobile.generateTestTone(1320, SAMPLE_RATE, 0.1));
+        if (VOICE_ACTIVITY < 1) {
+            tones = concat(tones, tones, tones, tones, tones);
+        }
+        double activity = Math.max(0.01, Math.min(1, VOICE_ACTIVITY));
+        byte[] background = new byte[(int) Math.round(tones.length / 2 * (1 - activity) / activity) * 2];
+        new ComfortNoise().fill(background, 0, background.length / 2, BACKGROUND_LEVEL);
+        tones = concat(tones, background);
+        this.tonePackets = new byte[(tones.length + BUFFER_SIZE - 1) / BUFFER_SIZE][];
+        for (int i = 0; i < tonePackets.length; i++) {
+            tonePackets[i] = Arrays.copyOfRange(tones, i * BUFFER_SIZE, Math.min(tones.length, (i + 1) * BUFFER_SIZE));
+        }
+    }
+
+    public void run() throws InterruptedException {
+        calls = VirtualThreads.newThreadPerTaskExecutor("load-call");
+        System.out.println("Load: " + callsPerSecond + " calls/s over " + subscribers + " subscribers from " +
+                         firstMsisdn + ", hold " + holdNanos / 1e9 + " s, run " + runNanos / 1e9 + " s" +
+                         (VirtualThreads.isAvailable() ? " (virtual threads)" : " (platform threads)") +
+                         (spreadLoopback ? ", one loopback address per subscriber" : ""));
+
+        long start = System.nanoTime();
+        long nextArrival = start;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+        long lastReport = start;
+        Snapshot last = new Snapshot();
+        int nextSubscriber = 0;
+
+        while (System.nanoTime() - start < runNanos) {
+            long now = System.nanoTime();
+            if (now - nextReport >= 0) {
+                last = report(now - start, now - lastReport, last);
+                lastReport = now;
+                nextReport += TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+            }
+            if (now - nextArrival < 0) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(nextArrival, nextReport) - now);
+                continue;
+            }
+
+            // Exponential gaps between arrivals (Poisson arrivals at the configured rate)
+            double gapSeconds = -Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) / callsPerSecond;
+            nextArrival += (long) (gapSeconds * 1e9);
+
+            int subscriber = claimSubscriber(nextSubscriber);
+            if (subscriber < 0) {
+                callsSkipped.increment();
+                continue;
+            }
+            nextSubscriber = (subscriber + 1) % subscribers;
+            callsAttempted.increment();
+            calls.execute(() -> runCall(subscriber));
+        }
+
+        // Let calls in progress finish their hold time
+        System.out.println("Arrivals stopped, waiting for " + activeCalls.get() + " active calls to end");
+        calls.shutdown();
+        calls.awaitTermination(holdNanos + TimeUnit.SECONDS.toNanos(30), TimeUnit.NANOSECONDS);
+        long now = System.nanoTime();
+        report(now - start, now - lastReport, last);
+        System.out.println("Load test finished");
+    }
+
+    private int claimSubscriber(int from) {
+        for (int i = 0; i < subscribers; i++) {
+            int subscriber = (from + i) % subscribers;
+            if (busy.compareAndSet(subscriber, 0, 1)) {
+                return subscriber;
+            }
+        }
+        return -1;
+    }
+
+    private void runCall(int subscriber) {
+        String msisdn = msisdnAt(subscriber);
+        Mobile mobile = new Mobile(msisdn);
+        mobile.setQuiet(true);
+        activeCalls.incrementAndGet();
+
+        InetAddress local = spreadLoopback ? loopbackAddress(subscriber) : null;
+        try (Socket signaling = new Socket();
+             DatagramSocket voice = new DatagramSocket(local != null ? new InetSocketAddress(local, 0) : null)) {
+            long setupStart = System.nanoTime();
+            if (local != null) {
+                signaling.bind(new InetSocketAddress(local, 0));
+            }
+            signaling.connect(new InetSocketAddress(mscAddress, SIGNALING_PORT), SETUP_TIMEOUT_MILLIS);
+            signaling.setSoTimeout(SETUP_TIMEOUT_MILLIS);
+
+            mobile.establishCall(signaling);
+            mobile.setVoiceSocket(voice);
+            setupNanos.add(System.nanoTime() - setupStart);
+            callsSetUp.increment();
+            if (mobile.isResumed()) {
+                callsResumed.increment();
+            }
+
+            // Stream tones in real time until the hold time is up or the MSC ends the call
+            long callStart = System.nanoTime();
+            long nextPacket = callStart;
+            int packet = 0;
+            String termination = null;
+            while (System.nanoTime() - callStart < holdNanos) {
+                if (mobile.hasSignaling()) {
+                    String message = mobile.receiveSignaling();
+                    if (message == null) {
+                        throw new IOException("MSC closed the signaling connection");
+                    }
+                    if (message.startsWith("TERMINATE_CALL:")) {
+                        termination = message.substring("TERMINATE_CALL:".length());
+                        break;
+                    }
+                }
+
+                packetsSent.add(mobile.sendAudioPacket(tonePackets[packet], mscAddress));
+                packet = (packet + 1) % tonePackets.length;
+
+                nextPacket += PACKET_NANOS;
+                long sleepNanos = nextPacket - System.nanoTime();
+                if (sleepNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+            }
+
+            if (termination == null) {
+                mobile.sendEndCall();
+                callsCompleted.increment();
+            } else if (termination.equals("User Not Found") || termination.equals("Insufficient Balance for Call")) {
+                callsRejected.increment(); // Refused at call start
+            } else {
+                callsTerminated.increment(); // Cut off by the MSC mid-call, e.g. balance ran out
+            }
+        } catch (ConnectException e) {
+            callsFailed.increment();
+        } catch (Exception e) {
+            callsFailed.increment();
+            System.err.println("Call from " + msisdn + " failed: " + e);
+        } finally {
+            activeCalls.decrementAndGet();
+            busy.set(subscriber, 0);
+        }
+    }
+
+    private Snapshot report(long elapsedNanos, long intervalNanos, Snapshot last) {
+        Snapshot now = new Snapshot();
+        double interval = Math.max(1, intervalNanos) / 1e9;
+        long setUp = now.setUp - last.setUp;
+        System.out.println(String.format(
+            "[%4ds] active %d | setup %.1f/s (avg %.1f ms, %d resumed) | packets %.0f/s | " +
+            "attempted %d, completed %d, rejected %d, terminated %d, failed %d, skipped %d",
+            elapsedNanos / 1_000_000_000L,
+            activeCalls.get(),
+            setUp / interval,
+            setUp > 0 ? (now.setupNanos - last.setupNanos) / 1e6 / setUp : 0.0,
+            now.resumed - last.resumed,
+            (now.packets - last.packets) / interval,
+            callsAttempted.sum(),
+            callsCompleted.sum(),
+            callsRejected.sum(),
+            callsTerminated.sum(),
+            callsFailed.sum(),
+            callsSkipped.sum()));
+        return now;
+    }
+
+    private String msisdnAt(int index) {
+        return String.format("%0" + firstMsisdn.length() + "d", Long.parseLong(firstMsisdn) + index);
+    }
+
+    // 127.0.0.0/8 is all local on Linux; skip 127.0.0.x so the first subscribers don't share 127.0.0.1
+    private static InetAddress loopbackAddress(int index) {
+        int host = index + 256;
+        try {
+            return InetAddress.getByAddress(new byte[] {127, (byte) (host >>> 16), (byte) (host >>> 8), (byte) host});
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private final class Snapshot {
+        final long setUp = callsSetUp.sum();
+        final long resumed = callsResumed.sum();
+        final long setupNanos = LoadGenerator.this.setupNanos.sum();
+        final long packets = packetsSent.sum();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java LoadGenerator <first-MSISDN> <subscribers> " +
+                             "[calls-per-second] [hold-seconds] [run-seconds]");
+            System.out.println("Defaults: 1 call/s, 30 s hold, 60 s run. Options: -Dload.host=<MSC host> " +
+                             "-Dload.reportSeconds=<n> -Dload.spreadLoopback=false -Dload.voiceActivity=<0..1>");
+            return;
+        }
+
+        String firstMsisdn = args[0];
+        int subscribers = Integer.parseInt(args[1]);
+        double callsPerSecond = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        double holdSeconds = args.length > 3 ? Double.parseDouble(args[3]) : 30.0;
+        double runSeconds = args.length > 4 ? Double.parseDouble(args[4]) : 60.0;
+
+        new LoadGenerator(firstMsisdn, subscribers, callsPerSecond, holdSeconds, runSeconds).run();
+    }
+}
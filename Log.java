@@ -0,0 +1,267 @@
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous leveled logging. Callers only claim a slot in a fixed-size ring and store the message
+// template and its arguments; one background thread formats the messages and writes them to the
+// console (DEBUG and INFO to System.out, WARN and ERROR to System.err, the text unchanged). A logging
+// call never waits for the console: when the ring is full the message is dropped and counted.
+//
+// Messages below the level set with -Dlog.level (DEBUG, INFO, WARN, ERROR or OFF; default INFO) cost
+// one comparison. Templates use {} placeholders and are only formatted if the message is written, so
+// hot paths should pass values as arguments, and guard anything costlier with isDebugEnabled().
+// Messages that can repeat per packet take a RateLimit, which writes at most one per interval and
+// reports how many were suppressed in between.
+//
+// Once the JVM starts shutting down, the ring is drained and later messages are written directly, so
+// nothing logged by other shutdown hooks is lost.
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final Level LEVEL = parseLevel(System.getProperty("log.level", "INFO"));
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("log.bufferSize", 8192)));
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong(); // Next slot to claim
+    private static volatile long head;                       // Next slot to write; only the writer advances it
+    private static final LongAdder dropped = new LongAdder();
+    private static final Object writeLock = new Object();     // Held while writing to the console
+    private static volatile boolean synchronous;             // Set once shutdown has begun
+
+    static {
+        Thread writer = new Thread(Log::writeEntries, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronous = true;
+            synchronized (writeLock) {
+                drain();
+                reportDropped();
+            }
+        }, "log-shutdown"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && LEVEL != Level.OFF;
+    }
+
+    public static boolean isDebugEnabled() {
+        return LEVEL == Level.DEBUG;
+    }
+
+    public static void debug(String message) {
+        if (LEVEL == Level.DEBUG) {
+            log(Level.DEBUG, null, message, null, null);
+        }
+    }
+
+    public static void debug(String template, Object... args) {
+        if (LEVEL == Level.DEBUG) {
+            log(Level.DEBUG, null, template, args, null);
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, null, message, null, null);
+        }
+    }
+
+    public static void info(String template, Object... args) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, null, template, args, null);
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, null, message, null, null);
+        }
+    }
+
+    public static void warn(String template, Object... args) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, null, template, args, null);
+        }
+    }
+
+    // At most one message per interval of the limit
+    public static void warn(RateLimit limit, String template, Object... args) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, limit, template, args, null);
+        }
+    }
+
+    public static void error(String message) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, null, message, null, null);
+        }
+    }
+
+    public static void error(String template, Object... args) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, null, template, args, null);
+        }
+    }
+
+    // The message followed by the exception's stack trace
+    public static void error(String message, Throwable thrown) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, null, message, null, thrown);
+        }
+    }
+
+    // At most one message per interval of the limit
+    public static void error(RateLimit limit, String template, Object... args) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, limit, template, args, null);
+        }
+    }
+
+    private static void log(Level level, RateLimit limit, String template, Object[] args, Throwable thrown) {
+        long suppressed = 0;
+        if (limit != null) {
+            if (!limit.tryAcquire()) {
+                return;
+            }
+            suppressed = limit.suppressed.sumThenReset();
+        }
+        Entry entry = new Entry(level, template, args, thrown, suppressed);
+
+        if (synchronous) {
+            synchronized (writeLock) {
+                drain();
+                write(entry);
+            }
+            return;
+        }
+
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        ring.set((int) slot & MASK, entry);
+    }
+
+    private static void writeEntries() {
+        while (true) {
+            boolean wrote;
+            synchronized (writeLock) {
+                wrote = drain();
+                reportDropped();
+            }
+            if (!wrote) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // Write every message published so far, in order; caller holds writeLock. Stops at a slot that
+    // is claimed but not yet filled in, which the writer will get to on its next pass.
+    private static boolean drain() {
+        boolean wrote = false;
+        long next = head;
+        Entry entry;
+        while ((entry = ring.get((int) next & MASK)) != null) {
+            ring.set((int) next & MASK, null);
+            head = ++next;
+            write(entry);
+            wrote = true;
+        }
+        return wrote;
+    }
+
+    private static void reportDropped() {
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            System.err.println(lost + " log messages dropped - log buffer full");
+        }
+    }
+
+    private static void write(Entry entry) {
+        PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+        String message = format(entry.template, entry.args);
+        if (entry.suppressed > 0) {
+            message += " (" + entry.suppressed + " similar messages suppressed)";
+        }
+        out.println(message);
+        if (entry.thrown != null) {
+            entry.thrown.printStackTrace(out);
+        }
+    }
+
+    private static String format(String template, Object[] args) {
+        if (args == null || args.length == 0) {
+            return template;
+        }
+        StringBuilder message = new StringBuilder(template.length() + 16 * args.length);
+        int start = 0;
+        for (Object arg : args) {
+            int placeholder = template.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            message.append(template, start, placeholder).append(arg);
+            start = placeholder + 2;
+        }
+        return message.append(template, start, template.length()).toString();
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log.level '" + name + "', using INFO");
+            return Level.INFO;
+        }
+    }
+
+    // Lets through at most one message per interval; the rest are only counted. Keep one per call site.
+    public static final class RateLimit {
+        private final long intervalNanos;
+        private final AtomicLong nextNanos = new AtomicLong(System.nanoTime());
+        final LongAdder suppressed = new LongAdder();
+
+        public RateLimit(long interval, TimeUnit unit) {
+            this.intervalNanos = unit.toNanos(interval);
+        }
+
+        boolean tryAcquire() {
+            long now = System.nanoTime();
+            long next = nextNanos.get();
+            if (now - next >= 0 && nextNanos.compareAndSet(next, now + intervalNanos)) {
+                return true;
+            }
+            suppressed.increment();
+            return false;
+        }
+    }
+
+    private static final class Entry {
+        final Level level;
+        final String template;
+        final Object[] args;
+        final Throwable thrown;
+        final long suppressed;
+
+        Entry(Level level, String template, Object[] args, Throwable thrown, long suppressed) {
+            this.level = level;
+            this.template = template;
+            this.args = args;
+            this.thrown = thrown;
+            this.suppressed = suppressed;
+        }
+    }
+}
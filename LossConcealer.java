@@ -0,0 +1,154 @@
+// Packet loss concealment for a call's voice. A gap in the media header timestamps (see
+// MediaHeader) is audio that never arrived; rather than leave it out, which makes the playback
+// underrun and the recording shorter than the call, it is filled with audio made up from what was
+// played before it, so both keep the call's timing.
+//
+// The fill is waveform substitution as in G.711 Appendix I, simplified: the pitch period of the
+// last audio is found by autocorrelation (the lag between MIN_PITCH_HZ and MAX_PITCH_HZ where the
+// newest CORRELATION_MILLIS match the audio before them best) and that period is repeated, fading
+// out linearly over FADE_MILLIS, after which the gap is silent. The packet after the gap is
+// cross-faded in from the repetition over OVERLAP_MILLIS so it doesn't click. A gap longer than
+// MAX_GAP_MILLIS is taken as a jump in the caller's clock rather than loss and isn't filled.
+//
+// Works on 16-bit little-endian PCM at the call rate. One instance per call; it isn't thread-safe.
+public final class LossConcealer {
+    private static final int MIN_PITCH_HZ = 66;
+    private static final int MAX_PITCH_HZ = 400;
+    private static final int CORRELATION_MILLIS = 20;
+    private static final int FADE_MILLIS = 60;
+    private static final int OVERLAP_MILLIS = 3;
+    private static final int MAX_GAP_MILLIS = 2000;
+
+    private final int minPeriod;
+    private final int maxPeriod;
+    private final int correlationSamples;
+    private final int fadeSamples;
+    private final int overlapSamples;
+    private final int maxGap;
+
+    private final short[] history;  // The newest samples played, the newest last
+    private int historyLength;      // Samples of history filled; fewer early in the call
+    private boolean started;
+    private int expected;           // Timestamp of the sample after the last one played
+    private int frameSamples = 1;   // Of the last packet, to count the packets a gap stands for
+    private boolean concealing;
+    private int period;             // Of the repetition in progress; 0 repeats silence
+    private int concealed;          // Samples of the current gap filled so far
+    private long concealedFrames;
+
+    public LossConcealer(int sampleRate) {
+        this.minPeriod = sampleRate / MAX_PITCH_HZ;
+        this.maxPeriod = sampleRate / MIN_PITCH_HZ;
+        this.correlationSamples = sampleRate * CORRELATION_MILLIS / 1000;
+        this.fadeSamples = Math.max(1, sampleRate * FADE_MILLIS / 1000);
+        this.overlapSamples = sampleRate * OVERLAP_MILLIS / 1000;
+        this.maxGap = sampleRate * MAX_GAP_MILLIS / 1000;
+        this.history = new short[maxPeriod + correlationSamples];
+    }
+
+    // Samples missing before a packet whose first sample is at timestamp: fill them with conceal()
+    // before playing it. 0 if nothing is missing, or the gap is too long to fill.
+    public int missing(int timestamp) {
+        if (!started) {
+            return 0;
+        }
+        int gap = timestamp - expected;
+        if (gap <= 0 || gap > maxGap) {
+            return 0;
+        }
+        concealedFrames += (gap + frameSamples - 1) / frameSamples;
+        return gap;
+    }
+
+    // Write the next samples of the gap, as PCM
+    public void conceal(byte[] out, int offset, int samples) {
+        if (!concealing) {
+            concealing = true;
+            concealed = 0;
+            period = findPeriod();
+        }
+        for (int i = 0; i < samples; i++) {
+            int sample = repetition(concealed++);
+            out[offset++] = (byte) sample;
+            out[offset++] = (byte) (sample >> 8);
+        }
+    }
+
+    // Note the audio of a packet about to be played, its first sample at timestamp. After a gap the
+    // start of pcm is cross-faded from the repetition in place; returns true if it was changed.
+    public boolean resume(int timestamp, byte[] pcm, int offset, int length) {
+        int samples = length / 2;
+        boolean blended = false;
+        if (concealing) {
+            concealing = false;
+            int overlap = Math.min(overlapSamples, samples);
+            for (int i = 0; i < overlap; i++) {
+                int at = offset + 2 * i;
+                int sample = (short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8));
+                int mixed = (repetition(concealed + i) * (overlap - i) + sample * i) / overlap;
+                pcm[at] = (byte) mixed;
+                pcm[at + 1] = (byte) (mixed >> 8);
+            }
+            blended = overlap > 0;
+        }
+        remember(pcm, offset, samples);
+        started = true;
+        expected = timestamp + samples;
+        frameSamples = Math.max(1, samples);
+        return blended;
+    }
+
+    // Packets' worth of audio made up so far, counted by the length of the packet before each gap
+    public long getConcealedFrames() {
+        return concealedFrames;
+    }
+
+    // Sample n of the gap: the repeated period, faded out
+    private int repetition(int n) {
+        if (period == 0 || n >= fadeSamples) {
+            return 0;
+        }
+        int sample = history[history.length - period + n % period];
+        return (int) ((long) sample * (fadeSamples - n) / fadeSamples);
+    }
+
+    private void remember(byte[] pcm, int offset, int samples) {
+        int kept = Math.min(samples, history.length);
+        if (kept < history.length) {
+            System.arraycopy(history, kept, history, 0, history.length - kept);
+        }
+        int from = offset + 2 * (samples - kept);
+        for (int i = history.length - kept; i < history.length; i++, from += 2) {
+            history[i] = (short) ((pcm[from] & 0xFF) | (pcm[from + 1] << 8));
+        }
+        historyLength = Math.min(history.length, historyLength + kept);
+    }
+
+    // Pitch period of the newest history; with too little history for the search, all of it
+    private int findPeriod() {
+        int longest = Math.min(maxPeriod, historyLength - correlationSamples);
+        if (longest < minPeriod) {
+            return Math.min(historyLength, maxPeriod);
+        }
+        int start = history.length - correlationSamples;
+        int best = minPeriod;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int lag = minPeriod; lag <= longest; lag++) {
+            long correlation = 0;
+            long energy = 0;
+            for (int i = start; i < history.length; i++) {
+                int earlier = history[i - lag];
+                correlation += (long) history[i] * earlier;
+                energy += (long) earlier * earlier;
+            }
+            if (energy > 0) {
+                double score = correlation / Math.sqrt(energy);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = lag;
+                }
+            }
+        }
+        return best;
+    }
+}
@@ -1,9 +1,12 @@
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.security.KeyPair;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -25,21 +28,146 @@ public class MSC {
     private static final String VOICE_DIR = "voice";
     private static final String CDR_DIR = "CDR";
     private static final String CDR_FILE_NAME = "calls.cdr";
+    // CDR group commit: flush after N records or T ms, optionally fsync each batch
+    private static final int CDR_QUEUE_CAPACITY = Integer.getInteger("msc.cdr.queue", 10000);
+    private static final int CDR_FLUSH_RECORDS = Integer.getInteger("msc.cdr.flushRecords", 100);
+    private static final long CDR_FLUSH_MILLIS = Long.getLong("msc.cdr.flushMillis", 200);
+    private static final boolean CDR_FSYNC = Boolean.getBoolean("msc.cdr.fsync");
+    // Recording: off-heap buffering per call (about 6 s of 44.1 kHz PCM by default) before the capture
+    // writer gets it to disk; audio that doesn't fit is dropped
+    private static final int RECORDING_BUFFER_KB = Integer.getInteger("msc.recording.bufferKB", 512);
+    private static final long RECORDING_POLL_MILLIS = Long.getLong("msc.recording.pollMillis", 20);
     private static final double CHARGE_RATE = 5.0; // 5 L.E per minute
+    private static final long CHARGE_RATE_CENTS = BalanceLedger.toCents(CHARGE_RATE);
+    private static final int EXPECTED_SUBSCRIBERS = Integer.getInteger("msc.subscribers", 1024);
+    // Balances persist in a memory-mapped store (an empty path keeps them in memory only). Its record
+    // count is fixed when the file is created; updates are forced to disk every syncMillis.
+    private static final String BALANCE_FILE = System.getProperty("msc.balances.file", "subscribers/balances.dat");
+    private static final long BALANCE_CAPACITY = Long.getLong("msc.balances.capacity", Math.max(1 << 20, EXPECTED_SUBSCRIBERS * 2L));
+    private static final long BALANCE_SYNC_MILLIS = Long.getLong("msc.balances.syncMillis", 1000);
+    // Block of extra subscribers for load tests: <first MSISDN>:<count>:<balance in L.E.>
+    private static final String TEST_SUBSCRIBERS = System.getProperty("msc.testSubscribers");
+    // Session resumption: how many tickets to keep (0 turns resumption off) and how long they stay valid
+    private static final int SESSION_TICKETS = Integer.getInteger("msc.tickets.capacity", 10000);
+    private static final long SESSION_TICKET_TTL_SECONDS = Long.getLong("msc.tickets.ttlSeconds", 3600);
+    private static final long CHARGE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // Charging timer wheel: tick length and slot count (one lap should cover a charge interval)
+    private static final long CHARGE_TICK_MILLIS = Long.getLong("msc.charging.tickMillis", 100);
+    private static final int CHARGE_WHEEL_SIZE = Integer.getInteger("msc.charging.wheelSize", 1024);
     private static final int BUFFER_SIZE = 1024;
     
-    private ServerSocket signalingServer;
-    private DatagramSocket voiceSocket;
+    // Execution mode: "platform" (default) or "virtual", which runs blocking signaling clients and
+    // post-call file work on virtual threads (JDK 21+). Each pool is capped by a semaphore; post-call
+    // work has the same cap on platform threads.
+    private static final boolean VIRTUAL_THREADS = "virtual".equalsIgnoreCase(System.getProperty("msc.executor", "platform"));
+    private static final int MAX_SIGNALING_SESSIONS = Integer.getInteger("msc.executor.maxSessions", 10000);
+    private static final int MAX_BACKGROUND_TASKS = Integer.getInteger("msc.executor.maxBackground", 256);
+    // Signaling engine: "nio" (selector event loops) or "blocking" (one thread per client); with
+    // virtual threads a blocking thread per client is cheap, so that becomes the default
+    private static final String SIGNALING_MODE = System.getProperty("msc.signaling", VIRTUAL_THREADS ? "blocking" : "nio");
+    private static final int SIGNALING_THREADS = Integer.getInteger("msc.signaling.threads",
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    // The NIO event loops only read and write; each session's messages are handled in order on these
+    // workers, so a key exchange or a recording file doesn't hold up the other sessions on a loop
+    // (virtual thread mode uses a virtual thread per busy session instead)
+    private static final int SIGNALING_WORKERS = Integer.getInteger("msc.signaling.workers",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    // Accept clients that ask for binary signaling frames (text clients work either way)
+    private static final boolean BINARY_SIGNALING = Boolean.parseBoolean(System.getProperty("msc.signaling.binary", "true"));
+    // Agree to AES-GCM voice packets when a client asks (clients that don't ask keep AES-CBC)
+    private static final boolean AUDIO_GCM = Boolean.parseBoolean(System.getProperty("msc.audio.gcm", "true"));
+    // Voice codecs we accept when a client offers them (PCM is always accepted), and "CN" to let the
+    // client stop sending during silence and play comfort noise instead
+    private static final List<String> VOICE_CODECS = Arrays.asList(
+            System.getProperty("msc.voice.codecs", "IMA-ADPCM,PCMU,CN").trim().toUpperCase().split("\\s*,\\s*"));
+    // Call sample rates we accept when a client offers them (SAMPLE_RATE, what older clients send, is
+    // always accepted). Calls are played, recorded and charged the same at any rate.
+    private static final List<Integer> VOICE_RATES = parseRates(System.getProperty("msc.voice.rates", "16000,8000"));
+    // Give clients that ask an SSRC for media headers on their voice packets, which are then matched
+    // to calls by SSRC and played in sequence order, holding up to this many early packets for a gap
+    private static final boolean MEDIA_HEADERS = Boolean.parseBoolean(System.getProperty("msc.voice.mediaHeader", "true"));
+    private static final int REORDER_PACKETS = Integer.getInteger("msc.voice.reorderPackets", 3);
+    // Fill the audio of lost packets in calls with media headers (see LossConcealer)
+    private static final boolean CONCEAL_LOSS = Boolean.parseBoolean(System.getProperty("msc.voice.concealLoss", "true"));
+    // Voice ingest threads, each with its own SO_REUSEPORT socket on the voice port
+    private static final int VOICE_RECEIVERS = Integer.getInteger("msc.voice.receivers",
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    // Playback mixer: mixing period, per-call jitter buffer size and how much to buffer before playing
+    private static final int PLAYBACK_FRAME_MILLIS = Integer.getInteger("msc.playback.frameMillis", 20);
+    private static final int PLAYBACK_JITTER_MILLIS = Integer.getInteger("msc.playback.jitterMillis", 200);
+    private static final int PLAYBACK_PREBUFFER_MILLIS = Integer.getInteger("msc.playback.prebufferMillis", 40);
+    // Metrics: plain-text scrape endpoint at http://<host>:<port>/metrics (port 0 turns it off) and a JMX MBean
+    private static final String METRICS_HOST = System.getProperty("msc.metrics.host", "127.0.0.1");
+    private static final int METRICS_PORT = Integer.getInteger("msc.metrics.port", 9011);
+    private static final boolean METRICS_JMX = Boolean.parseBoolean(System.getProperty("msc.metrics.jmx", "true"));
+    // Voice path problems can repeat for every packet, so each is logged at most once a second
+    private static final Log.RateLimit DECRYPT_ERROR_LOG = new Log.RateLimit(1, TimeUnit.SECONDS);
+    private static final Log.RateLimit UNPLAYABLE_AUDIO_LOG = new Log.RateLimit(1, TimeUnit.SECONDS);
+    private static final Log.RateLimit LEGACY_AUDIO_LOG = new Log.RateLimit(1, TimeUnit.SECONDS);
+    
+    private SignalingServer signalingServer;
+    private DatagramChannel[] voiceChannels;
+    private PlaybackMixer playbackMixer; // null when there is no audio output
     private Map<String, UserCall> activeCalls;
-    private Map<String, Double> userBalances;
-    private Map<String, Socket> clientSockets;
+    private MediaSessionIndex<UserCall> mediaSessions; // Voice packet source -> call
+    private BalanceStore balances; // Prepaid balances in cents, updated lock-free
+    private Map<String, SignalingServer.Connection> clientConnections;
     private ScheduledExecutorService scheduler;
+    private TimingWheel chargingTimers; // Per-call charge ticks, run on the scheduler threads
+    private BoundedExecutor signalingThreads; // Blocking signaling clients, in virtual thread mode
+    private ExecutorService signalingWorkers; // Session handlers of the NIO engine
+    private BoundedExecutor backgroundThreads; // Post-call file work, off the signaling and charging threads
+    private CdrWriter cdrWriter;
+    private CaptureWriter captureWriter; // Drains the per-call recording rings to disk
+    private SessionTicketCache sessionTickets; // null when resumption is off
+    private HttpServer metricsServer;
     private volatile boolean running = true;
     
+    // Metrics, recorded on the hot paths; gauges over the other components are added in registerMetrics
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter packetsReceived = metrics.counter("msc_voice_packets_received_total", "Voice packets received");
+    private final Metrics.Counter packetsPlayed = metrics.counter("msc_voice_packets_played_total", "Voice packets played and recorded");
+    private final Metrics.Counter packetsSilence = metrics.counter("msc_voice_sid_packets_total", 
+            "Silence descriptors received, played and recorded as comfort noise");
+    private final Metrics.Counter packetsIgnored = metrics.counter("msc_voice_packets_ignored_total", "Voice packets not from an active call");
+    private final Metrics.Counter packetsDecryptFailed = metrics.counter("msc_voice_packets_decrypt_failed_total", 
+            "Voice packets that failed to decrypt");
+    // Sequence statistics of calls with media headers, added when each call ends
+    private final Metrics.Counter packetsLost = metrics.counter("msc_voice_packets_lost_total", "Voice packets never received in time");
+    private final Metrics.Counter packetsLate = metrics.counter("msc_voice_packets_late_total", 
+            "Voice packets dropped for arriving after later ones were played");
+    private final Metrics.Counter packetsDuplicate = metrics.counter("msc_voice_packets_duplicate_total", "Duplicate voice packets dropped");
+    private final Metrics.Counter packetsReordered = metrics.counter("msc_voice_packets_reordered_total", 
+            "Voice packets that arrived early and were played in order");
+    private final Metrics.Counter framesConcealed = metrics.counter("msc_voice_concealed_frames_total", 
+            "Packets' worth of lost voice filled by loss concealment");
+    private final Metrics.Histogram callJitter = metrics.histogram("msc_voice_jitter_seconds", 
+            "Interarrival jitter of each call's voice packets at the end of the call");
+    private final Metrics.Counter callsStarted = metrics.counter("msc_calls_started_total", "Calls started");
+    private final Metrics.Counter callsRejectedUnknown = metrics.counter("msc_calls_rejected_total{reason=\"unknown_subscriber\"}", 
+            "Calls rejected at setup");
+    private final Metrics.Counter callsRejectedBalance = metrics.counter("msc_calls_rejected_total{reason=\"insufficient_balance\"}", 
+            "Calls rejected at setup");
+    private final Metrics.Counter callsEndedNormal = metrics.counter("msc_calls_ended_total{reason=\"normal\"}", "Calls ended");
+    private final Metrics.Counter callsEndedBalance = metrics.counter("msc_calls_ended_total{reason=\"insufficient_balance\"}", "Calls ended");
+    private final Metrics.Counter callsEndedReplaced = metrics.counter("msc_calls_ended_total{reason=\"replaced\"}", "Calls ended");
+    private final Metrics.Counter callsEndedShutdown = metrics.counter("msc_calls_ended_total{reason=\"shutdown\"}", "Calls ended");
+    private final Metrics.Histogram decryptTime = metrics.histogram("msc_voice_decrypt_seconds", "Time to decrypt one voice packet");
+    private final Metrics.Histogram callSetupTime = metrics.histogram("msc_call_setup_seconds", 
+            "Time from signaling connect to the call being started or rejected");
+    private final Metrics.Histogram chargeTickLag = metrics.histogram("msc_charge_tick_lag_seconds", 
+            "How late charge ticks run after their deadline");
+    private final Metrics.Histogram cdrFlushTime = metrics.histogram("msc_cdr_flush_seconds", "Time to write (and fsync) one CDR batch");
+    
     // Encryption related fields
     private KeyPair rsaKeyPair;
+    private String publicKeyString;           // Sent to every client, so encode it only once
     private Map<String, SecretKey> clientKeys; // Store AES keys for each client
     private Map<String, byte[]> clientIVs;    // Store IVs for each client
+    private Map<String, AudioCryptoContext.Mode> clientAudioCiphers; // Voice packet format agreed with each client
+    private Map<String, String> clientCodecs; // Voice codec agreed with each client
+    private Map<String, Integer> clientSampleRates; // Call sample rate agreed with each client
+    private Map<String, Integer> clientSsrcs; // SSRC reserved for the call being started, taken by handleStartCall
     
     // Class to track call details
     private static class UserCall {
@@ -51,48 +179,208 @@ public class MSC {
         boolean active;
         double initialBalance;
         double currentBalance;
-        AudioInputStream audioStream;
-        ByteArrayOutputStream audioData;
+        long startNanos;        // Monotonic start, the base for the per-minute charge ticks
+        int chargedMinutes;     // Minutes already debited by charge ticks
+        long chargedCents;      // Amount already debited by charge ticks
+        long reservedCents;     // Held for the minute in progress, charged by the next tick
+        TimingWheel.Timeout chargeTimer;
+        volatile CaptureWriter.Capture recording; // Buffers decrypted audio off-heap on its way to disk
+        volatile PlaybackMixer.Stream playback; // This call's jitter buffer in the playback mixer
+        SecretKey key;  // Voice encryption key/IV, resolved once at call start
+        byte[] iv;
+        AudioCryptoContext crypto; // Cached voice cipher, only used by the voice thread
+        VoiceCodec codec;          // Decodes the voice packets after decryption
+        boolean comfortNoise;      // The caller goes quiet during silence and sends SIDs instead
+        int sampleRate;            // Of the decoded audio, as agreed at call setup
+        int ssrc;                  // In the media header of each voice packet; 0 for packets without one
+        MediaSequencer sequencer;  // Orders packets with media headers, only used by the voice thread
+        LossConcealer concealer;   // Fills timestamp gaps in those packets; null when not concealing
         
         public UserCall(String msisdn, InetAddress address, int port, double balance) {
             this.msisdn = msisdn;
             this.startTime = LocalDateTime.now();
+            this.startNanos = System.nanoTime();
             this.address = address;
             this.port = port;
             this.active = true;
             this.initialBalance = balance;
             this.currentBalance = balance;
-            
-            // Initialize audio recording
-            this.audioData = new ByteArrayOutputStream();
         }
     }
     
     public MSC() {
         activeCalls = new ConcurrentHashMap<>();
-        userBalances = new HashMap<>();
-        clientSockets = new ConcurrentHashMap<>();
+        mediaSessions = new MediaSessionIndex<>();
+        balances = openBalanceStore();
+        clientConnections = new ConcurrentHashMap<>();
         clientKeys = new ConcurrentHashMap<>();
         clientIVs = new ConcurrentHashMap<>();
+        clientAudioCiphers = new ConcurrentHashMap<>();
+        clientCodecs = new ConcurrentHashMap<>();
+        clientSampleRates = new ConcurrentHashMap<>();
+        clientSsrcs = new ConcurrentHashMap<>();
+        if (SESSION_TICKETS > 0) {
+            sessionTickets = new SessionTicketCache(SESSION_TICKETS, SESSION_TICKET_TTL_SECONDS, TimeUnit.SECONDS);
+        }
         scheduler = Executors.newScheduledThreadPool(2);
+        chargingTimers = new TimingWheel(CHARGE_TICK_MILLIS, TimeUnit.MILLISECONDS, CHARGE_WHEEL_SIZE,
+                                         scheduler, "charging-timer");
+        if (VIRTUAL_THREADS) {
+            if (!VirtualThreads.isAvailable()) {
+                Log.error("Virtual threads need JDK 21+ - using platform threads with the same limits");
+            }
+            signalingThreads = new BoundedExecutor(VirtualThreads.newThreadPerTaskExecutor("signaling-client"),
+                                                   MAX_SIGNALING_SESSIONS);
+            backgroundThreads = new BoundedExecutor(VirtualThreads.newThreadPerTaskExecutor("call-io"),
+                                                    MAX_BACKGROUND_TASKS);
+        } else {
+            backgroundThreads = new BoundedExecutor(Executors.newCachedThreadPool(VirtualThreads.platformThreads("call-io")),
+                                                    MAX_BACKGROUND_TASKS);
+        }
         
-        // Initialize some user balances (in a real system, would be loaded from a database)
-        userBalances.put("01223456789", 100.0);
-        userBalances.put("01234567890", 50.0);
-        userBalances.put("01112223333", 25.0);
-        userBalances.put("01020053936", 5.0);
+        // Initialize some user balances the first time (a persistent store keeps what they have left)
+        balances.putIfAbsent("01223456789", BalanceLedger.toCents(100.0));
+        balances.putIfAbsent("01234567890", BalanceLedger.toCents(50.0));
+        balances.putIfAbsent("01112223333", BalanceLedger.toCents(25.0));
+        balances.putIfAbsent("01020053936", BalanceLedger.toCents(5.0));
+        if (TEST_SUBSCRIBERS != null) {
+            addTestSubscribers(TEST_SUBSCRIBERS);
+        }
+        if (BALANCE_SYNC_MILLIS > 0) {
+            scheduler.scheduleWithFixedDelay(this::syncBalances, BALANCE_SYNC_MILLIS, BALANCE_SYNC_MILLIS, 
+                                             TimeUnit.MILLISECONDS);
+        }
         
         // Create required directories if they don't exist
         createDirectoryIfNotExists(VOICE_DIR);
         createDirectoryIfNotExists(CDR_DIR);
         
+        captureWriter = new CaptureWriter(RECORDING_BUFFER_KB * 1024, RECORDING_POLL_MILLIS);
+        
+        // Keep the CDR file open for the life of the MSC and append to it in batches
+        try {
+            cdrWriter = new CdrWriter(Paths.get(CDR_DIR, CDR_FILE_NAME), CDR_QUEUE_CAPACITY,
+                                      CDR_FLUSH_RECORDS, CDR_FLUSH_MILLIS, CDR_FSYNC);
+        } catch (IOException e) {
+            Log.error("Error opening CDR file: " + e.getMessage());
+        }
+        registerMetrics();
+        
         // Initialize the RSA key pair for secure key exchange
         try {
             rsaKeyPair = SecurityUtils.generateRSAKeyPair();
-            System.out.println("Generated RSA key pair for secure communications");
+            publicKeyString = SecurityUtils.keyToString(rsaKeyPair.getPublic());
+            Log.info("Generated RSA key pair for secure communications");
         } catch (Exception e) {
-            System.err.println("Error generating RSA key pair: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Error generating RSA key pair: " + e.getMessage(), e);
+        }
+    }
+    
+    // Gauges and externally kept counters; read only when metrics are scraped
+    private void registerMetrics() {
+        metrics.gauge("msc_active_calls", "Calls in progress", () -> activeCalls.size());
+        metrics.gauge("msc_signaling_connections", "Signaling connections with a known MSISDN", () -> clientConnections.size());
+        metrics.gauge("msc_playback_queued_samples", "Samples waiting in the per-call jitter buffers", 
+                      () -> playbackMixer != null ? playbackMixer.getQueuedSamples() : 0);
+        metrics.counter("msc_playback_underruns_total", "Jitter buffer underruns", 
+                        () -> playbackMixer != null ? playbackMixer.getUnderruns() : 0);
+        metrics.counter("msc_playback_overruns_total", "Jitter buffer overruns", 
+                        () -> playbackMixer != null ? playbackMixer.getOverruns() : 0);
+        metrics.gauge("msc_recording_bytes", "Audio bytes recorded by the calls in progress", () -> {
+            long bytes = 0;
+            for (UserCall call : activeCalls.values()) {
+                CaptureWriter.Capture recording = call.recording;
+                if (recording != null) {
+                    bytes += recording.getRecorder().getDataLength();
+                }
+            }
+            return bytes;
+        });
+        metrics.gauge("msc_recording_buffered_bytes", "Audio bytes waiting in the recording buffers", 
+                      () -> captureWriter.getBufferedBytes());
+        metrics.gauge("msc_recording_buffer_memory_bytes", "Off-heap memory held by recording buffers", 
+                      () -> captureWriter.getRingMemory());
+        metrics.counter("msc_recording_bytes_dropped_total", "Audio bytes dropped because the recording buffer was full", 
+                        () -> captureWriter.getBytesDropped());
+        if (cdrWriter != null) {
+            cdrWriter.setFlushListener(cdrFlushTime::record);
+            metrics.gauge("msc_cdr_queue_depth", "CDRs waiting to be written", () -> cdrWriter.getQueueDepth());
+            metrics.counter("msc_cdr_records_written_total", "CDRs written to the CDR file", () -> cdrWriter.getRecordsWritten());
+            metrics.counter("msc_cdr_write_failures_total", "Failed attempts to write a batch of CDRs", 
+                            () -> cdrWriter.getWriteFailures());
+            metrics.counter("msc_cdr_records_spilled_total", "CDRs given up on and written to the spill file", 
+                            () -> cdrWriter.getRecordsSpilled());
+            metrics.counter("msc_cdr_records_lost_total", "CDRs written to neither the CDR nor the spill file", 
+                            () -> cdrWriter.getRecordsLost());
+        }
+        if (sessionTickets != null) {
+            metrics.counter("msc_session_tickets_issued_total", "Session tickets issued", () -> sessionTickets.getIssued());
+            metrics.counter("msc_session_tickets_resumed_total", "Sessions resumed from a ticket", () -> sessionTickets.getResumed());
+        }
+        metrics.gauge("msc_background_tasks", "Post-call tasks running", () -> backgroundThreads.getRunning());
+    }
+    
+    private void startMetrics() {
+        if (METRICS_PORT > 0) {
+            try {
+                metricsServer = metrics.startHttpServer(METRICS_HOST, METRICS_PORT);
+                Log.info("Serving metrics at http://" + METRICS_HOST + ":" + METRICS_PORT + "/metrics");
+            } catch (IOException e) {
+                Log.error("Error starting metrics endpoint on port " + METRICS_PORT + ": " + e.getMessage());
+            }
+        }
+        if (METRICS_JMX) {
+            try {
+                metrics.registerMBean("msc:type=Metrics");
+            } catch (Exception e) {
+                Log.error("Error registering metrics MBean: " + e.getMessage());
+            }
+        }
+    }
+    
+    // The persistent store if it opens, otherwise an in-memory ledger (balances then start over on
+    // every restart, as they did before the store existed)
+    private BalanceStore openBalanceStore() {
+        if (BALANCE_FILE.isEmpty()) {
+            return new BalanceLedger(EXPECTED_SUBSCRIBERS);
+        }
+        try {
+            Path file = Paths.get(BALANCE_FILE).toAbsolutePath();
+            Files.createDirectories(file.getParent());
+            MappedBalanceStore store = new MappedBalanceStore(file, BALANCE_CAPACITY);
+            Log.info("Opened balance store " + file + " (" + store.size() + " subscribers, room for " + 
+                     store.getCapacity() * 3 / 4 + ")");
+            return store;
+        } catch (IOException | RuntimeException e) {
+            Log.error("Error opening balance store " + BALANCE_FILE + ": " + e.getMessage() + 
+                      " - keeping balances in memory only");
+            return new BalanceLedger(EXPECTED_SUBSCRIBERS);
+        }
+    }
+    
+    private void syncBalances() {
+        try {
+            balances.sync();
+        } catch (IOException | RuntimeException e) {
+            Log.error("Error syncing balance store: " + e.getMessage());
+        }
+    }
+    
+    private void addTestSubscribers(String spec) {
+        try {
+            String[] parts = spec.split(":");
+            String first = parts[0];
+            int count = Integer.parseInt(parts[1]);
+            long balance = BalanceLedger.toCents(Double.parseDouble(parts[2]));
+            long firstNumber = Long.parseLong(first);
+            for (int i = 0; i < count; i++) {
+                balances.put(String.format("%0" + first.length() + "d", firstNumber + i), balance);
+            }
+            Log.info("Added " + count + " test subscribers from " + first + " with " + 
+                             parts[2] + " L.E. each");
+        } catch (RuntimeException e) {
+            Log.error("Invalid msc.testSubscribers '" + spec + "' (expected <first MSISDN>:<count>:<balance>): " + 
+                             e.getMessage());
         }
     }
     
@@ -101,35 +389,52 @@ public class MSC {
             Path path = Paths.get(dirPath);
             if (!Files.exists(path)) {
                 Files.createDirectory(path);
-                System.out.println("Created directory: " + path.toAbsolutePath());
+                Log.info("Created directory: " + path.toAbsolutePath());
             } else {
-                System.out.println("Directory already exists at: " + path.toAbsolutePath());
+                Log.info("Directory already exists at: " + path.toAbsolutePath());
             }
         } catch (IOException e) {
-            System.err.println("Error creating directory " + dirPath + ": " + e.getMessage());
+            Log.error("Error creating directory " + dirPath + ": " + e.getMessage());
         }
     }
     
     public void start() {
         try {
             // Setup TCP server for signaling
-            signalingServer = new ServerSocket(SIGNALING_PORT);
-            System.out.println("Started TCP signaling server on port " + SIGNALING_PORT);
-            
-            // Setup UDP socket for voice data
-            voiceSocket = new DatagramSocket(UDP_PORT);
-            System.out.println("Started UDP voice socket on port " + UDP_PORT);
+            if ("blocking".equalsIgnoreCase(SIGNALING_MODE)) {
+                if (signalingThreads != null) {
+                    signalingServer = new BlockingSignalingServer(SIGNALING_PORT, new SignalingHandler(), signalingThreads);
+                    signalingServer.start();
+                    Log.info("Started TCP signaling server on port " + SIGNALING_PORT + 
+                                     " (up to " + signalingThreads.getMaxConcurrent() + " clients on " + 
+                                     (VirtualThreads.isAvailable() ? "virtual" : "platform") + " threads)");
+                } else {
+                    signalingServer = new BlockingSignalingServer(SIGNALING_PORT, new SignalingHandler());
+                    signalingServer.start();
+                    Log.info("Started TCP signaling server on port " + SIGNALING_PORT);
+                }
+            } else {
+                signalingWorkers = VIRTUAL_THREADS
+                        ? VirtualThreads.newThreadPerTaskExecutor("signaling-worker")
+                        : Executors.newFixedThreadPool(SIGNALING_WORKERS, VirtualThreads.platformThreads("signaling-worker"));
+                signalingServer = new NioSignalingServer(SIGNALING_PORT, SIGNALING_THREADS, new SignalingHandler());
+                signalingServer.start();
+                Log.info("Started TCP signaling server on port " + SIGNALING_PORT + 
+                                 " (" + SIGNALING_THREADS + " event loops, " + 
+                                 (VIRTUAL_THREADS ? "virtual" : SIGNALING_WORKERS + " worker") + " threads)");
+            }
             
-            System.out.println("MSC ready - waiting for voice call signaling start message via TCP");
+            // Setup UDP sockets for voice data
+            voiceChannels = openVoiceChannels(VOICE_RECEIVERS);
+            Log.info("Started UDP voice socket on port " + UDP_PORT + 
+                             (voiceChannels.length > 1 ? " (" + voiceChannels.length + " receivers)" : ""));
             
-            // Start thread to handle signaling messages
-            new Thread(this::handleSignaling).start();
+            startMetrics();
             
-            // Start thread to handle voice data
-            new Thread(this::handleVoiceData).start();
+            Log.info("MSC ready - waiting for voice call signaling start message via TCP");
             
-            // Start charging scheduler
-            scheduler.scheduleAtFixedRate(this::chargeActiveCalls, 1, 1, TimeUnit.MINUTES);
+            // Start threads to handle voice data
+            startVoiceReceivers();
             
             // Add shutdown hook to clean up resources
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -142,187 +447,498 @@ public class MSC {
                 Thread.sleep(1000);
             }
         } catch (IOException e) {
-            System.err.println("Error starting MSC: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Error starting MSC: " + e.getMessage(), e);
         } catch (InterruptedException e) {
-            System.err.println("Error in main thread: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Error in main thread: " + e.getMessage(), e);
         }
     }
     
-    private void handleSignaling() {
-        while (running) {
+    // Per-connection signaling state, fed one line (or binary frame) at a time by whichever engine owns the socket
+    private static class ClientSession {
+        final SignalingServer.Connection connection;
+        final String clientAddress;
+        final SerialExecutor tasks; // Runs this session's messages in order; null to run them on the engine's thread
+        Exception failure;          // Set when a message failed; the connection is then closed
+        String connectedMsisdn;
+        byte[] pendingEncryptedKey; // AES_KEY received, waiting for the IV that follows it
+        SecretKey clientKey;
+        byte[] iv;
+        String resumedMsisdn; // Set when the key came from a session ticket issued to this MSISDN
+        long setupStartNanos = System.nanoTime(); // Connect time, until the first call setup is measured
+        AudioCryptoContext.Mode audioCipher = AudioCryptoContext.Mode.CBC; // Until the client asks for another
+        String voiceCodec = VoiceCodec.PCM; // Until the client offers others; with ",CN" for comfort noise
+        int sampleRate = SAMPLE_RATE;        // Likewise
+        int ssrc;                            // Reserved for the next call's media headers, 0 if none
+        
+        ClientSession(SignalingServer.Connection connection, SerialExecutor tasks) {
+            this.connection = connection;
+            this.tasks = tasks;
+            this.clientAddress = connection.getInetAddress().getHostAddress() + ":" + connection.getPort();
+        }
+    }
+    
+    private interface SessionTask {
+        void run() throws Exception;
+    }
+    
+    private class SignalingHandler implements SignalingServer.Handler {
+        @Override
+        public void onConnect(SignalingServer.Connection connection) {
+            connection.setAttachment(new ClientSession(connection, 
+                    signalingWorkers != null ? new SerialExecutor(signalingWorkers) : null));
+            
+            // Send the server's public key to enable secure key exchange
+            connection.send("PUBLIC_KEY:" + publicKeyString);
+            Log.info("Sent public key to client for secure key exchange");
+        }
+        
+        @Override
+        public void onLine(SignalingServer.Connection connection, String message) throws Exception {
+            ClientSession session = (ClientSession) connection.getAttachment();
+            if (message.equals(SignalingCodec.NEGOTIATE)) {
+                // Switching to frames has to happen before the engine parses the next byte. The
+                // Mobile sends it first and waits for the answer, so nothing is queued ahead of it.
+                processSignalingMessage(session, message);
+                return;
+            }
+            dispatch(session, () -> processSignalingMessage(session, message));
+        }
+        
+        @Override
+        public void onFrame(SignalingServer.Connection connection, int type, byte[] payload) throws Exception {
+            ClientSession session = (ClientSession) connection.getAttachment();
+            dispatch(session, () -> processSignalingFrame(session, type, payload));
+        }
+        
+        @Override
+        public void onDisconnect(SignalingServer.Connection connection, Exception cause) {
+            ClientSession session = (ClientSession) connection.getAttachment();
+            if (session == null) {
+                return;
+            }
+            if (session.tasks == null) {
+                endSignalingSession(session, cause);
+                return;
+            }
+            // After the messages still queued for the session
             try {
-                Socket clientSocket = signalingServer.accept();
-                new Thread(() -> processSignalingClient(clientSocket)).start();
-            } catch (IOException e) {
-                if (running) {
-                    System.err.println("Error accepting signaling connection: " + e.getMessage());
-                }
+                session.tasks.execute(() -> endSignalingSession(session, cause != null ? cause : session.failure));
+            } catch (RejectedExecutionException e) {
+                // Shutting down; cleanup() ends the calls still active
+            }
+        }
+        
+        private void dispatch(ClientSession session, SessionTask task) throws Exception {
+            if (session.tasks == null) {
+                task.run();
+                return;
+            }
+            try {
+                session.tasks.execute(() -> {
+                    if (session.failure != null) {
+                        return; // The connection is closing; drop what was read after the error
+                    }
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        session.failure = e;
+                        session.connection.close();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down; the connection is about to be closed
             }
         }
     }
     
-    private void processSignalingClient(Socket clientSocket) {
-        String clientAddress = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
-        String connectedMsisdn = null;
+    private void processSignalingMessage(ClientSession session, String message) throws Exception {
+        if (message.equals(SignalingCodec.NEGOTIATE)) {
+            if (BINARY_SIGNALING) {
+                // Answer in text, then switch: everything after this line is binary frames both ways
+                session.connection.send(SignalingCodec.NEGOTIATED);
+                session.connection.switchToBinary();
+                Log.info("Client " + session.clientAddress + " switched to binary signaling");
+            }
+            return;
+        }
         
-        try {
-            InputStream is = clientSocket.getInputStream();
-            OutputStream os = clientSocket.getOutputStream();
-            BufferedReader in = new BufferedReader(new InputStreamReader(is));
-            PrintWriter out = new PrintWriter(os, true);
+        if (session.pendingEncryptedKey != null) {
+            // The line right after AES_KEY carries the IV
+            byte[] encryptedKey = session.pendingEncryptedKey;
+            session.pendingEncryptedKey = null;
             
-            // Send the server's public key to enable secure key exchange
-            String publicKeyStr = SecurityUtils.keyToString(rsaKeyPair.getPublic());
-            out.println("PUBLIC_KEY:" + publicKeyStr);
-            System.out.println("Sent public key to client for secure key exchange");
-            
-            String message;
-            
-            // Wait for the client to send its encrypted AES key
-            while ((message = in.readLine()) != null) {
-                if (message.startsWith("AES_KEY:")) {
-                    // Client is sending the AES key encrypted with our public key
-                    String encryptedKeyStr = message.substring("AES_KEY:".length());
-                    byte[] encryptedKey = Base64.getDecoder().decode(encryptedKeyStr);
-                    
-                    // Process the next line which should be the IV
-                    String ivLine = in.readLine();
-                    if (ivLine != null && ivLine.startsWith("IV:")) {
-                        String ivStr = ivLine.substring("IV:".length());
-                        byte[] iv = Base64.getDecoder().decode(ivStr);
-                        
-                        // Decrypt the AES key using our private key
-                        byte[] decryptedKeyBytes = SecurityUtils.decryptRSA(encryptedKey, rsaKeyPair.getPrivate());
-                        SecretKey clientKey = new SecretKeySpec(decryptedKeyBytes, 0, decryptedKeyBytes.length, "AES");
-                        
-                        // Temporarily store the key - will associate with MSISDN once we receive it
-                        String tempKeyId = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
-                        clientKeys.put(tempKeyId, clientKey);
-                        clientIVs.put(tempKeyId, iv);
-                        
-                        System.out.println("Received and decrypted AES key and IV from client");
-                        
-                        // Now ready to receive encrypted messages
-                        out.println("READY_FOR_ENCRYPTED");
-                    }
+            if (message.startsWith("IV:")) {
+                String ivStr = message.substring("IV:".length());
+                acceptClientKey(session, encryptedKey, Base64.getDecoder().decode(ivStr));
+                
+                // Now ready to receive encrypted messages
+                session.connection.send("READY_FOR_ENCRYPTED");
+            }
+            return;
+        }
+        
+        if (message.startsWith("AES_KEY:")) {
+            // Client is sending the AES key encrypted with our public key
+            String encryptedKeyStr = message.substring("AES_KEY:".length());
+            session.pendingEncryptedKey = Base64.getDecoder().decode(encryptedKeyStr);
+        } 
+        else if (message.startsWith("RESUME:")) {
+            // Repeat caller presenting a session ticket and a new IV instead of a new key
+            String[] parts = message.substring("RESUME:".length()).split(":");
+            Base64.Decoder decoder = Base64.getDecoder();
+            if (parts.length == 2 && resumeSession(session, decoder.decode(parts[0]), decoder.decode(parts[1]))) {
+                session.connection.send("READY_FOR_ENCRYPTED");
+            } else {
+                session.connection.send("RESUME_FAILED");
+            }
+        }
+        else if (message.startsWith("ENC:")) {
+            // This is an encrypted message
+            String encryptedStr = message.substring("ENC:".length());
+            
+            if (session.clientKey != null && session.iv != null) {
+                // Decrypt the message
+                String decryptedMsg = SecurityUtils.decryptStringAES(encryptedStr, session.clientKey, session.iv);
+                
+                // Process the decrypted message
+                if (decryptedMsg.startsWith("START_CALL:")) {
+                    startSessionCall(session, decryptedMsg.substring("START_CALL:".length()), true);
                 } 
-                else if (message.startsWith("ENC:")) {
-                    // This is an encrypted message
-                    String encryptedStr = message.substring("ENC:".length());
-                    
-                    // Get the key/IV for this client
-                    String tempKeyId = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
-                    SecretKey clientKey = clientKeys.get(tempKeyId);
-                    byte[] iv = clientIVs.get(tempKeyId);
-                    
-                    if (clientKey != null && iv != null) {
-                        // Decrypt the message
-                        String decryptedMsg = SecurityUtils.decryptStringAES(encryptedStr, clientKey, iv);
-                        
-                        // Process the decrypted message
-                        if (decryptedMsg.startsWith("START_CALL:")) {
-                            connectedMsisdn = decryptedMsg.substring("START_CALL:".length());
-                            
-                            // Now associate the key with the MSISDN
-                            clientKeys.put(connectedMsisdn, clientKey);
-                            clientIVs.put(connectedMsisdn, iv);
-                            
-                            // Remove the temporary key mapping
-                            clientKeys.remove(tempKeyId);
-                            clientIVs.remove(tempKeyId);
-                            
-                            storeClientSocket(connectedMsisdn, clientSocket);
-                            handleStartCall(connectedMsisdn, clientSocket.getInetAddress());
-                        } 
-                        else if (decryptedMsg.startsWith("END_CALL:")) {
-                            connectedMsisdn = decryptedMsg.substring("END_CALL:".length());
-                            handleEndCall(connectedMsisdn);
-                        }
-                    } else {
-                        System.err.println("Error: No encryption key available for client");
-                    }
+                else if (decryptedMsg.startsWith("END_CALL:")) {
+                    endSessionCall(session, decryptedMsg.substring("END_CALL:".length()));
                 }
-                // Support for legacy unencrypted communication - can be removed later
-                else if (message.startsWith("START_CALL:") || message.startsWith("END_CALL:")) {
-                    System.out.println("WARNING: Received unencrypted message: " + message);
-                    if (message.startsWith("START_CALL:")) {
-                        connectedMsisdn = message.substring("START_CALL:".length());
-                        storeClientSocket(connectedMsisdn, clientSocket);
-                        handleStartCall(connectedMsisdn, clientSocket.getInetAddress());
-                    } else if (message.startsWith("END_CALL:")) {
-                        connectedMsisdn = message.substring("END_CALL:".length());
-                        handleEndCall(connectedMsisdn);
-                    }
+                else if (decryptedMsg.equals("TICKET_REQUEST")) {
+                    issueSessionTicket(session);
+                }
+                else if (decryptedMsg.startsWith("AUDIO_CIPHER:")) {
+                    selectAudioCipher(session, decryptedMsg.substring("AUDIO_CIPHER:".length()));
+                }
+                else if (decryptedMsg.startsWith("VOICE_CODEC:")) {
+                    selectVoiceCodec(session, decryptedMsg.substring("VOICE_CODEC:".length()));
                 }
+                else if (decryptedMsg.startsWith("SAMPLE_RATE:")) {
+                    selectSampleRate(session, decryptedMsg.substring("SAMPLE_RATE:".length()));
+                }
+                else if (decryptedMsg.startsWith("MEDIA_HEADER:")) {
+                    assignSsrc(session, decryptedMsg.substring("MEDIA_HEADER:".length()));
+                }
+            } else {
+                Log.error("Error: No encryption key available for client");
             }
-            
-            // If we reach here, the client closed the connection normally
-            System.out.println("Client " + clientAddress + " disconnected normally");
-            
-        } catch (SocketException e) {
-            // Handle connection reset errors more gracefully
-            System.out.println("Client " + clientAddress + " connection lost: " + e.getMessage());
-            
-            // If we know which MSISDN was connected, end the call properly
-            if (connectedMsisdn != null) {
-                UserCall call = activeCalls.get(connectedMsisdn);
-                if (call != null && call.active) {
-                    System.out.println("Ending call for MSISDN " + connectedMsisdn + " due to connection loss");
-                    handleEndCall(connectedMsisdn);
+        }
+        // Support for legacy unencrypted communication - can be removed later
+        else if (message.startsWith("START_CALL:") || message.startsWith("END_CALL:")) {
+            Log.warn("WARNING: Received unencrypted message: " + message);
+            if (message.startsWith("START_CALL:")) {
+                startSessionCall(session, message.substring("START_CALL:".length()), false);
+            } else if (message.startsWith("END_CALL:")) {
+                endSessionCall(session, message.substring("END_CALL:".length()));
+            }
+        }
+    }
+    
+    // Same exchange as processSignalingMessage, for clients that negotiated binary frames: keys and
+    // ciphertext arrive as raw bytes, and an ENCRYPTED frame holds another frame
+    private void processSignalingFrame(ClientSession session, int type, byte[] payload) throws Exception {
+        switch (type) {
+            case SignalingCodec.AES_KEY:
+                session.pendingEncryptedKey = payload;
+                break;
+            case SignalingCodec.IV:
+                if (session.pendingEncryptedKey == null) {
+                    Log.error("Ignoring IV without AES key from " + session.clientAddress);
+                    break;
                 }
+                byte[] encryptedKey = session.pendingEncryptedKey;
+                session.pendingEncryptedKey = null;
+                acceptClientKey(session, encryptedKey, payload);
+                session.connection.sendFrame(SignalingCodec.READY, new byte[0]);
+                break;
+            case SignalingCodec.RESUME:
+                int ticketLength = payload.length - 16;
+                if (ticketLength > 0 && resumeSession(session, Arrays.copyOfRange(payload, 0, ticketLength),
+                                                      Arrays.copyOfRange(payload, ticketLength, payload.length))) {
+                    session.connection.sendFrame(SignalingCodec.READY, new byte[0]);
+                } else {
+                    session.connection.sendFrame(SignalingCodec.RESUME_FAILED, new byte[0]);
+                }
+                break;
+            case SignalingCodec.ENCRYPTED:
+                if (session.clientKey == null || session.iv == null) {
+                    Log.error("Error: No encryption key available for client");
+                    break;
+                }
+                SignalingCodec.Frame frame = SignalingCodec.decode(
+                        SecurityUtils.decryptAES(payload, session.clientKey, session.iv));
+                if (frame.type == SignalingCodec.START_CALL) {
+                    startSessionCall(session, frame.text(), true);
+                } else if (frame.type == SignalingCodec.END_CALL) {
+                    endSessionCall(session, frame.text());
+                } else if (frame.type == SignalingCodec.TICKET_REQUEST) {
+                    issueSessionTicket(session);
+                } else if (frame.type == SignalingCodec.AUDIO_CIPHER) {
+                    selectAudioCipher(session, frame.text());
+                } else if (frame.type == SignalingCodec.VOICE_CODEC) {
+                    selectVoiceCodec(session, frame.text());
+                } else if (frame.type == SignalingCodec.SAMPLE_RATE) {
+                    selectSampleRate(session, frame.text());
+                } else if (frame.type == SignalingCodec.MEDIA_HEADER) {
+                    assignSsrc(session, frame.text());
+                }
+                break;
+            case SignalingCodec.START_CALL:
+            case SignalingCodec.END_CALL:
+                Log.warn("WARNING: Received unencrypted message: " + SignalingCodec.toText(type, payload));
+                if (type == SignalingCodec.START_CALL) {
+                    startSessionCall(session, new String(payload, StandardCharsets.UTF_8), false);
+                } else {
+                    endSessionCall(session, new String(payload, StandardCharsets.UTF_8));
+                }
+                break;
+            default:
+                Log.error("Ignoring signaling frame of unknown type " + type + " from " + session.clientAddress);
+        }
+    }
+    
+    private void acceptClientKey(ClientSession session, byte[] encryptedKey, byte[] iv) throws Exception {
+        // Decrypt the AES key using our private key
+        byte[] decryptedKeyBytes = SecurityUtils.decryptRSA(encryptedKey, rsaKeyPair.getPrivate());
+        
+        // Keep the key with the session - will associate with MSISDN once we receive it
+        session.clientKey = new SecretKeySpec(decryptedKeyBytes, 0, decryptedKeyBytes.length, "AES");
+        session.iv = iv;
+        
+        Log.info("Received and decrypted AES key and IV from client");
+    }
+    
+    // Take the key named by a session ticket instead of an RSA-encrypted one; false if the ticket is
+    // unknown or expired (the client then does the full key exchange)
+    private boolean resumeSession(ClientSession session, byte[] ticket, byte[] iv) {
+        SessionTicketCache.Entry entry = sessionTickets != null ? sessionTickets.redeem(ticket) : null;
+        if (entry == null || iv.length != 16) {
+            Log.info("Session ticket from " + session.clientAddress + " not accepted - full key exchange needed");
+            return false;
+        }
+        session.clientKey = entry.key;
+        session.iv = iv;
+        session.resumedMsisdn = entry.msisdn;
+        Log.info("Resumed session of " + entry.msisdn + " from ticket, skipping RSA key exchange");
+        return true;
+    }
+    
+    // Hand the client a ticket for its current key, encrypted with that key. Tickets are single-use,
+    // so the client asks for a new one on every call.
+    private void issueSessionTicket(ClientSession session) throws Exception {
+        if (sessionTickets == null) {
+            return; // Resumption is off; the client simply gets no ticket
+        }
+        if (session.connectedMsisdn == null) {
+            Log.error("Ignoring ticket request before START_CALL from " + session.clientAddress);
+            return;
+        }
+        byte[] ticket = sessionTickets.issue(session.connectedMsisdn, session.clientKey);
+        int ttlSeconds = sessionTickets.getTtlSeconds();
+        if (session.connection.isBinary()) {
+            byte[] payload = ByteBuffer.allocate(4 + ticket.length).putInt(ttlSeconds).put(ticket).array();
+            byte[] frame = SignalingCodec.encode(SignalingCodec.TICKET, payload);
+            session.connection.sendFrame(SignalingCodec.ENCRYPTED, SecurityUtils.encryptAES(frame, session.clientKey, session.iv));
+        } else {
+            String message = "TICKET:" + Base64.getEncoder().encodeToString(ticket) + ":" + ttlSeconds;
+            session.connection.send("ENC:" + SecurityUtils.encryptStringAES(message, session.clientKey, session.iv));
+        }
+    }
+    
+    // Answer the client's voice packet format request with the format the call will use: what it
+    // asked for if we support it, AES-CBC otherwise. Sent before START_CALL, so it applies to that call.
+    private void selectAudioCipher(ClientSession session, String requested) throws Exception {
+        AudioCryptoContext.Mode mode = AudioCryptoContext.Mode.fromWireName(requested);
+        if (mode == null || (mode == AudioCryptoContext.Mode.GCM && !AUDIO_GCM)) {
+            mode = AudioCryptoContext.Mode.CBC;
+        }
+        session.audioCipher = mode;
+        sendEncrypted(session, "AUDIO_CIPHER:" + mode.wireName);
+    }
+    
+    // Answer the client's codec offer with the first codec in its order of preference that we accept,
+    // PCM if there is none, followed by CN if both sides do comfort noise. Like the voice packet
+    // format, it applies to the START_CALL that follows.
+    private void selectVoiceCodec(ClientSession session, String offered) throws Exception {
+        String codec = VoiceCodec.PCM;
+        List<String> names = new ArrayList<>();
+        for (String name : offered.toUpperCase().split(",")) {
+            names.add(name.trim());
+        }
+        for (String name : names) {
+            if ((name.equals(VoiceCodec.PCM) || VOICE_CODECS.contains(name)) && VoiceCodec.forName(name) != null) {
+                codec = name;
+                break;
+            }
+        }
+        if (names.contains(ComfortNoise.NAME) && VOICE_CODECS.contains(ComfortNoise.NAME)) {
+            codec += "," + ComfortNoise.NAME;
+        }
+        session.voiceCodec = codec;
+        sendEncrypted(session, "VOICE_CODEC:" + codec);
+    }
+    
+    // Same for the call's sample rate: the first offered rate we accept, SAMPLE_RATE if there is none
+    private void selectSampleRate(ClientSession session, String offered) throws Exception {
+        int rate = SAMPLE_RATE;
+        for (int candidate : parseRates(offered)) {
+            if (candidate == SAMPLE_RATE || VOICE_RATES.contains(candidate)) {
+                rate = candidate;
+                break;
+            }
+        }
+        session.sampleRate = rate;
+        sendEncrypted(session, "SAMPLE_RATE:" + rate);
+    }
+    
+    // Answer a request for media headers with the SSRC the call's packets are to carry, or 0 if the
+    // client keeps sending bare packets (headers off, another version, or no SSRC left). The SSRC
+    // stays reserved for this connection until a call takes it or the connection closes.
+    private void assignSsrc(ClientSession session, String version) throws Exception {
+        if (session.ssrc == 0 && MEDIA_HEADERS && version.trim().equals(String.valueOf(MediaHeader.VERSION))) {
+            session.ssrc = mediaSessions.reserveSsrc();
+        }
+        sendEncrypted(session, "MEDIA_HEADER:" + Integer.toUnsignedString(session.ssrc));
+    }
+    
+    // Comma-separated sample rates; anything that isn't a plausible rate is skipped
+    private static List<Integer> parseRates(String rates) {
+        List<Integer> parsed = new ArrayList<>();
+        for (String value : rates.split(",")) {
+            try {
+                int rate = Integer.parseInt(value.trim());
+                if (rate >= 4000 && rate <= 192000) {
+                    parsed.add(rate);
+                }
+            } catch (NumberFormatException e) {
+                // Not a rate
+            }
+        }
+        return parsed;
+    }
+    
+    // A text protocol message, encrypted with the session key, as a frame or a line
+    private void sendEncrypted(ClientSession session, String message) throws Exception {
+        if (session.connection.isBinary()) {
+            byte[] frame = SignalingCodec.encode(message);
+            session.connection.sendFrame(SignalingCodec.ENCRYPTED, SecurityUtils.encryptAES(frame, session.clientKey, session.iv));
+        } else {
+            session.connection.send("ENC:" + SecurityUtils.encryptStringAES(message, session.clientKey, session.iv));
+        }
+    }
+    
+    private void startSessionCall(ClientSession session, String msisdn, boolean encrypted) {
+        if (session.resumedMsisdn != null && !session.resumedMsisdn.equals(msisdn)) {
+            // A ticket only stands in for the key exchange of the subscriber it was issued to
+            Log.error("Session ticket of " + session.resumedMsisdn + " used to call as " + msisdn + 
+                             " - closing " + session.clientAddress);
+            session.connection.close();
+            return;
+        }
+        session.connectedMsisdn = msisdn;
+        if (encrypted) {
+            // Now associate the key with the MSISDN
+            clientKeys.put(msisdn, session.clientKey);
+            clientIVs.put(msisdn, session.iv);
+            clientAudioCiphers.put(msisdn, session.audioCipher);
+            clientCodecs.put(msisdn, session.voiceCodec);
+            clientSampleRates.put(msisdn, session.sampleRate);
+            if (session.ssrc != 0) {
+                clientSsrcs.put(msisdn, session.ssrc);
+                session.ssrc = 0;
+            }
+        }
+        storeClientConnection(msisdn, session.connection);
+        handleStartCall(msisdn, session.connection.getInetAddress());
+        // A rejected call leaves its SSRC behind
+        Integer unusedSsrc = clientSsrcs.remove(msisdn);
+        if (unusedSsrc != null) {
+            mediaSessions.releaseSsrc(unusedSsrc);
+        }
+        if (session.setupStartNanos != 0) {
+            callSetupTime.recordSince(session.setupStartNanos);
+            session.setupStartNanos = 0;
+        }
+    }
+    
+    private void endSessionCall(ClientSession session, String msisdn) {
+        session.connectedMsisdn = msisdn;
+        handleEndCall(msisdn);
+    }
+    
+    private void endSignalingSession(ClientSession session, Exception cause) {
+        String connectedMsisdn = session.connectedMsisdn;
+        
+        if (cause == null) {
+            // The client closed the connection normally
+            Log.info("Client " + session.clientAddress + " disconnected normally");
+        } else {
+            if (cause instanceof SocketException) {
+                // Handle connection reset errors more gracefully
+                Log.info("Client " + session.clientAddress + " connection lost: " + cause.getMessage());
+            } else {
+                Log.error("Error processing signaling client from " + session.clientAddress + ": " + cause.getMessage());
             }
-        } catch (Exception e) {
-            System.err.println("Error processing signaling client from " + clientAddress + ": " + e.getMessage());
             
             // If we know which MSISDN was connected, end the call properly
             if (connectedMsisdn != null) {
                 UserCall call = activeCalls.get(connectedMsisdn);
                 if (call != null && call.active) {
-                    System.out.println("Ending call for MSISDN " + connectedMsisdn + " due to error");
+                    Log.info("Ending call for MSISDN " + connectedMsisdn + 
+                                     (cause instanceof SocketException ? " due to connection loss" : " due to error"));
                     handleEndCall(connectedMsisdn);
                 }
             }
-        } finally {
-            try {
-                // Clean up temporary keys if they exist
-                String tempKeyId = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
-                clientKeys.remove(tempKeyId);
-                clientIVs.remove(tempKeyId);
-                
-                // Close the socket if it's still open
-                if (!clientSocket.isClosed()) {
-                    clientSocket.close();
-                }
-                
-                System.out.println("Client socket cleanup completed for " + clientAddress);
-            } catch (IOException e) {
-                System.err.println("Error closing client socket: " + e.getMessage());
-            }
         }
+        
+        // Forget the connection unless a newer one already took over this MSISDN
+        if (connectedMsisdn != null) {
+            clientConnections.remove(connectedMsisdn, session.connection);
+        }
+        if (session.ssrc != 0) {
+            mediaSessions.releaseSsrc(session.ssrc);
+            session.ssrc = 0;
+        }
+        Log.info("Client socket cleanup completed for " + session.clientAddress);
     }
     
-    private void storeClientSocket(String msisdn, Socket socket) {
-        clientSockets.put(msisdn, socket);
-        System.out.println("Stored client socket for MSISDN: " + msisdn);
+    private void storeClientConnection(String msisdn, SignalingServer.Connection connection) {
+        clientConnections.put(msisdn, connection);
+        Log.info("Stored client socket for MSISDN: " + msisdn);
     }
     
     private void handleStartCall(String msisdn, InetAddress callerAddress) {
-        if (!userBalances.containsKey(msisdn)) {
-            System.out.println("User not found: " + msisdn + " - rejecting call");
+        long balanceCents = balances.get(msisdn);
+        if (balanceCents == BalanceLedger.NOT_FOUND) {
+            Log.info("User not found: " + msisdn + " - rejecting call");
+            callsRejectedUnknown.increment();
             // Sending rejection message to the mobile
             sendTerminationMessage(msisdn, "User Not Found");
             return;
         }
         
-        double balance = userBalances.get(msisdn);
-        System.out.println("User " + msisdn + " current balance: " + balance + " L.E.");
+        // A call still active for this MSISDN is billed and closed first, so its minutes are charged
+        // before the new call holds its first one
+        UserCall replaced = activeCalls.get(msisdn);
+        if (replaced != null) {
+            endReplacedCall(replaced);
+            balanceCents = balances.get(msisdn);
+        }
+        
+        double balance = BalanceLedger.toAmount(balanceCents);
+        Log.info("User " + msisdn + " current balance: " + balance + " L.E.");
         
-        if (balance < CHARGE_RATE) {
-            System.out.println("Insufficient balance for user: " + msisdn + 
+        // Hold the first minute up front, so the balance check and the charge can't be split by
+        // another call or charge tick on the same account
+        if (!balances.reserve(msisdn, CHARGE_RATE_CENTS)) {
+            balance = BalanceLedger.toAmount(Math.max(0, balances.get(msisdn)));
+            Log.info("Insufficient balance for user: " + msisdn + 
                              " (has " + balance + " L.E., needs at least " + CHARGE_RATE + " L.E.)");
-            System.out.println("Rejecting call due to insufficient funds");
+            Log.info("Rejecting call due to insufficient funds");
+            callsRejectedBalance.increment();
             
             try {
                 // Generate error CDR for insufficient balance
@@ -331,80 +947,196 @@ public class MSC {
                 // Send rejection message to the mobile
                 sendTerminationMessage(msisdn, "Insufficient Balance for Call");
             } catch (Exception e) {
-                System.err.println("Error generating error CDR: " + e.getMessage());
+                Log.error("Error generating error CDR: " + e.getMessage());
             }
             
             return;
         }
         
-        System.out.println("Accept Voice call start signaling message from MSISDN " + msisdn);
-        System.out.println("Caller address: " + callerAddress.getHostAddress());
+        Log.info("Accept Voice call start signaling message from MSISDN " + msisdn);
+        Log.info("Caller address: " + callerAddress.getHostAddress());
         
         UserCall call = new UserCall(msisdn, callerAddress, UDP_PORT, balance);
-        activeCalls.put(msisdn, call);
+        call.reservedCents = CHARGE_RATE_CENTS;
+        call.key = clientKeys.get(msisdn);
+        call.iv = clientIVs.get(msisdn);
+        if (call.key != null && call.iv != null) {
+            try {
+                call.crypto = SecurityUtils.createAudioContext(call.key, call.iv,
+                        clientAudioCiphers.getOrDefault(msisdn, AudioCryptoContext.Mode.CBC));
+            } catch (Exception e) {
+                Log.error("Error creating voice cipher for " + msisdn + ": " + e.getMessage());
+            }
+        }
+        // Codecs and rates are agreed over encrypted signaling, so calls without a voice cipher send
+        // PCM at SAMPLE_RATE
+        boolean agreed = call.crypto != null;
+        List<String> codecs = Arrays.asList(
+                (agreed ? clientCodecs.getOrDefault(msisdn, VoiceCodec.PCM) : VoiceCodec.PCM).split(","));
+        call.codec = VoiceCodec.forName(codecs.get(0));
+        call.comfortNoise = codecs.contains(ComfortNoise.NAME);
+        call.sampleRate = agreed ? clientSampleRates.getOrDefault(msisdn, SAMPLE_RATE) : SAMPLE_RATE;
+        Integer ssrc = agreed ? clientSsrcs.remove(msisdn) : null;
+        if (ssrc != null) {
+            call.ssrc = ssrc;
+            call.sequencer = new MediaSequencer(call.sampleRate, REORDER_PACKETS, BUFFER_SIZE * 2);
+            if (CONCEAL_LOSS) {
+                call.concealer = new LossConcealer(call.sampleRate);
+            }
+        }
+        Log.info("Voice codec for " + msisdn + ": " + call.codec.getName() + " at " + call.sampleRate + " Hz" +
+                 (call.comfortNoise ? " with comfort noise" : ""));
         
-        System.out.println("Capturing UDP traffic and play via speaker .....");
+        callsStarted.increment();
+        UserCall previous = activeCalls.put(msisdn, call);
+        if (previous != null) {
+            // Another START_CALL for the MSISDN raced with this one
+            endReplacedCall(previous);
+        }
+        startRecording(call);
+        if (playbackMixer != null) {
+            call.playback = playbackMixer.addStream(msisdn, call.sampleRate);
+        }
+        mediaSessions.register(callerAddress, call, call.ssrc);
+        synchronized (call) {
+            scheduleNextCharge(call);
+        }
+        
+        Log.info("Capturing UDP traffic and play via speaker .....");
     }
     
     private void handleEndCall(String msisdn) {
         UserCall call = activeCalls.get(msisdn);
         if (call != null) {
-            call.active = false;
-            call.endTime = LocalDateTime.now();
-            activeCalls.remove(msisdn);
-            
-            // Calculate call duration and cost
-            long durationSeconds = ChronoUnit.SECONDS.between(call.startTime, call.endTime);
-            
-            // Calculate billable minutes - ceiling-based (round up to next minute)
-            // If call duration is 1 second, charge for 1 minute
-            // If call duration is 61 seconds, charge for 2 minutes
-            long billableMinutes = (durationSeconds + 59) / 60; // Ceiling division
-            if (billableMinutes < 1) billableMinutes = 1; // Minimum 1 minute
-            
-            double callCost = billableMinutes * CHARGE_RATE;
+            long durationSeconds;
+            long billableMinutes;
+            double callCost;
+            double currentBalance;
+            double finalBalance;
             
-            // Get current balance
-            double currentBalance = userBalances.get(msisdn);
-            
-            // Check if user has enough balance for the entire call
-            if (currentBalance < callCost) {
-                // User doesn't have enough balance for the full call cost
-                // Charge only what they have left
-                callCost = currentBalance;
-                System.out.println("Warning: User " + msisdn + " has insufficient balance to cover full call cost.");
-                System.out.println("Charging only the available balance: " + callCost + " L.E.");
+            synchronized (call) {
+                // A charge tick may have ended the call already
+                if (!call.active) {
+                    return;
+                }
+                call.active = false;
+                call.endTime = LocalDateTime.now();
+                cancelChargeTimer(call);
+                callsEndedNormal.increment();
+                
+                // Calculate call duration and cost
+                durationSeconds = ChronoUnit.SECONDS.between(call.startTime, call.endTime);
+                
+                // Calculate billable minutes - ceiling-based (round up to next minute)
+                // If call duration is 1 second, charge for 1 minute
+                // If call duration is 61 seconds, charge for 2 minutes
+                billableMinutes = (durationSeconds + 59) / 60; // Ceiling division
+                if (billableMinutes < 1) billableMinutes = 1; // Minimum 1 minute
+                
+                // Charge ticks already debited the minutes they covered; only the rest is still owed
+                long owedCents = Math.max(0, billableMinutes - call.chargedMinutes) * CHARGE_RATE_CENTS;
+                currentBalance = BalanceLedger.toAmount(balances.get(msisdn) + call.reservedCents);
+                
+                long chargedCents = settleCall(call, billableMinutes);
+                if (chargedCents < owedCents) {
+                    // User doesn't have enough balance for the full call cost
+                    // Charge only what they have left
+                    Log.warn("Warning: User " + msisdn + " has insufficient balance to cover full call cost.");
+                    Log.info("Charging only the available balance: " + 
+                                     BalanceLedger.toAmount(chargedCents) + " L.E.");
+                }
+                
+                finalBalance = BalanceLedger.toAmount(balances.get(msisdn));
+                call.currentBalance = finalBalance;
+                callCost = BalanceLedger.toAmount(call.chargedCents);
             }
-            
-            // Update user balance
-            double finalBalance = Math.max(0, currentBalance - callCost);
-            userBalances.put(msisdn, finalBalance);
+            activeCalls.remove(msisdn, call);
+            unregisterMedia(call);
             
             // Calculate actual minutes for display/logging
             long actualMinutes = ChronoUnit.MINUTES.between(call.startTime, call.endTime);
             long remainingSeconds = durationSeconds - (actualMinutes * 60);
             
-            System.out.println("Call End after receiving end call signaling message");
-            System.out.println("Call duration: " + actualMinutes + " minutes, " + remainingSeconds + " seconds");
-            System.out.println("Billable minutes: " + billableMinutes);
-            System.out.println("Call cost: " + callCost + " L.E.");
-            System.out.println("Previous balance: " + currentBalance + " L.E.");
-            System.out.println("New balance: " + finalBalance + " L.E.");
-            
-            // Save call audio to WAV file
-            saveCallAudio(call);
+            Log.info("Call End after receiving end call signaling message");
+            Log.info("Call duration: " + actualMinutes + " minutes, " + remainingSeconds + " seconds");
+            Log.info("Billable minutes: " + billableMinutes);
+            Log.info("Call cost: " + callCost + " L.E.");
+            Log.info("Previous balance: " + currentBalance + " L.E.");
+            Log.info("New balance: " + finalBalance + " L.E.");
             
-            // Generate CDR
-            generateCDR(call, billableMinutes, durationSeconds, callCost, finalBalance, "Normal call Clearing");
+            // Save call audio to WAV file, then generate the CDR
+            stopPlayback(call);
+            long cdrMinutes = billableMinutes;
+            long cdrSeconds = durationSeconds;
+            double cdrCost = callCost;
+            double cdrBalance = finalBalance;
+            runInBackground(() -> {
+                saveCallAudio(call);
+                generateCDR(call, cdrMinutes, cdrSeconds, cdrCost, cdrBalance, "Normal call Clearing");
+            });
         }
     }
     
-    private void saveCallAudio(UserCall call) {
-        if (call.audioData == null || call.audioData.size() == 0) {
-            System.out.println("No audio data available for recording");
-            return;
+    // End a call that a new START_CALL for the same MSISDN takes over. It is settled like a call
+    // ended normally, minutes used charged and a CDR written, so re-sending START_CALL can't restart
+    // the billing.
+    private void endReplacedCall(UserCall call) {
+        long durationSeconds;
+        long billableMinutes;
+        double callCost;
+        double finalBalance;
+        
+        synchronized (call) {
+            // A charge tick or END_CALL may have ended it already
+            if (!call.active) {
+                return;
+            }
+            call.active = false;
+            call.endTime = LocalDateTime.now();
+            cancelChargeTimer(call);
+            callsEndedReplaced.increment();
+            
+            durationSeconds = ChronoUnit.SECONDS.between(call.startTime, call.endTime);
+            billableMinutes = Math.max(1, (durationSeconds + 59) / 60); // Ceiling division, at least a minute
+            settleCall(call, billableMinutes);
+            
+            finalBalance = BalanceLedger.toAmount(balances.get(call.msisdn));
+            call.currentBalance = finalBalance;
+            callCost = BalanceLedger.toAmount(call.chargedCents);
         }
+        activeCalls.remove(call.msisdn, call);
+        unregisterMedia(call);
+        
+        Log.info("Call of " + call.msisdn + " replaced by a new call after " + durationSeconds + " seconds");
+        Log.info("Billable minutes: " + billableMinutes);
+        Log.info("Call cost: " + callCost + " L.E.");
+        Log.info("New balance: " + finalBalance + " L.E.");
         
+        stopPlayback(call);
+        runInBackground(() -> {
+            saveCallAudio(call);
+            generateCDR(call, billableMinutes, durationSeconds, callCost, finalBalance, "Call Replaced");
+        });
+    }
+    
+    // Final charge for an ending call: the billable minutes no charge tick has covered, starting with
+    // the held minute in progress (a hold that turns out not to be needed is given back).
+    // Caller holds the call's lock. Returns the cents charged here.
+    private long settleCall(UserCall call, long billableMinutes) {
+        long owedMinutes = Math.max(0, billableMinutes - call.chargedMinutes);
+        long charged = 0;
+        if (owedMinutes == 0) {
+            balances.release(call.msisdn, call.reservedCents);
+        } else {
+            charged = call.reservedCents + 
+                      balances.debitUpTo(call.msisdn, (owedMinutes - 1) * CHARGE_RATE_CENTS);
+        }
+        call.reservedCents = 0;
+        call.chargedCents += charged;
+        return charged;
+    }
+    
+    private void startRecording(UserCall call) {
         try {
             // Format the date and time parts for the filename
             DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyy_MM_dd");
@@ -416,24 +1148,80 @@ public class MSC {
             String filename = String.format("%s/voice_call_msisdn_%s_date_%s_Time_%s.wav", 
                                 VOICE_DIR, call.msisdn, date, time);
             
-            // Create AudioInputStream from the collected bytes
-            byte[] audioBytes = call.audioData.toByteArray();
-            ByteArrayInputStream bais = new ByteArrayInputStream(audioBytes);
-            
-            // Create AudioFormat with the same parameters used for capture
-            AudioFormat format = new AudioFormat(SAMPLE_RATE, SAMPLE_SIZE_IN_BITS, 
-                                               CHANNELS, SIGNED, BIG_ENDIAN);
-            
-            AudioInputStream audioInputStream = new AudioInputStream(bais, format, audioBytes.length / format.getFrameSize());
+            // Record at the call's sample rate. Compressed calls are recorded as 8-bit mu-law, half
+            // the size of PCM (PCMU packets are written as they arrive).
+            WavRecorder recorder = call.codec.isPcm()
+                    ? new WavRecorder(Paths.get(filename), call.sampleRate, SAMPLE_SIZE_IN_BITS, CHANNELS)
+                    : new WavRecorder(Paths.get(filename), WavRecorder.FORMAT_MULAW, call.sampleRate, 8, CHANNELS);
+            call.recording = captureWriter.open(recorder);
+        } catch (IOException e) {
+            Log.error("Error starting call recording for " + call.msisdn + ": " + e.getMessage());
+        }
+    }
+    
+    private void recordAudio(UserCall call, byte[] data, int offset, int length) {
+        // Only a copy into the call's ring; the capture writer does the disk I/O
+        CaptureWriter.Capture recording = call.recording;
+        if (recording != null) {
+            recording.write(data, offset, length);
+        }
+    }
+    
+    // Stop matching voice packets to an ended call and add its sequence statistics to the metrics
+    private void unregisterMedia(UserCall call) {
+        mediaSessions.unregister(call.address, call);
+        MediaSequencer sequencer = call.sequencer;
+        if (sequencer == null) {
+            return;
+        }
+        synchronized (call) {
+            packetsLost.add(sequencer.getLost());
+            packetsLate.add(sequencer.getLate());
+            packetsDuplicate.add(sequencer.getDuplicates());
+            packetsReordered.add(sequencer.getReordered());
+            callJitter.record(sequencer.getJitterNanos());
+            long concealed = call.concealer != null ? call.concealer.getConcealedFrames() : 0;
+            framesConcealed.add(concealed);
+            Log.info(String.format("Voice from %s: %d packets, %d lost, %d late, %d duplicates, %d reordered, " + 
+                     "%d frames concealed, jitter %.1f ms",
+                     call.msisdn, sequencer.getReceived(), sequencer.getLost(), sequencer.getLate(),
+                     sequencer.getDuplicates(), sequencer.getReordered(), concealed, sequencer.getJitterNanos() / 1e6));
+        }
+    }
+    
+    private void stopPlayback(UserCall call) {
+        PlaybackMixer.Stream playback = call.playback;
+        call.playback = null;
+        if (playback != null) {
+            playback.close();
+        }
+    }
+    
+    private void saveCallAudio(UserCall call) {
+        CaptureWriter.Capture recording = call.recording;
+        call.recording = null;
+        
+        try {
+            // Write out what is still buffered; the capture then hands the file over
+            WavRecorder recorder = recording != null ? recording.finish() : null;
+            if (recording != null && recording.getBytesDropped() > 0) {
+                Log.warn("Recording of " + call.msisdn + " is missing " + recording.getBytesDropped() + 
+                         " bytes of audio - the disk fell behind");
+            }
+            if (recorder == null || recorder.getDataLength() == 0) {
+                Log.info("No audio data available for recording");
+                if (recorder != null) {
+                    recorder.discard();
+                }
+                return;
+            }
             
-            // Write to WAV file
-            File outputFile = new File(filename);
-            AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, outputFile);
+            // The audio is already on disk - only the WAV header sizes are left to fill in
+            recorder.close();
             
-            System.out.println("Call recording saved to: " + outputFile.getAbsolutePath());
+            Log.info("Call recording saved to: " + recorder.getPath().toAbsolutePath());
         } catch (Exception e) {
-            System.err.println("Error saving call audio: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Error saving call audio: " + e.getMessage(), e);
         }
     }
     
@@ -452,126 +1240,181 @@ public class MSC {
                 0.0,       // No cost
                 balance);  // Balance remains the same
             
-            // Get the full path to the CDR file
-            Path cdrFilePath = Paths.get(CDR_DIR, CDR_FILE_NAME);
-            
-            // Append CDR to file
-            Files.write(cdrFilePath, cdrLine.getBytes(), 
-                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            // Hand the record to the CDR writer, which appends it with the next batch
+            appendCDR(cdrLine);
             
-            System.out.println("Generating error CDR line: " + cdrLine.trim());
-            System.out.println("CDR saved to: " + cdrFilePath.toAbsolutePath());
+            Log.info("Generating error CDR line: " + cdrLine.trim());
+            Log.info("CDR queued for: " + cdrWriter.getPath().toAbsolutePath());
         } catch (IOException e) {
-            System.err.println("Error generating error CDR: " + e.getMessage());
+            Log.error("Error generating error CDR: " + e.getMessage());
+        }
+    }
+    
+    private void appendCDR(String cdrLine) throws IOException {
+        if (cdrWriter == null) {
+            throw new IOException("CDR file is not open");
         }
+        cdrWriter.append(cdrLine);
     }
     
     private void generateCDR(UserCall call, long billableMinutes, long durationSeconds, 
                            double callCost, double finalBalance, String clearingReason) {
         try {
-            DateTimeFormatter formatter = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+            String cdrLine = formatCDR(call.msisdn, call.startTime, call.endTime, billableMinutes, 
+                                       durationSeconds, clearingReason, callCost, finalBalance);
+            
+            // Hand the record to the CDR writer, which appends it with the next batch
+            appendCDR(cdrLine);
             
-            // Calculate actual minutes and seconds for the CDR
-            long actualMinutes = durationSeconds / 60;
-            long remainingSeconds = durationSeconds % 60;
-            
-            String cdrLine = String.format("%s, %s, %s, %d:%02d, %d, %s, %.2f, %.2f\n",
-                call.msisdn,
-                call.startTime.format(formatter),
-                call.endTime.format(formatter),
-                actualMinutes,
-                remainingSeconds,
-                billableMinutes,
-                clearingReason,
-                callCost,
-                finalBalance);
-            
-            // Get the full path to the CDR file
-            Path cdrFilePath = Paths.get(CDR_DIR, CDR_FILE_NAME);
-            
-            // Append CDR to file
-            Files.write(cdrFilePath, cdrLine.getBytes(), 
-                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-            
-            System.out.println("Generating CDR line: " + cdrLine.trim());
-            System.out.println("CDR saved to: " + cdrFilePath.toAbsolutePath());
+            Log.info("Generating CDR line: " + cdrLine.trim());
+            Log.info("CDR queued for: " + cdrWriter.getPath().toAbsolutePath());
         } catch (IOException e) {
-            System.err.println("Error generating CDR: " + e.getMessage());
+            Log.error("Error generating CDR: " + e.getMessage());
+        }
+    }
+    
+    // One CDR record, including its line terminator
+    static String formatCDR(String msisdn, LocalDateTime startTime, LocalDateTime endTime, 
+                            long billableMinutes, long durationSeconds, String clearingReason, 
+                            double callCost, double finalBalance) {
+        DateTimeFormatter formatter = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+        
+        // Calculate actual minutes and seconds for the CDR
+        long actualMinutes = durationSeconds / 60;
+        long remainingSeconds = durationSeconds % 60;
+        
+        return String.format("%s, %s, %s, %d:%02d, %d, %s, %.2f, %.2f\n",
+            msisdn,
+            startTime.format(formatter),
+            endTime.format(formatter),
+            actualMinutes,
+            remainingSeconds,
+            billableMinutes,
+            clearingReason,
+            callCost,
+            finalBalance);
+    }
+    
+    // Arm the call's next charge tick at the next whole minute since it started, so every call is
+    // charged on its own minute boundaries. Caller holds the call's lock.
+    private void scheduleNextCharge(UserCall call) {
+        long deadline = call.startNanos + (call.chargedMinutes + 1) * CHARGE_INTERVAL_NANOS;
+        call.chargeTimer = chargingTimers.schedule(() -> chargeCall(call), deadline);
+    }
+    
+    private void cancelChargeTimer(UserCall call) {
+        if (call.chargeTimer != null) {
+            call.chargeTimer.cancel();
+            call.chargeTimer = null;
         }
     }
     
-    private void chargeActiveCalls() {
-        for (Map.Entry<String, UserCall> entry : activeCalls.entrySet()) {
-            UserCall call = entry.getValue();
-            String msisdn = entry.getKey();
+    // Charge tick for one call, at each full minute since it started: the minute that just ended
+    // (held when it began) is charged for good and the next one is held. A partial minute is held
+    // if that is all the balance has left; once nothing is left the call is ended.
+    private void chargeCall(UserCall call) {
+        String msisdn = call.msisdn;
+        long durationSeconds;
+        long billableMinutes;
+        double callCost;
+        double finalBalance;
+        
+        synchronized (call) {
+            if (!call.active) {
+                return;
+            }
+            if (call.chargeTimer != null) {
+                chargeTickLag.recordSince(call.chargeTimer.getDeadlineNanos());
+            }
+            call.chargedMinutes++;
+            call.chargedCents += call.reservedCents;
+            call.reservedCents = 0;
             
-            if (call.active) {
-                double currentBalance = userBalances.get(msisdn);
-                double newBalance = currentBalance - CHARGE_RATE;
-                
-                System.out.println("Charging " + msisdn + ": current balance = " + 
-                                 currentBalance + " L.E., charge = " + CHARGE_RATE + 
-                                 " L.E., new balance = " + newBalance + " L.E.");
+            long heldCents = balances.debitUpTo(msisdn, CHARGE_RATE_CENTS);
+            long remainingCents = balances.get(msisdn);
+            double currentBalance = BalanceLedger.toAmount(remainingCents + heldCents);
+            double newBalance = currentBalance - CHARGE_RATE;
+            
+            Log.debug("Charging {}: current balance = {} L.E., charge = {} L.E., new balance = {} L.E.", 
+                      msisdn, currentBalance, CHARGE_RATE, newBalance);
+            
+            if (heldCents > 0) {
+                call.reservedCents = heldCents;
+                call.currentBalance = BalanceLedger.toAmount(remainingCents);
+                scheduleNextCharge(call);
                 
-                if (newBalance <= 0) {
-                    System.out.println("User " + msisdn + " ran out of balance, ending call");
-                    call.endTime = LocalDateTime.now();
-                    
-                    // Calculate call duration and cost up to this point
-                    long durationSeconds = ChronoUnit.SECONDS.between(call.startTime, call.endTime);
-                    long billableMinutes = (durationSeconds + 59) / 60; // Ceiling division
-                    
-                    // We can only charge what the user has left
-                    double callCost = Math.min(currentBalance, billableMinutes * CHARGE_RATE);
-                    
-                    // Update user balance to zero (can't go negative)
-                    double finalBalance = Math.max(0, currentBalance - callCost);
-                    userBalances.put(msisdn, finalBalance);
-                    
-                    // Calculate actual minutes for display/logging
-                    long actualMinutes = durationSeconds / 60;
-                    long remainingSeconds = durationSeconds % 60;
-                    
-                    System.out.println("Call terminated due to insufficient funds");
-                    System.out.println("Call duration: " + actualMinutes + " minutes, " + remainingSeconds + " seconds");
-                    System.out.println("Billable minutes: " + billableMinutes);
-                    System.out.println("Call cost: " + callCost + " L.E. (limited by available balance)");
-                    System.out.println("Final balance: " + finalBalance + " L.E.");
-                    
-                    // Send termination message to mobile
-                    sendTerminationMessage(msisdn, "Insufficient Balance");
-                    
-                    // Mark call as inactive and remove from active calls
-                    call.active = false;
-                    activeCalls.remove(msisdn);
-                    
-                    // Save call audio to WAV file
-                    saveCallAudio(call);
-                    
-                    // Generate CDR with reason "Insufficient Balance"
-                    generateCDR(call, billableMinutes, durationSeconds, callCost, finalBalance, "Insufficient Balance");
-                } else {
-                    userBalances.put(msisdn, newBalance);
-                    call.currentBalance = newBalance;
-                    
-                    // Calculate and display current call duration
-                    LocalDateTime now = LocalDateTime.now();
-                    long durationSeconds = ChronoUnit.SECONDS.between(call.startTime, now);
+                // Calculate and display current call duration
+                if (Log.isDebugEnabled()) {
+                    durationSeconds = ChronoUnit.SECONDS.between(call.startTime, LocalDateTime.now());
                     long minutes = durationSeconds / 60;
                     long seconds = durationSeconds % 60;
-                    System.out.println("Call with " + msisdn + " in progress: " + 
-                                     minutes + ":" + String.format("%02d", seconds) + 
-                                     ", charged for " + (minutes + 1) + " minutes so far");
+                    Log.debug("Call with {} in progress: {}:{}, charged for {} minutes so far", 
+                              msisdn, minutes, String.format("%02d", seconds), call.chargedMinutes + 1);
                 }
+                return;
             }
+            
+            Log.info("User " + msisdn + " ran out of balance, ending call");
+            callsEndedBalance.increment();
+            call.active = false;
+            call.endTime = LocalDateTime.now();
+            call.chargeTimer = null;
+            
+            // Balance is used up (can't go negative)
+            finalBalance = BalanceLedger.toAmount(remainingCents);
+            call.currentBalance = finalBalance;
+            
+            durationSeconds = ChronoUnit.SECONDS.between(call.startTime, call.endTime);
+            billableMinutes = call.chargedMinutes;
+            callCost = BalanceLedger.toAmount(call.chargedCents);
+        }
+        
+        // Remove from active calls (unless the MSISDN already started a new one)
+        activeCalls.remove(msisdn, call);
+        unregisterMedia(call);
+        
+        // Calculate actual minutes for display/logging
+        long actualMinutes = durationSeconds / 60;
+        long remainingSeconds = durationSeconds % 60;
+        
+        Log.info("Call terminated due to insufficient funds");
+        Log.info("Call duration: " + actualMinutes + " minutes, " + remainingSeconds + " seconds");
+        Log.info("Billable minutes: " + billableMinutes);
+        Log.info("Call cost: " + callCost + " L.E. (limited by available balance)");
+        Log.info("Final balance: " + finalBalance + " L.E.");
+        
+        // Send termination message to mobile
+        sendTerminationMessage(msisdn, "Insufficient Balance");
+        
+        // Save call audio to WAV file, then generate CDR with reason "Insufficient Balance"
+        stopPlayback(call);
+        long cdrMinutes = billableMinutes;
+        long cdrSeconds = durationSeconds;
+        double cdrCost = callCost;
+        double cdrBalance = finalBalance;
+        runInBackground(() -> {
+            saveCallAudio(call);
+            generateCDR(call, cdrMinutes, cdrSeconds, cdrCost, cdrBalance, "Insufficient Balance");
+        });
+    }
+    
+    // Blocking file work after a call (closing the recording, queueing the CDR), on the post-call
+    // threads so signaling and charge ticks don't wait on the disk. While MAX_BACKGROUND_TASKS are
+    // running, the caller waits for one to finish.
+    private void runInBackground(Runnable task) {
+        try {
+            backgroundThreads.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Only once cleanup() has stopped the pool, when signaling is already down: run it here
+            // rather than lose the call's recording and CDR
+            task.run();
         }
     }
     
     private void sendTerminationMessage(String msisdn, String reason) {
         try {
-            Socket socket = clientSockets.get(msisdn);
-            if (socket != null && !socket.isClosed()) {
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            SignalingServer.Connection connection = clientConnections.get(msisdn);
+            if (connection != null && connection.isOpen()) {
                 String terminationMessage = "TERMINATE_CALL:" + reason;
                 
                 // Encrypt the message if we have a key for this client
@@ -580,214 +1423,421 @@ public class MSC {
                 
                 if (clientKey != null && iv != null) {
                     // Encrypt and send
-                    String encryptedMsg = SecurityUtils.encryptStringAES(terminationMessage, clientKey, iv);
-                    out.println("ENC:" + encryptedMsg);
-                    System.out.println("Sent encrypted termination message to mobile " + msisdn + ": " + terminationMessage);
+                    if (connection.isBinary()) {
+                        byte[] frame = SignalingCodec.encode(SignalingCodec.TERMINATE_CALL, reason);
+                        connection.sendFrame(SignalingCodec.ENCRYPTED, SecurityUtils.encryptAES(frame, clientKey, iv));
+                    } else {
+                        String encryptedMsg = SecurityUtils.encryptStringAES(terminationMessage, clientKey, iv);
+                        connection.send("ENC:" + encryptedMsg);
+                    }
+                    Log.info("Sent encrypted termination message to mobile " + msisdn + ": " + terminationMessage);
                 } else {
                     // Fallback to unencrypted
-                    out.println(terminationMessage);
-                    System.out.println("WARNING: Sent unencrypted termination message to mobile " + msisdn + ": " + terminationMessage);
+                    if (connection.isBinary()) {
+                        connection.sendFrame(SignalingCodec.TERMINATE_CALL, reason.getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        connection.send(terminationMessage);
+                    }
+                    Log.warn("WARNING: Sent unencrypted termination message to mobile " + msisdn + ": " + terminationMessage);
                 }
             } else {
-                System.out.println("No active socket found for MSISDN " + msisdn + " to send termination message");
+                Log.info("No active socket found for MSISDN " + msisdn + " to send termination message");
             }
         } catch (Exception e) {
-            System.err.println("Error sending termination message: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Error sending termination message: " + e.getMessage(), e);
         }
     }
     
-    private void handleVoiceData() {
+    // Open the speaker line shared by all voice receivers, or null if playback isn't supported
+    private SourceDataLine openPlaybackLine() throws LineUnavailableException {
+        // Setup audio output
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, SAMPLE_SIZE_IN_BITS, 
+                                           CHANNELS, SIGNED, BIG_ENDIAN);
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        
+        if (!AudioSystem.isLineSupported(info)) {
+            Log.error("Line not supported");
+            return null;
+        }
+        
+        Log.info("Audio playback system initialized successfully");
+        
+        SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
+        line.open(format, BUFFER_SIZE * 5); // Larger buffer to prevent underruns
+        line.start();
+        
+        Log.info("Audio playback started");
+        return line;
+    }
+    
+    // Bind the voice port. With several receivers every channel binds the same port with
+    // SO_REUSEPORT and the kernel spreads callers across them by source address.
+    private DatagramChannel[] openVoiceChannels(int receivers) throws IOException {
+        if (receivers > 1) {
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    Log.info("SO_REUSEPORT is not available - using a single voice receiver");
+                    receivers = 1;
+                }
+            }
+        }
+        
+        DatagramChannel[] channels = new DatagramChannel[receivers];
+        for (int i = 0; i < receivers; i++) {
+            channels[i] = DatagramChannel.open();
+            if (receivers > 1) {
+                channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channels[i].bind(new InetSocketAddress(UDP_PORT));
+        }
+        return channels;
+    }
+    
+    private void startVoiceReceivers() {
         try {
-            // Setup audio output
-            AudioFormat format = new AudioFormat(SAMPLE_RATE, SAMPLE_SIZE_IN_BITS, 
-                                               CHANNELS, SIGNED, BIG_ENDIAN);
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-            
-            if (!AudioSystem.isLineSupported(info)) {
-                System.err.println("Line not supported");
-                return;
+            // Calls are still received and recorded without an audio output, just not played
+            SourceDataLine line = null;
+            try {
+                line = openPlaybackLine();
+            } catch (LineUnavailableException e) {
+                Log.error("Audio playback unavailable: " + e.getMessage());
+            }
+            if (line != null) {
+                playbackMixer = new PlaybackMixer(line, SAMPLE_RATE, PLAYBACK_FRAME_MILLIS, 
+                                                  PLAYBACK_JITTER_MILLIS, PLAYBACK_PREBUFFER_MILLIS);
+            } else {
+                Log.info("No audio output - calls will be recorded but not played");
             }
             
-            System.out.println("Audio playback system initialized successfully");
-            
-            SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
-            line.open(format, BUFFER_SIZE * 5); // Larger buffer to prevent underruns
-            line.start();
-            
-            System.out.println("Audio playback started");
-            
+            // One thread per channel; each only ever sees its own shard of calls
+            for (int i = 0; i < voiceChannels.length; i++) {
+                DatagramChannel channel = voiceChannels[i];
+                int receiverIndex = i;
+                new Thread(() -> handleVoiceData(channel, receiverIndex), "voice-receiver-" + i).start();
+            }
+        } catch (Exception e) {
+            Log.error("Error handling voice data: " + e.getMessage(), e);
+        }
+    }
+    
+    private void handleVoiceData(DatagramChannel channel, int receiverIndex) {
+        try {
             byte[] buffer = new byte[BUFFER_SIZE * 2]; // Increase buffer size for encrypted data
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             
-            System.out.println("Voice data handler ready - waiting for packets on UDP port " + UDP_PORT);
+            // Packets are decrypted between two reusable buffers, so the steady state allocates nothing
+            ByteBuffer received = ByteBuffer.wrap(buffer);
+            byte[] decrypted = new byte[buffer.length];
+            ByteBuffer decryptedBuffer = ByteBuffer.wrap(decrypted);
+            VoiceScratch scratch = new VoiceScratch(buffer.length);
+            MediaHeader header = new MediaHeader();
+            byte[] reordered = new byte[buffer.length]; // A held packet, released by the call's sequencer
+            
+            Log.info("Voice data handler " + receiverIndex + 
+                             " ready - waiting for packets on UDP port " + UDP_PORT);
             int packetCount = 0;
             int playedPacketCount = 0;
             
-            while (true) {
-                // Clear buffer before receive
-                Arrays.fill(buffer, (byte) 0);
-                packet.setLength(buffer.length);
-                
-                voiceSocket.receive(packet);
+            while (running) {
+                received.clear();
+                InetSocketAddress source = (InetSocketAddress) channel.receive(received);
+                long receiveNanos = System.nanoTime();
+                received.flip();
                 packetCount++;
+                packetsReceived.increment();
                 
                 if (packetCount % 20 == 0) {
-                    System.out.println("Received " + packetCount + " packets, played " + 
-                                      playedPacketCount + " packets");
+                    Log.debug("Received {} packets, played {} packets", packetCount, playedPacketCount);
                 }
                 
-                // Get packet source address for logging
-                String sourceAddress = packet.getAddress().getHostAddress();
-                int sourcePort = packet.getPort();
+                // Display the number of active calls to debug
+                if (packetCount == 1 || packetCount % 50 == 0) {
+                    Log.debug("Current active calls: {}", activeCalls.size());
+                }
                 
-                // Check if packet is from an active call - match by IP address only
-                boolean isActiveCall = false;
-                String activeMsisdn = null;
+                // Resolve the packet to its call: by the SSRC of its media header, if it has one of a
+                // call, otherwise by source endpoint
                 UserCall activeCall = null;
-                
-                // Display all active calls to debug
-                if (packetCount == 1 || packetCount % 50 == 0) {
-                    System.out.println("Current active calls: " + activeCalls.size());
-                    for (Map.Entry<String, UserCall> entry : activeCalls.entrySet()) {
-                        UserCall call = entry.getValue();
-                        System.out.println("  - MSISDN: " + call.msisdn + 
-                                         ", IP: " + call.address.getHostAddress() +
-                                         ", Active: " + call.active);
-                    }
+                boolean headered = header.peek(received);
+                if (headered) {
+                    activeCall = mediaSessions.lookup(header.getSsrc());
+                    headered = activeCall != null && activeCall.ssrc == header.getSsrc();
                 }
+                if (!headered) {
+                    activeCall = mediaSessions.lookup(source);
+                }
+                boolean isActiveCall = activeCall != null && activeCall.active;
+                String activeMsisdn = isActiveCall ? activeCall.msisdn : null;
                 
-                for (UserCall call : activeCalls.values()) {
-                    // Compare only IP addresses, not ports - simpler logic for testing
-                    if (call.active && call.address.getHostAddress().equals(packet.getAddress().getHostAddress())) {
-                        isActiveCall = true;
-                        activeMsisdn = call.msisdn;
-                        activeCall = call;
-                        
-                        // Update port if it changed
-                        if (call.port != packet.getPort()) {
-                            System.out.println("Updating source port for " + call.msisdn + 
-                                             " from " + call.port + " to " + packet.getPort());
-                            call.port = packet.getPort();
-                        }
-                        
-                        // First packet from this call
-                        if (playedPacketCount == 0) {
-                            System.out.println("First packet from " + activeMsisdn + 
-                                              " at " + sourceAddress + ":" + sourcePort);
+                if (isActiveCall) {
+                    // Update port if it changed
+                    if (activeCall.port != source.getPort()) {
+                        // Can happen on every packet while a NAT keeps rebinding, so only at debug
+                        if (Log.isDebugEnabled()) {
+                            Log.debug("Updating source port for {} from {} to {}", activeCall.msisdn, 
+                                      activeCall.port, source.getPort());
                         }
-                        break;
+                        activeCall.port = source.getPort();
+                    }
+                    
+                    // First packet from this call
+                    if (playedPacketCount == 0) {
+                        Log.debug("First packet from {} at {}", activeMsisdn, source);
                     }
                 }
                 
                 // Only play audio if from active call
                 if (isActiveCall && activeCall != null) {
                     // If we're getting audio data, decrypt and play it
-                    if (packet.getLength() > 0) {
-                        byte[] audioData = packet.getData();
-                        int audioLength = packet.getLength();
-                        
-                        // Get the encryption key for this MSISDN
-                        SecretKey clientKey = clientKeys.get(activeMsisdn);
-                        byte[] iv = clientIVs.get(activeMsisdn);
+                    int audioLength = received.remaining();
+                    if (audioLength > 0) {
+                        byte[] audioData = buffer;
                         
-                        if (clientKey != null && iv != null) {
-                            try {
-                                // Decrypt the audio data using the specialized audio decryption method
-                                byte[] decryptedData = SecurityUtils.decryptAudioAES(
-                                    Arrays.copyOf(audioData, audioLength), clientKey, iv, 0);
-                                
-                                // Store a copy of the decrypted audio data for recording
-                                activeCall.audioData.write(decryptedData, 0, decryptedData.length);
-                                
-                                // Play the decrypted audio
-                                line.write(decryptedData, 0, decryptedData.length);
-                                playedPacketCount++;
-                                
-                                if (playedPacketCount == 1) {
-                                    System.out.println("Started playing audio from first packet (decrypted)");
-                                }
-                                
-                                if (playedPacketCount % 50 == 0) {
-                                    System.out.println("Playing decrypted audio from MSISDN: " + activeMsisdn + 
-                                                    " at " + sourceAddress + ":" + sourcePort +
-                                                    " (packet size: " + audioLength + " bytes, decrypted size: " 
-                                                    + decryptedData.length + " bytes)");
-                                }
-                            } catch (Exception e) {
-                                System.err.println("Error decrypting audio data: " + e.getMessage());
-                                
-                                // Try to determine if this is an unencrypted legacy packet
-                                boolean looksLikeUnencryptedAudio = false;
-                                
-                                // Audio data typically has alternating positive and negative values
-                                // Check a small sample of the data to see if it looks like audio
-                                if (audioLength > 10) {
-                                    int nonZeroCount = 0;
-                                    for (int i = 0; i < Math.min(20, audioLength); i++) {
-                                        if (audioData[i] != 0) nonZeroCount++;
+                        // The kernel keeps a caller on one receiver, but if a port change moves it
+                        // mid-stream the lock still keeps its cipher and recording single-threaded
+                        synchronized (activeCall) {
+                            // Get the cached voice cipher for this call
+                            AudioCryptoContext crypto = activeCall.crypto;
+                            
+                            if (crypto != null) {
+                                try {
+                                    // Decrypt the audio data straight from the receive buffer
+                                    decryptedBuffer.clear();
+                                    long decryptStart = System.nanoTime();
+                                    int decryptedLength = headered
+                                            ? crypto.decrypt(header, received, decryptedBuffer)
+                                            : SecurityUtils.decryptAudioAES(received, decryptedBuffer, crypto);
+                                    decryptTime.recordSince(decryptStart);
+                                    int decryptedOffset = decryptedBuffer.position();
+                                    
+                                    if (headered) {
+                                        // Played in sequence order; an early packet waits for the gap before it
+                                        MediaSequencer sequencer = activeCall.sequencer;
+                                        if (sequencer.accept(header, receiveNanos, decrypted, decryptedOffset, decryptedLength)) {
+                                            playPacket(activeCall, scratch, header.getPayloadType() == MediaHeader.PT_COMFORT_NOISE, 
+                                                       header.getTimestamp(), decrypted, decryptedOffset, decryptedLength);
+                                        }
+                                        int reorderedLength;
+                                        while ((reorderedLength = sequencer.poll(reordered, 0)) >= 0) {
+                                            playPacket(activeCall, scratch, sequencer.getPolledType() == MediaHeader.PT_COMFORT_NOISE, 
+                                                       sequencer.getPolledTimestamp(), reordered, 0, reorderedLength);
+                                        }
+                                    } else {
+                                        // Without a header, a SID is told apart by its length
+                                        playPacket(activeCall, scratch, 
+                                                   activeCall.comfortNoise && decryptedLength == ComfortNoise.SID_LENGTH, 
+                                                   0, decrypted, decryptedOffset, decryptedLength);
                                     }
-                                    // If we have some non-zero bytes, it might be unencrypted audio
-                                    looksLikeUnencryptedAudio = (nonZeroCount > 5);
-                                }
-                                
-                                if (looksLikeUnencryptedAudio) {
-                                    System.out.println("Packet appears to be unencrypted audio, playing in legacy mode");
-                                    activeCall.audioData.write(audioData, 0, audioLength);
-                                    line.write(audioData, 0, audioLength);
                                     playedPacketCount++;
-                                } else {
-                                    System.err.println("Audio packet cannot be decrypted or played, skipping");
+                                    
+                                    if (playedPacketCount == 1) {
+                                        Log.debug("Started playing audio from first packet (decrypted)");
+                                    }
+                                    
+                                    if (playedPacketCount % 50 == 0) {
+                                        Log.debug("Playing decrypted audio from MSISDN: {} at {} (packet size: {} bytes, decrypted size: {} bytes)", 
+                                                  activeMsisdn, source, audioLength, decryptedLength);
+                                    }
+                                } catch (Exception e) {
+                                    Log.error(DECRYPT_ERROR_LOG, "Error decrypting audio data: {}", e.getMessage());
+                                    packetsDecryptFailed.increment();
+                                    
+                                    // Try to determine if this is an unencrypted legacy packet
+                                    boolean looksLikeUnencryptedAudio = false;
+                                    
+                                    // Audio data typically has alternating positive and negative values
+                                    // Check a small sample of the data to see if it looks like audio.
+                                    // A GCM call never falls back: a failed tag means a corrupted or forged packet.
+                                    // Nor does a compressed call: its audio can't be played as PCM, nor a
+                                    // packet with a media header.
+                                    if (audioLength > 10 && !headered && crypto.getMode() != AudioCryptoContext.Mode.GCM && 
+                                            activeCall.codec.isPcm()) {
+                                        int nonZeroCount = 0;
+                                        for (int i = 0; i < Math.min(20, audioLength); i++) {
+                                            if (audioData[i] != 0) nonZeroCount++;
+                                        }
+                                        // If we have some non-zero bytes, it might be unencrypted audio
+                                        looksLikeUnencryptedAudio = (nonZeroCount > 5);
+                                    }
+                                    
+                                    if (looksLikeUnencryptedAudio) {
+                                        Log.warn(LEGACY_AUDIO_LOG, "Packet appears to be unencrypted audio, playing in legacy mode");
+                                        recordAudio(activeCall, audioData, 0, audioLength);
+                                        playAudio(activeCall, audioData, 0, audioLength);
+                                        playedPacketCount++;
+                                        packetsPlayed.increment();
+                                    } else {
+                                        Log.error(UNPLAYABLE_AUDIO_LOG, "Audio packet cannot be decrypted or played, skipping");
+                                    }
                                 }
+                            } else {
+                                // No encryption key, play as-is (for backward compatibility)
+                                Log.warn(LEGACY_AUDIO_LOG, "No encryption key for MSISDN {}, playing unencrypted audio", activeMsisdn);
+                                recordAudio(activeCall, audioData, 0, audioLength);
+                                playAudio(activeCall, audioData, 0, audioLength);
+                                playedPacketCount++;
+                                packetsPlayed.increment();
                             }
-                        } else {
-                            // No encryption key, play as-is (for backward compatibility)
-                            System.out.println("No encryption key for MSISDN " + activeMsisdn + 
-                                            ", playing unencrypted audio");
-                            activeCall.audioData.write(audioData, 0, audioLength);
-                            line.write(audioData, 0, audioLength);
-                            playedPacketCount++;
                         }
                     }
                 } else {
+                    packetsIgnored.increment();
                     if (packetCount % 20 == 0) {
-                        System.out.println("Ignoring packet from " + sourceAddress + ":" + sourcePort + 
-                                          " - not from active call");
+                        Log.debug("Ignoring packet from {} - not from active call", source);
                     }
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error handling voice data: " + e.getMessage());
-            e.printStackTrace();
+            if (running) {
+                Log.error("Error handling voice data: " + e.getMessage(), e);
+            }
+        }
+    }
+    
+    // Per receiver thread buffers for playPacket, so the steady state allocates nothing. Compressed
+    // packets are decoded for playback and (except mu-law) re-encoded for recording.
+    private static final class VoiceScratch {
+        final byte[] decoded;
+        final byte[] mulaw;
+        final VoiceCodec recordingCodec = new VoiceCodec.MuLaw();
+        final ComfortNoise noise = new ComfortNoise();
+        
+        VoiceScratch(int packetSize) {
+            decoded = new byte[packetSize * 4]; // Room for the largest expansion, ADPCM's 4:1
+            mulaw = new byte[packetSize * 2];
+        }
+    }
+    
+    // Play and record one decrypted packet of the call: voice in the call's codec, or a silence
+    // descriptor. timestamp is from its media header, if the call has them; any audio missing before
+    // it is concealed first. Caller holds the call's lock.
+    private void playPacket(UserCall call, VoiceScratch scratch, boolean silenceDescriptor, int timestamp, 
+                            byte[] data, int offset, int length) {
+        VoiceCodec codec = call.codec;
+        LossConcealer concealer = call.concealer;
+        if (concealer != null) {
+            int missing = concealer.missing(timestamp);
+            while (missing > 0) {
+                int chunk = Math.min(missing, scratch.decoded.length / 2);
+                concealer.conceal(scratch.decoded, 0, chunk);
+                recordPcm(call, scratch, scratch.decoded, 0, chunk * 2);
+                playAudio(call, scratch.decoded, 0, chunk * 2);
+                missing -= chunk;
+            }
+        }
+        
+        if (silenceDescriptor) {
+            if (length < ComfortNoise.SID_LENGTH) {
+                return;
+            }
+            // Noise for playback, and for the recording as much of it as the caller held back, so
+            // its length is kept
+            int level = ComfortNoise.sidLevel(data, offset);
+            PlaybackMixer.Stream playback = call.playback;
+            if (playback != null) {
+                playback.comfortNoise(level);
+            }
+            int samples = ComfortNoise.sidSamples(data, offset);
+            int done = 0;
+            while (done < samples) {
+                int chunk = Math.min(samples - done, scratch.decoded.length / 2);
+                scratch.noise.fill(scratch.decoded, 0, chunk, level);
+                if (concealer != null) {
+                    concealer.resume(timestamp + done, scratch.decoded, 0, chunk * 2);
+                }
+                recordPcm(call, scratch, scratch.decoded, 0, chunk * 2);
+                done += chunk;
+            }
+            packetsSilence.increment();
+            return;
+        }
+        
+        if (codec.isPcm()) {
+            if (concealer != null) {
+                concealer.resume(timestamp, data, offset, length);
+            }
+            // Store a copy of the decrypted audio data for recording
+            recordAudio(call, data, offset, length);
+            
+            // Play the decrypted audio
+            playAudio(call, data, offset, length);
+        } else {
+            int decodedLength = codec.decode(data, offset, length, scratch.decoded, 0);
+            // A packet cross-faded in after a gap no longer matches its mu-law, so it is re-encoded
+            boolean blended = concealer != null && concealer.resume(timestamp, scratch.decoded, 0, decodedLength);
+            if (codec instanceof VoiceCodec.MuLaw && !blended) {
+                recordAudio(call, data, offset, length);
+            } else {
+                int mulawLength = scratch.recordingCodec.encode(scratch.decoded, 0, decodedLength, scratch.mulaw, 0);
+                recordAudio(call, scratch.mulaw, 0, mulawLength);
+            }
+            playAudio(call, scratch.decoded, 0, decodedLength);
+        }
+        packetsPlayed.increment();
+    }
+    
+    // Record PCM made up at the MSC (comfort noise, concealment) in the call's recording format
+    private void recordPcm(UserCall call, VoiceScratch scratch, byte[] pcm, int offset, int length) {
+        if (call.codec.isPcm()) {
+            recordAudio(call, pcm, offset, length);
+        } else {
+            int mulawLength = scratch.recordingCodec.encode(pcm, offset, length, scratch.mulaw, 0);
+            recordAudio(call, scratch.mulaw, 0, mulawLength);
+        }
+    }
+    
+    // Queue audio in the call's jitter buffer; the mixer thread plays it
+    private void playAudio(UserCall call, byte[] data, int offset, int length) {
+        PlaybackMixer.Stream playback = call.playback;
+        if (playback != null) {
+            playback.write(data, offset, length);
         }
     }
     
     private void cleanup() {
-        System.out.println("Cleaning up MSC resources...");
+        Log.info("Cleaning up MSC resources...");
         
         try {
-            // Close all client sockets
-            for (Socket socket : clientSockets.values()) {
-                try {
-                    if (socket != null && !socket.isClosed()) {
-                        socket.close();
-                    }
-                } catch (IOException e) {
-                    System.err.println("Error closing client socket: " + e.getMessage());
-                }
+            // Close all client connections
+            for (SignalingServer.Connection connection : clientConnections.values()) {
+                connection.close();
             }
             
             // Close signaling server
-            if (signalingServer != null && !signalingServer.isClosed()) {
-                signalingServer.close();
+            if (signalingServer != null) {
+                signalingServer.stop();
+            }
+            if (signalingWorkers != null) {
+                signalingWorkers.shutdown();
+            }
+            if (metricsServer != null) {
+                metricsServer.stop(0);
             }
             
-            // Close voice socket
-            if (voiceSocket != null && !voiceSocket.isClosed()) {
-                voiceSocket.close();
+            // Close voice sockets
+            if (voiceChannels != null) {
+                for (DatagramChannel channel : voiceChannels) {
+                    channel.close();
+                }
+            }
+            
+            if (sessionTickets != null) {
+                Log.info("Session tickets: " + sessionTickets.getIssued() + " issued, " + 
+                                 sessionTickets.getResumed() + " resumed, " + sessionTickets.getMisses() + " rejected, " + 
+                                 sessionTickets.getEvicted() + " evicted");
             }
             
-            // Shutdown scheduler
+            // Stop playback
+            if (playbackMixer != null) {
+                Log.info("Playback totals: " + playbackMixer.getFramesMixed() + " frames mixed, " + 
+                                 playbackMixer.getUnderruns() + " underruns, " + 
+                                 playbackMixer.getOverruns() + " overruns");
+                playbackMixer.stop();
+            }
+            
+            // Stop charge ticks and shutdown scheduler
+            if (chargingTimers != null) {
+                chargingTimers.stop();
+            }
             if (scheduler != null && !scheduler.isShutdown()) {
                 scheduler.shutdownNow();
             }
@@ -795,27 +1845,54 @@ public class MSC {
             // Handle any active calls that weren't properly ended
             for (Map.Entry<String, UserCall> entry : activeCalls.entrySet()) {
                 UserCall call = entry.getValue();
-                if (call.active) {
+                double callCost;
+                double newBalance;
+                long durationSeconds;
+                long billableMinutes;
+                synchronized (call) {
+                    if (!call.active) {
+                        continue;
+                    }
+                    call.active = false;
                     call.endTime = LocalDateTime.now();
+                    callsEndedShutdown.increment();
                     
-                    // Save any collected audio data
-                    saveCallAudio(call);
-                    
-                    // Generate CDR
-                    long durationSeconds = ChronoUnit.SECONDS.between(call.startTime, call.endTime);
-                    long billableMinutes = (durationSeconds + 59) / 60; // Ceiling division
-                    double callCost = billableMinutes * CHARGE_RATE;
-                    double currentBalance = userBalances.get(call.msisdn);
-                    callCost = Math.min(callCost, currentBalance);
-                    double newBalance = currentBalance - callCost;
-                    
-                    generateCDR(call, billableMinutes, durationSeconds, callCost, newBalance, "MSC Shutdown");
+                    // Charge what the ticks haven't; minutes already charged are not charged again
+                    durationSeconds = ChronoUnit.SECONDS.between(call.startTime, call.endTime);
+                    billableMinutes = (durationSeconds + 59) / 60; // Ceiling division
+                    settleCall(call, billableMinutes);
+                    callCost = BalanceLedger.toAmount(call.chargedCents);
+                    newBalance = BalanceLedger.toAmount(balances.get(call.msisdn));
                 }
+                
+                // Save any collected audio data
+                stopPlayback(call);
+                saveCallAudio(call);
+                
+                generateCDR(call, billableMinutes, durationSeconds, callCost, newBalance, "MSC Shutdown");
             }
             
-            System.out.println("MSC cleanup complete");
+            // Let post-call work finish before the CDR file is closed under it
+            if (!backgroundThreads.shutdown(10, TimeUnit.SECONDS)) {
+                Log.error("Post-call work still running at shutdown: " + backgroundThreads.getRunning() + " tasks");
+            }
+            
+            // Every recording is finished by now
+            if (captureWriter != null) {
+                captureWriter.close();
+            }
+            
+            // Write out any CDRs still queued
+            if (cdrWriter != null) {
+                cdrWriter.close();
+            }
+            
+            // Every charge above is already in the store; this makes sure it is on disk too
+            balances.close();
+            
+            Log.info("MSC cleanup complete");
         } catch (Exception e) {
-            System.err.println("Error during cleanup: " + e.getMessage());
+            Log.error("Error during cleanup: " + e.getMessage());
         }
     }
     
@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Persistent balance store: an open-addressing table of fixed-size [key, balance] records in a
+// memory-mapped file. Opening an existing store only maps it, so startup takes the same time for a
+// thousand subscribers as for millions; a lookup hashes the MSISDN key (see BalanceLedger.keyOf)
+// straight to its record. Debits and credits are CAS loops (VarHandle) directly on the mapped balance,
+// so every committed update is in the page cache at once and survives a crash of the MSC; sync()
+// forces the pages to disk so they also survive a power failure.
+//
+// The table does not grow: its capacity is fixed when the file is created (keep it well above the
+// subscriber count), and put fails once it is 3/4 full. Adding subscribers is serialized by a lock;
+// nothing else locks. The file is locked, so only one MSC can open it.
+//
+// File layout (little-endian): a 64 byte header [magic, version, capacity, size], then capacity
+// records of [key: 8 bytes][balance: 8 bytes]; key 0 marks a free record.
+public class MappedBalanceStore implements BalanceStore {
+    private static final long MAGIC = 0x4D5343_42414C31L; // "MSCBAL1"
+    private static final long VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SIZE_OFFSET = 24;
+    private static final int RECORD_SIZE = 16;
+    private static final long EMPTY = 0;
+    private static final int SEGMENT_SHIFT = 26; // 2^26 records (1 GB) per mapping, below the 2 GB limit
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_SHIFT;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final long capacity; // Records, a power of two
+    private final long mask;
+    private final Object insertLock = new Object();
+    private int size;            // Guarded by insertLock; mirrored in the header
+
+    // Open the store at path, creating it with room for capacity records (rounded up to a power of
+    // two) if it doesn't exist. An existing store keeps the capacity it was created with.
+    public MappedBalanceStore(Path path, long capacity) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.fileLock = channel.tryLock();
+            if (fileLock == null) {
+                throw new IOException("Balance store " + path + " is in use by another process");
+            }
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            // A new (or never finished) file is just the header mapping, still all zeros
+            if (channel.size() == HEADER_SIZE && (long) LONGS.get(header, 0) == 0) {
+                long records = Math.max(64, Long.highestOneBit(Math.max(1, capacity - 1)) << 1);
+                LONGS.set(header, 8, VERSION);
+                LONGS.set(header, 16, records);
+                LONGS.set(header, SIZE_OFFSET, 0L);
+                LONGS.setVolatile(header, 0, MAGIC); // Written last: a half-created file is created again
+            } else if ((long) LONGS.get(header, 0) != MAGIC || (long) LONGS.get(header, 8) != VERSION) {
+                throw new IOException(path + " is not a balance store");
+            }
+            this.capacity = (long) LONGS.get(header, 16);
+            this.mask = this.capacity - 1;
+            this.size = (int) (long) LONGS.get(header, SIZE_OFFSET);
+            if (channel.size() > HEADER_SIZE && channel.size() < HEADER_SIZE + this.capacity * RECORD_SIZE) {
+                throw new IOException(path + " is truncated");
+            }
+
+            // Mapping extends a new file; its records are sparse zero pages, i.e. free, until written
+            int count = (int) ((this.capacity + SEGMENT_RECORDS - 1) >>> SEGMENT_SHIFT);
+            this.segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long records = Math.min(SEGMENT_RECORDS, this.capacity - ((long) i << SEGMENT_SHIFT));
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + ((long) i << SEGMENT_SHIFT) * RECORD_SIZE, records * RECORD_SIZE);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void put(String msisdn, long balance) {
+        put(msisdn, balance, true);
+    }
+
+    @Override
+    public boolean putIfAbsent(String msisdn, long balance) {
+        return put(msisdn, balance, false);
+    }
+
+    // Returns true if the subscriber was added
+    private boolean put(String msisdn, long balance, boolean overwrite) {
+        long key = BalanceLedger.keyOf(msisdn);
+        if (key < 0) {
+            throw new IllegalArgumentException("Invalid MSISDN: " + msisdn);
+        }
+        if (balance < 0) {
+            throw new IllegalArgumentException("Negative balance for " + msisdn + ": " + balance);
+        }
+        synchronized (insertLock) {
+            long record = find(key);
+            if (record >= 0) {
+                if (overwrite) {
+                    LONGS.setVolatile(segment(record), balanceOffset(record), balance);
+                }
+                return false;
+            }
+            if ((size + 1) * 4L > capacity * 3L) {
+                throw new IllegalStateException("Balance store " + path + " is full (" + size + " of " +
+                                                capacity + " records in use)");
+            }
+            record = -record - 1; // The free record that ended the probe
+            // The balance is published before the key, so a reader that finds the key sees its balance
+            LONGS.setVolatile(segment(record), balanceOffset(record), balance);
+            LONGS.setVolatile(segment(record), keyOffset(record), key);
+            size++;
+            LONGS.setVolatile(header, SIZE_OFFSET, (long) size);
+            return true;
+        }
+    }
+
+    @Override
+    public long get(String msisdn) {
+        long record = find(BalanceLedger.keyOf(msisdn));
+        return record < 0 ? NOT_FOUND : (long) LONGS.getVolatile(segment(record), balanceOffset(record));
+    }
+
+    @Override
+    public long credit(String msisdn, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Negative credit: " + amount);
+        }
+        long record = find(BalanceLedger.keyOf(msisdn));
+        if (record < 0) {
+            return NOT_FOUND;
+        }
+        MappedByteBuffer segment = segment(record);
+        int offset = balanceOffset(record);
+        while (true) {
+            long balance = (long) LONGS.getVolatile(segment, offset);
+            if (LONGS.compareAndSet(segment, offset, balance, balance + amount)) {
+                return balance + amount;
+            }
+        }
+    }
+
+    @Override
+    public boolean debit(String msisdn, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Negative debit: " + amount);
+        }
+        long record = find(BalanceLedger.keyOf(msisdn));
+        if (record < 0) {
+            return false;
+        }
+        MappedByteBuffer segment = segment(record);
+        int offset = balanceOffset(record);
+        while (true) {
+            long balance = (long) LONGS.getVolatile(segment, offset);
+            if (balance < amount) {
+                return false;
+            }
+            if (LONGS.compareAndSet(segment, offset, balance, balance - amount)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public long debitUpTo(String msisdn, long amount) {
+        if (amount <= 0) {
+            return 0;
+        }
+        long record = find(BalanceLedger.keyOf(msisdn));
+        if (record < 0) {
+            return 0;
+        }
+        MappedByteBuffer segment = segment(record);
+        int offset = balanceOffset(record);
+        while (true) {
+            long balance = (long) LONGS.getVolatile(segment, offset);
+            long taken = Math.min(balance, amount);
+            if (LONGS.compareAndSet(segment, offset, balance, balance - taken)) {
+                return taken;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        synchronized (insertLock) {
+            return size;
+        }
+    }
+
+    @Override
+    public void sync() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        header.force();
+    }
+
+    // Write everything to disk and release the file. The mappings stay valid until they are
+    // garbage collected, so the store must not be used afterwards.
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            try {
+                fileLock.release();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // Record holding the key, or -(free record ending the probe) - 1. The table is never full, so
+    // the probe always ends at the key or at a free record.
+    private long find(long key) {
+        if (key < 0) {
+            return -1;
+        }
+        long record = BalanceLedger.mix(key) & mask;
+        while (true) {
+            long k = (long) LONGS.getVolatile(segment(record), keyOffset(record));
+            if (k == key) {
+                return record;
+            }
+            if (k == EMPTY) {
+                return -record - 1;
+            }
+            record = (record + 1) & mask;
+        }
+    }
+
+    private MappedByteBuffer segment(long record) {
+        return segments[(int) (record >>> SEGMENT_SHIFT)];
+    }
+
+    private static int keyOffset(long record) {
+        return (int) (record & (SEGMENT_RECORDS - 1)) * RECORD_SIZE;
+    }
+
+    private static int balanceOffset(long record) {
+        return keyOffset(record) + 8;
+    }
+}
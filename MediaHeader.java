@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+
+// Clear-text header in front of every voice packet once the MSC has assigned the call an SSRC,
+// modelled on RTP. 14 bytes, big-endian:
+//
+//   0   version (top 2 bits, VERSION), the rest reserved (0)
+//   1   marker bit (first packet of a talk spurt) and 7-bit payload type: PT_VOICE for the call's
+//       codec, PT_COMFORT_NOISE for a silence descriptor (RTP's static CN type)
+//   2   sequence number, one per packet sent, starting at 0
+//   6   timestamp of the first sample, in samples at the call rate; it keeps counting through
+//       audio held back during silence
+//   10  SSRC: the stream id the MSC handed out at call setup, which finds the call without a
+//       lookup by address
+//
+// With AES-GCM the sequence number is the packet's nonce (after the first 8 bytes of the session
+// IV) and the whole header is authenticated as additional data, so it can't be altered in flight.
+// One instance is reused per sender or receiver thread; it isn't thread-safe.
+public final class MediaHeader {
+    public static final int LENGTH = 14;
+    public static final int VERSION = 2;
+    public static final int PT_VOICE = 0;
+    public static final int PT_COMFORT_NOISE = 13;
+
+    private static final int MARKER = 0x80;
+
+    int payloadType;
+    boolean marker;
+    int sequence;
+    int timestamp;
+    int ssrc;
+
+    public MediaHeader set(int payloadType, boolean marker, int timestamp, int ssrc) {
+        this.payloadType = payloadType;
+        this.marker = marker;
+        this.timestamp = timestamp;
+        this.ssrc = ssrc;
+        return this;
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public boolean isMarker() {
+        return marker;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public int getTimestamp() {
+        return timestamp;
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    // Write the header at out's position and advance past it
+    public void write(ByteBuffer out) {
+        out.put((byte) (VERSION << 6));
+        out.put((byte) ((marker ? MARKER : 0) | (payloadType & 0x7F)));
+        out.putInt(sequence);
+        out.putInt(timestamp);
+        out.putInt(ssrc);
+    }
+
+    // Read the header at packet's position without consuming it; false (and the fields undefined)
+    // if the packet is too short or of another version, e.g. a packet without a header
+    public boolean peek(ByteBuffer packet) {
+        int start = packet.position();
+        if (packet.limit() - start < LENGTH || (packet.get(start) & 0xFF) >>> 6 != VERSION) {
+            return false;
+        }
+        int flags = packet.get(start + 1) & 0xFF;
+        marker = (flags & MARKER) != 0;
+        payloadType = flags & 0x7F;
+        sequence = packet.getInt(start + 2);
+        timestamp = packet.getInt(start + 6);
+        ssrc = packet.getInt(start + 10);
+        return true;
+    }
+}
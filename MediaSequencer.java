@@ -0,0 +1,216 @@
+import java.util.concurrent.TimeUnit;
+
+// Puts one call's voice packets back in sequence-number order (see MediaHeader) and keeps its
+// receive statistics. A packet that arrives early, i.e. after a gap, is held until the missing
+// ones turn up; once depth packets are waiting, the gap is given up as lost and playout skips
+// ahead. Packets older than the playout point (late, or duplicates) are dropped, so audio is never
+// played out of order. A lossless, in-order stream passes straight through.
+//
+// Jitter is the interarrival jitter of RFC 3550: the smoothed variation in transit time, measured
+// against the packets' sample timestamps. Not thread-safe; the call's voice receiver uses it under
+// the call's lock.
+public final class MediaSequencer {
+    private static final int WINDOW = 64; // Recently played sequence numbers remembered to spot duplicates
+
+    private final int clockRate;
+    private final int depth;
+    private final int maxPayload;
+
+    // Packets held while waiting for a gap to fill, in no particular order
+    private final int[] heldSequence;
+    private final int[] heldType;
+    private final int[] heldTimestamp;
+    private final int[] heldLength;
+    private final byte[][] heldData; // Allocated on first use; most calls never reorder
+    private int held;
+
+    private boolean started;
+    private int expected;      // Sequence number of the next packet to play
+    private long playedMask;   // Bit i: expected - 1 - i was played
+    private int polledType;
+    private int polledTimestamp;
+
+    private boolean timed;
+    private long lastArrivalNanos;
+    private int lastTimestamp;
+    private double jitter;     // In samples
+
+    private long received;
+    private long lost;
+    private long late;
+    private long duplicates;
+    private long reordered;
+
+    // depth 0 plays whatever arrives next and counts the skipped packets as lost
+    public MediaSequencer(int clockRate, int depth, int maxPayload) {
+        this.clockRate = clockRate;
+        this.depth = Math.max(0, depth);
+        this.maxPayload = maxPayload;
+        this.heldSequence = new int[this.depth];
+        this.heldType = new int[this.depth];
+        this.heldTimestamp = new int[this.depth];
+        this.heldLength = new int[this.depth];
+        this.heldData = new byte[this.depth][];
+    }
+
+    // Take a decrypted packet. Returns true if it is next in order and is to be played now, false if
+    // it was held or dropped. Either way, poll() afterwards until it returns -1 for the held packets
+    // that are now in order.
+    public boolean accept(MediaHeader header, long arrivalNanos, byte[] payload, int offset, int length) {
+        int sequence = header.getSequence();
+        if (!started) {
+            started = true;
+            expected = sequence;
+        }
+
+        int ahead = sequence - expected;
+        if (ahead < 0) {
+            int age = -ahead - 1;
+            if (age < WINDOW && (playedMask & (1L << age)) != 0) {
+                duplicates++;
+            } else {
+                late++;
+            }
+            return false;
+        }
+        if (ahead > 0 && isHeld(sequence)) {
+            duplicates++;
+            return false;
+        }
+
+        received++;
+        updateJitter(header.getTimestamp(), arrivalNanos);
+        if (ahead == 0) {
+            advance(1);
+            return true;
+        }
+        if (depth == 0) {
+            lost += ahead;
+            advance(ahead + 1);
+            return true;
+        }
+
+        if (held == depth) {
+            // No room: give up on the oldest gap and play what is held beyond it first
+            skipToOldestHeld();
+        }
+        int slot = held++;
+        if (heldData[slot] == null) {
+            heldData[slot] = new byte[maxPayload];
+        }
+        heldSequence[slot] = sequence;
+        heldType[slot] = header.getPayloadType();
+        heldTimestamp[slot] = header.getTimestamp();
+        heldLength[slot] = Math.min(length, maxPayload);
+        System.arraycopy(payload, offset, heldData[slot], 0, heldLength[slot]);
+        if (held == depth) {
+            skipToOldestHeld();
+        }
+        return false;
+    }
+
+    // Copy the next held packet that is now in order into out and return its length, or -1 if
+    // there is none; getPolledType() and getPolledTimestamp() give its header fields
+    public int poll(byte[] out, int offset) {
+        for (int slot = 0; slot < held; slot++) {
+            if (heldSequence[slot] == expected) {
+                int length = heldLength[slot];
+                System.arraycopy(heldData[slot], 0, out, offset, length);
+                polledType = heldType[slot];
+                polledTimestamp = heldTimestamp[slot];
+                removeHeld(slot);
+                advance(1);
+                reordered++;
+                return length;
+            }
+        }
+        return -1;
+    }
+
+    public int getPolledType() {
+        return polledType;
+    }
+
+    public int getPolledTimestamp() {
+        return polledTimestamp;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    // Packets never played because they didn't arrive in time (a late arrival is also counted late)
+    public long getLost() {
+        return lost;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    // Packets that arrived early and were played in order after waiting
+    public long getReordered() {
+        return reordered;
+    }
+
+    public long getJitterNanos() {
+        return (long) (jitter * TimeUnit.SECONDS.toNanos(1) / clockRate);
+    }
+
+    // Difference in transit time from the previous packet: arrival spacing minus timestamp spacing
+    private void updateJitter(int timestamp, long arrivalNanos) {
+        if (timed) {
+            double arrivalSamples = (arrivalNanos - lastArrivalNanos) * (double) clockRate / TimeUnit.SECONDS.toNanos(1);
+            double difference = Math.abs(arrivalSamples - (timestamp - lastTimestamp));
+            jitter += (difference - jitter) / 16;
+        }
+        lastArrivalNanos = arrivalNanos;
+        lastTimestamp = timestamp;
+        timed = true;
+    }
+
+    private void advance(int count) {
+        playedMask = count >= WINDOW ? 0 : playedMask << count;
+        playedMask |= 1; // The packet just played; skipped ones stay unmarked
+        expected += count;
+    }
+
+    private void skipToOldestHeld() {
+        int oldest = 0;
+        for (int slot = 1; slot < held; slot++) {
+            if (heldSequence[slot] - heldSequence[oldest] < 0) {
+                oldest = slot;
+            }
+        }
+        int skipped = heldSequence[oldest] - expected;
+        lost += skipped;
+        playedMask = skipped >= WINDOW ? 0 : playedMask << skipped;
+        expected = heldSequence[oldest];
+    }
+
+    private boolean isHeld(int sequence) {
+        for (int slot = 0; slot < held; slot++) {
+            if (heldSequence[slot] == sequence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeHeld(int slot) {
+        int last = --held;
+        if (slot != last) {
+            byte[] data = heldData[slot];
+            heldSequence[slot] = heldSequence[last];
+            heldType[slot] = heldType[last];
+            heldTimestamp[slot] = heldTimestamp[last];
+            heldLength[slot] = heldLength[last];
+            heldData[slot] = heldData[last];
+            heldData[last] = data;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Resolves voice datagrams to their call in constant time instead of scanning every active call.
+// Calls are registered by the caller's IP (the UDP source port is unknown until the first packet
+// arrives); the first packet binds the call to its exact source endpoint, and every later packet
+// is a single lock-free map lookup.
+//
+// Calls whose packets carry a MediaHeader are found by its SSRC instead, which doesn't depend on
+// the caller's address at all. An SSRC is a slot in a fixed table (low 16 bits) plus a random tag
+// (high 16 bits) that must match the slot's current SSRC, so a stale or guessed SSRC finds nothing:
+// the lookup is an array read and a compare. SSRCs are reserved during call setup, before the call
+// exists, and freed when the call is unregistered (or released if it never started).
+public class MediaSessionIndex<T> {
+    private static final int MAX_SSRC_SLOTS = 1 << 16;
+
+    private final AtomicReferenceArray<T> bySsrc;
+    private final AtomicIntegerArray ssrcs;          // Current SSRC of each slot, 0 when free
+    private final Deque<Integer> freeSlots = new ArrayDeque<>(); // Guarded by this
+    private int nextSlot;                              // Slots below this have been handed out before
+    private final Map<T, Integer> ssrcOf = new IdentityHashMap<>(); // Guarded by this
+
+    // Bound sessions, keyed by the exact source address of their voice stream
+    private final ConcurrentHashMap<InetSocketAddress, T> byEndpoint = new ConcurrentHashMap<>();
+
+    // All registered sessions per caller IP, oldest first (guarded by this)
+    private final Map<InetAddress, List<T>> byAddress = new HashMap<>();
+
+    // Endpoint each session is currently bound to, if any (guarded by this)
+    private final Map<T, InetSocketAddress> endpointOf = new IdentityHashMap<>();
+
+    public MediaSessionIndex() {
+        this(MAX_SSRC_SLOTS);
+    }
+
+    // At most ssrcSlots calls (up to 65536) can hold an SSRC at once
+    public MediaSessionIndex(int ssrcSlots) {
+        int slots = Math.max(1, Math.min(MAX_SSRC_SLOTS, ssrcSlots));
+        this.bySsrc = new AtomicReferenceArray<>(slots);
+        this.ssrcs = new AtomicIntegerArray(slots);
+    }
+
+    public synchronized void register(InetAddress callerAddress, T session) {
+        byAddress.computeIfAbsent(callerAddress, a -> new ArrayList<>(1)).add(session);
+    }
+
+    // Also make the session reachable by an SSRC from reserveSsrc(); 0 for none
+    public synchronized void register(InetAddress callerAddress, T session, int ssrc) {
+        register(callerAddress, session);
+        int slot = ssrc & 0xFFFF;
+        if (ssrc != 0 && slot < ssrcs.length() && ssrcs.get(slot) == ssrc) {
+            ssrcOf.put(session, ssrc);
+            bySsrc.set(slot, session);
+        }
+    }
+
+    // A new SSRC for a call being set up, or 0 if every slot is taken
+    public synchronized int reserveSsrc() {
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            if (nextSlot == ssrcs.length()) {
+                return 0;
+            }
+            slot = nextSlot++;
+        }
+        int tag = ThreadLocalRandom.current().nextInt(1, 1 << 16);
+        int ssrc = (tag << 16) | slot;
+        ssrcs.set(slot, ssrc);
+        return ssrc;
+    }
+
+    // Free an SSRC that was reserved but never registered with a session
+    public synchronized void releaseSsrc(int ssrc) {
+        int slot = ssrc & 0xFFFF;
+        if (ssrc != 0 && slot < ssrcs.length() && ssrcs.get(slot) == ssrc && bySsrc.get(slot) == null) {
+            ssrcs.set(slot, 0);
+            freeSlots.add(slot);
+        }
+    }
+
+    // The session holding this SSRC, or null
+    public T lookup(int ssrc) {
+        int slot = ssrc & 0xFFFF;
+        if (slot >= ssrcs.length() || ssrcs.get(slot) != ssrc || ssrc == 0) {
+            return null;
+        }
+        T session = bySsrc.get(slot);
+        // The slot may have been freed and handed out again in between
+        return ssrcs.get(slot) == ssrc ? session : null;
+    }
+
+    public synchronized void unregister(InetAddress callerAddress, T session) {
+        List<T> sessions = byAddress.get(callerAddress);
+        if (sessions != null) {
+            sessions.remove(session);
+            if (sessions.isEmpty()) {
+                byAddress.remove(callerAddress);
+            }
+        }
+
+        InetSocketAddress endpoint = endpointOf.remove(session);
+        if (endpoint != null) {
+            byEndpoint.remove(endpoint, session);
+        }
+
+        Integer ssrc = ssrcOf.remove(session);
+        if (ssrc != null) {
+            int slot = ssrc & 0xFFFF;
+            bySsrc.set(slot, null);
+            ssrcs.set(slot, 0);
+            freeSlots.add(slot);
+        }
+    }
+
+    // Find the session a packet from this source belongs to, or null if it isn't part of an active call
+    public T lookup(InetSocketAddress source) {
+        T session = byEndpoint.get(source);
+        if (session != null) {
+            return session;
+        }
+        return bind(source);
+    }
+
+    // Slow path, only taken for the first packet of a call or when a caller's source port changes
+    private synchronized T bind(InetSocketAddress source) {
+        T session = byEndpoint.get(source);
+        if (session != null) {
+            return session;
+        }
+
+        List<T> sessions = byAddress.get(source.getAddress());
+        if (sessions == null) {
+            return null;
+        }
+
+        // Prefer the oldest call from this IP that hasn't received any voice yet
+        T candidate = null;
+        for (T s : sessions) {
+            if (!endpointOf.containsKey(s)) {
+                candidate = s;
+                break;
+            }
+        }
+
+        // Otherwise a lone call from this IP has moved to a new source port
+        if (candidate == null && sessions.size() == 1) {
+            candidate = sessions.get(0);
+            byEndpoint.remove(endpointOf.remove(candidate), candidate);
+        }
+
+        if (candidate != null) {
+            endpointOf.put(candidate, source);
+            byEndpoint.put(source, candidate);
+        }
+        return candidate;
+    }
+}
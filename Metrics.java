@@ -0,0 +1,332 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+// Counters, gauges and latency histograms for watching the MSC in production. Recording is a
+// LongAdder increment (histograms: one bucket increment plus the sum), so it is cheap enough for the
+// voice path; all the formatting happens when someone reads the values. They can be scraped as plain
+// text (Prometheus exposition format) from a local HTTP endpoint and read as attributes of one
+// JMX MBean.
+//
+// Names may carry labels, e.g. msc_calls_ended_total{reason="normal"}; metrics that share a name
+// are reported together.
+public class Metrics {
+    private static final int HISTOGRAM_BUCKETS = 40; // Powers of two of nanoseconds, up to ~275 s
+
+    private final Map<String, List<Metric>> families = new LinkedHashMap<>(); // Guarded by this
+    private final Map<String, Metric> byName = new LinkedHashMap<>();         // Guarded by this
+
+    public Counter counter(String name, String help) {
+        Counter counter = new Counter(name, help);
+        register(counter);
+        return counter;
+    }
+
+    // A counter kept by someone else, e.g. a component's own AtomicLong
+    public void counter(String name, String help, LongSupplier value) {
+        register(new Gauge(name, help, "counter", value));
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        register(new Gauge(name, help, "gauge", value));
+    }
+
+    // Latency histogram; record durations in nanoseconds, reported in seconds
+    public Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram(name, help);
+        register(histogram);
+        return histogram;
+    }
+
+    private synchronized void register(Metric metric) {
+        if (byName.putIfAbsent(metric.name, metric) != null) {
+            throw new IllegalArgumentException("Metric already registered: " + metric.name);
+        }
+        families.computeIfAbsent(metric.family, family -> new ArrayList<>()).add(metric);
+    }
+
+    // All metrics in the Prometheus text exposition format
+    public synchronized String toText() {
+        StringBuilder text = new StringBuilder(4096);
+        for (Map.Entry<String, List<Metric>> family : families.entrySet()) {
+            Metric first = family.getValue().get(0);
+            text.append("# HELP ").append(family.getKey()).append(' ').append(first.help).append('\n');
+            text.append("# TYPE ").append(family.getKey()).append(' ').append(first.type).append('\n');
+            for (Metric metric : family.getValue()) {
+                metric.appendText(text);
+            }
+        }
+        return text.toString();
+    }
+
+    // Serve toText() at http://<host>:<port>/metrics; the caller stops the returned server
+    public HttpServer startHttpServer(String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start(); // Scrapes are rare and cheap, so the server's own dispatcher thread serves them
+        return server;
+    }
+
+    // Publish every metric as a read-only attribute of one MBean (e.g. "msc:type=Metrics").
+    // Histograms appear as <name>_count, <name>_sum_nanos, <name>_p50_nanos and <name>_p99_nanos.
+    public void registerMBean(String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(objectName));
+    }
+
+    private synchronized Map<String, LongSupplier> attributes() {
+        Map<String, LongSupplier> attributes = new LinkedHashMap<>();
+        for (Metric metric : byName.values()) {
+            String name = metric.name.replace("\"", "");
+            if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                attributes.put(name + "_count", histogram::getCount);
+                attributes.put(name + "_sum_nanos", histogram::getSumNanos);
+                attributes.put(name + "_p50_nanos", () -> histogram.percentileNanos(0.50));
+                attributes.put(name + "_p99_nanos", () -> histogram.percentileNanos(0.99));
+            } else {
+                attributes.put(name, metric::longValue);
+            }
+        }
+        return attributes;
+    }
+
+    private abstract static class Metric {
+        final String name;   // Including labels, e.g. calls_total{reason="x"}
+        final String family; // Without labels
+        final String labels; // "reason=\"x\"", or "" without labels
+        final String help;
+        final String type;
+
+        Metric(String name, String help, String type) {
+            int brace = name.indexOf('{');
+            this.name = name;
+            this.family = brace < 0 ? name : name.substring(0, brace);
+            this.labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+            this.help = help;
+            this.type = type;
+        }
+
+        abstract long longValue();
+
+        void appendText(StringBuilder text) {
+            text.append(name).append(' ').append(longValue()).append('\n');
+        }
+    }
+
+    public static final class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        Counter(String name, String help) {
+            super(name, help, "counter");
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        long longValue() {
+            return get();
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final LongSupplier value;
+
+        Gauge(String name, String help, String type, LongSupplier value) {
+            super(name, help, type);
+            this.value = value;
+        }
+
+        @Override
+        long longValue() {
+            return value.getAsLong();
+        }
+    }
+
+    // Log2 buckets: bucket i counts durations below 2^i ns (and at least 2^(i-1) ns), so any
+    // duration is within a factor of two of its bucket bound. The last bucket takes everything longer.
+    public static final class Histogram extends Metric {
+        private final LongAdder[] buckets = new LongAdder[HISTOGRAM_BUCKETS];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name, String help) {
+            super(name, help, "histogram");
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets[Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+            sumNanos.add(value);
+        }
+
+        // Record the time since a System.nanoTime() reading
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public long getSumNanos() {
+            return sumNanos.sum();
+        }
+
+        // Upper bound of the bucket holding the given quantile (0..1), or 0 with nothing recorded
+        public long percentileNanos(double quantile) {
+            long[] counts = snapshot();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i == HISTOGRAM_BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        long longValue() {
+            return getCount();
+        }
+
+        @Override
+        void appendText(StringBuilder text) {
+            long[] counts = snapshot();
+            // Only the range with samples; the buckets below it would all report zero
+            int lowest = -1;
+            int highest = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    lowest = lowest < 0 ? i : lowest;
+                    highest = i;
+                }
+            }
+            String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+            long cumulative = 0;
+            for (int i = Math.max(0, lowest); i <= Math.min(highest, HISTOGRAM_BUCKETS - 2); i++) {
+                cumulative += counts[i];
+                text.append(family).append("_bucket").append(prefix).append("le=\"")
+                    .append((1L << i) / 1e9).append("\"} ").append(cumulative).append('\n');
+            }
+            long count = 0;
+            for (long bucket : counts) {
+                count += bucket;
+            }
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            text.append(family).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+            text.append(family).append("_sum").append(suffix).append(' ').append(getSumNanos() / 1e9).append('\n');
+            text.append(family).append("_count").append(suffix).append(' ').append(count).append('\n');
+        }
+
+        private long[] snapshot() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+    }
+
+    private final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongSupplier value = attributes().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value.getAsLong();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, LongSupplier> attributes = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                LongSupplier value = attributes.get(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value.getAsLong()));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (String name : attributes().keySet()) {
+                infos.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "MSC metrics",
+                                 infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList(); // Read-only: nothing was set
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations on metrics");
+        }
+    }
+}
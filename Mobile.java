@@ -1,11 +1,15 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
 import java.util.concurrent.*;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 import javax.sound.sampled.*;
 
 public class Mobile {
@@ -19,10 +23,38 @@ public class Mobile {
     private static final int SIGNALING_PORT = 5011;
     private static final int BUFFER_SIZE = 1024;
     private static final boolean TEST_MODE = false; // Set to true to use test tones instead of microphone
+    // Ask the MSC for binary signaling frames; an MSC without them is given this long to answer
+    private static final boolean BINARY_SIGNALING = Boolean.parseBoolean(System.getProperty("mobile.binarySignaling", "true"));
+    private static final int NEGOTIATION_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // Encryption failures would otherwise be logged for every packet
+    private static final Log.RateLimit ENCRYPT_ERROR_LOG = new Log.RateLimit(1, TimeUnit.SECONDS);
+    // Resume with a session ticket from an earlier call instead of a new RSA key exchange. Tickets are
+    // kept per MSISDN for the life of the JVM, and across runs in mobile.sessionDir if set (off by
+    // default: the file holds the AES key).
+    private static final boolean SESSION_TICKETS = Boolean.parseBoolean(System.getProperty("mobile.sessionTickets", "true"));
+    private static final String SESSION_DIR = System.getProperty("mobile.sessionDir");
+    // Voice packet format to ask for ("AES-GCM" or "AES-CBC"); an MSC that doesn't answer gets AES-CBC
+    private static final String AUDIO_CIPHER = System.getProperty("mobile.audioCipher", AudioCryptoContext.Mode.GCM.wireName);
+    // Voice codecs to offer, in order of preference ("IMA-ADPCM", "PCMU", "PCM"), and "CN" to stop
+    // sending during silence (comfort noise); an MSC that doesn't answer gets PCM
+    private static final String VOICE_CODECS = System.getProperty("mobile.codecs", "IMA-ADPCM,PCMU,CN");
+    // While silent, a SID goes out this often to keep the MSC's comfort noise going
+    private static final int SID_INTERVAL_MILLIS = 160;
+    // Put a media header (sequence number, timestamp, SSRC) on each voice packet if the MSC hands
+    // out an SSRC; an MSC that doesn't answer gets bare packets
+    private static final boolean MEDIA_HEADER = Boolean.parseBoolean(System.getProperty("mobile.mediaHeader", "true"));
+    // Call sample rates to offer, in order of preference; audio is captured at SAMPLE_RATE and
+    // resampled unless the microphone has the agreed rate. An MSC that doesn't answer gets SAMPLE_RATE.
+    private static final String VOICE_RATES = System.getProperty("mobile.sampleRates", "16000,8000");
+    private static final Map<String, SessionTicket> sessionTickets = new ConcurrentHashMap<>();
     
     private DatagramSocket socket;
     private String msisdn;
     private Socket signalingSocket;
+    private InputStream signalingIn;
+    private OutputStream signalingOut;
+    private boolean binarySignaling = false; // Frames instead of text lines, once the MSC agreed
     private ScheduledExecutorService scheduler;
     private volatile boolean running = true;
     private int packetsSent = 0;
@@ -32,7 +64,28 @@ public class Mobile {
     private PublicKey mscPublicKey; // Server's public key for initial secure exchange
     private SecretKey aesKey;       // AES key for symmetric encryption
     private byte[] iv;              // Initialization vector for AES
+    private AudioCryptoContext audioCrypto; // Cached voice ciphers for this call
+    private VoiceCodec codec = new VoiceCodec.Pcm(); // Applied to each packet before encryption
+    private final byte[] encoded = new byte[BUFFER_SIZE]; // One encoded packet (no codec expands PCM)
+    private int callRate = SAMPLE_RATE; // Sample rate of the audio sent, as agreed with the MSC
+    private Resampler resampler;        // Capture rate to callRate; null when they are the same
+    private byte[] resampled = new byte[0];
+    private final byte[] pending = new byte[BUFFER_SIZE]; // Resampled audio waiting to fill a packet
+    private int pendingLength;
+    private boolean comfortNoise;      // The MSC agreed to DTX with comfort noise
+    private VoiceActivityDetector vad; // Decides what is held back; null without comfort noise
+    private boolean silent;            // Holding packets back since the last voice packet
+    private int silentSamples;         // Held back and not yet reported in a SID
+    private final byte[] sid = new byte[ComfortNoise.SID_LENGTH];
+    private int silenceTimestamp;      // Of the first sample held back since the last packet
+    private int packetsHeldBack = 0;
+    private int ssrc;                  // From the MSC for the media headers; 0 sends bare packets
+    private final MediaHeader mediaHeader = new MediaHeader();
+    private int mediaClock;            // Timestamp of the next packet's first sample, at callRate
+    private boolean talkSpurtStart;    // Next voice packet gets the marker bit
     private boolean encryptionEnabled = false;
+    private boolean resumed = false; // Key came from a session ticket
+    private boolean quiet = false;
     
     public Mobile(String msisdn) {
         this.msisdn = msisdn;
@@ -45,7 +98,7 @@ public class Mobile {
     }
     
     // Generate a simple sine wave tone for testing
-    private byte[] generateTestTone(double frequency, int sampleRate, double durationSecs) {
+    static byte[] generateTestTone(double frequency, int sampleRate, double durationSecs) {
         int numSamples = (int) (durationSecs * sampleRate);
         byte[] buffer = new byte[numSamples * 2]; // 16-bit samples = 2 bytes per sample
         
@@ -67,69 +120,14 @@ public class Mobile {
     public void start() {
         TargetDataLine line = null;
         try {
-            System.out.println("Starting voice call as MSISDN " + msisdn);
+            Log.info("Starting voice call as MSISDN " + msisdn);
             
             // Connect to MSC for signaling
             signalingSocket = new Socket(MSC_HOST, SIGNALING_PORT);
-            BufferedReader in = new BufferedReader(new InputStreamReader(signalingSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(signalingSocket.getOutputStream(), true);
             
-            // First, wait for the server to send its public key
-            String message = in.readLine();
-            if (message != null && message.startsWith("PUBLIC_KEY:")) {
-                String publicKeyStr = message.substring("PUBLIC_KEY:".length());
-                
-                try {
-                    // Convert the Base64-encoded string back to a PublicKey
-                    byte[] publicKeyBytes = Base64.getDecoder().decode(publicKeyStr);
-                    mscPublicKey = KeyFactory.getInstance("RSA").generatePublic(
-                            new X509EncodedKeySpec(publicKeyBytes));
-                    
-                    // Generate AES key and IV for symmetric encryption
-                    aesKey = SecurityUtils.generateAESKey();
-                    iv = SecurityUtils.generateIV();
-                    
-                    // Encrypt the AES key with the server's public key
-                    byte[] encryptedKey = SecurityUtils.encryptRSA(aesKey.getEncoded(), mscPublicKey);
-                    String encryptedKeyStr = Base64.getEncoder().encodeToString(encryptedKey);
-                    
-                    // Send the encrypted AES key to the server
-                    out.println("AES_KEY:" + encryptedKeyStr);
-                    
-                    // Send the IV (not encrypted, as it's not sensitive)
-                    String ivStr = Base64.getEncoder().encodeToString(iv);
-                    out.println("IV:" + ivStr);
-                    
-                    // Wait for server to confirm it's ready for encrypted messages
-                    message = in.readLine();
-                    if (message != null && message.equals("READY_FOR_ENCRYPTED")) {
-                        encryptionEnabled = true;
-                        System.out.println("Secure communication established with MSC");
-                        
-                        // Send encrypted start call signaling
-                        String startCallMsg = "START_CALL:" + msisdn;
-                        String encryptedMsg = SecurityUtils.encryptStringAES(startCallMsg, aesKey, iv);
-                        out.println("ENC:" + encryptedMsg);
-                        System.out.println("Sent encrypted start call signaling to MSC");
-                    } else {
-                        System.out.println("Warning: Server did not confirm encryption readiness");
-                        // Fall back to unencrypted mode
-                        out.println("START_CALL:" + msisdn);
-                        System.out.println("Sent unencrypted start call signaling to MSC (encryption failed)");
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error setting up encryption: " + e.getMessage());
-                    // Fall back to unencrypted mode
-                    out.println("START_CALL:" + msisdn);
-                    System.out.println("Sent unencrypted start call signaling to MSC (encryption failed)");
-                }
-            } else {
-                // Server doesn't support encryption, use unencrypted mode
-                out.println("START_CALL:" + msisdn);
-                System.out.println("Sent unencrypted start call signaling to MSC (no encryption support)");
-            }
+            establishCall(signalingSocket);
             
-            System.out.println("Sent start call signaling to MSC at " + MSC_HOST + ":" + SIGNALING_PORT);
+            Log.info("Sent start call signaling to MSC at " + MSC_HOST + ":" + SIGNALING_PORT);
             
             // Setup reader to receive responses from MSC
             startSignalingListener();
@@ -137,7 +135,7 @@ public class Mobile {
             // Setup UDP socket for voice data
             socket = new DatagramSocket();
             InetAddress address = InetAddress.getByName(MSC_HOST);
-            System.out.println("Created UDP socket from port " + socket.getLocalPort() + 
+            Log.info("Created UDP socket from port " + socket.getLocalPort() + 
                               " to " + MSC_HOST + ":" + PORT);
             
             // Start minute counter task
@@ -145,14 +143,15 @@ public class Mobile {
             scheduler.scheduleAtFixedRate(() -> {
                 long elapsedMinutes = (System.currentTimeMillis() - startTime) / (1000 * 60);
                 if (running) {
-                    System.out.println(elapsedMinutes + " minutes elapsed, sent " + packetsSent + " packets");
+                    Log.info(elapsedMinutes + " minutes elapsed, sent " + packetsSent + " packets" +
+                             (packetsHeldBack > 0 ? " (" + packetsHeldBack + " held back during silence)" : ""));
                 }
             }, 1, 1, TimeUnit.MINUTES);
             
             // Register shutdown hook to send END_CALL when application stops
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 try {
-                    System.out.println("Shutting down gracefully...");
+                    Log.info("Shutting down gracefully...");
                     running = false;
                     
                     // Allow main thread to exit the loop
@@ -165,17 +164,17 @@ public class Mobile {
                     // Call our cleanup method instead of duplicating code
                     cleanup(line);
                     
-                    System.out.println("Cleanup complete");
+                    Log.info("Cleanup complete");
                 } catch (Exception e) {
-                    System.err.println("Error during shutdown: " + e.getMessage());
+                    Log.error("Error during shutdown: " + e.getMessage());
                 }
             }));
             
             if (TEST_MODE) {
-                System.out.println("Running in TEST MODE - sending test tones");
+                Log.info("Running in TEST MODE - sending test tones");
                 runTestMode(address);
             } else {
-                System.out.println("Running in MICROPHONE MODE - capturing actual audio");
+                Log.info("Running in MICROPHONE MODE - capturing actual audio");
                 
                 // Check for available microphones and print them
                 List<MixerInfo> mics = listAvailableMicrophones();
@@ -183,61 +182,431 @@ public class Mobile {
                 runMicrophoneMode(address, mics);
             }
         } catch (ConnectException e) {
-            System.err.println("Connection refused: MSC server is not running or is not reachable");
-            System.err.println("Make sure the MSC application is running before starting the Mobile application");
+            Log.error("Connection refused: MSC server is not running or is not reachable");
+            Log.error("Make sure the MSC application is running before starting the Mobile application");
         } catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Error: " + e.getMessage(), e);
         } finally {
             // Cleanup resources in case we exit through an exception
             cleanup(line);
         }
     }
     
-    private void startSignalingListener() {
-        Thread listenerThread = new Thread(() -> {
+    // Key exchange with the MSC followed by START_CALL, over an open signaling connection.
+    // Falls back to plaintext signaling if the MSC doesn't offer encryption, and to text lines if it
+    // doesn't offer binary frames.
+    void establishCall(Socket signaling) throws IOException {
+        // Lines are read byte-wise from this buffer, so nothing is lost if the MSC switches to frames
+        signalingIn = new BufferedInputStream(signaling.getInputStream());
+        signalingOut = signaling.getOutputStream();
+        
+        // First, wait for the server to send its public key
+        String message = SignalingCodec.readLine(signalingIn, MAX_LINE_LENGTH);
+        if (message != null && message.startsWith("PUBLIC_KEY:")) {
+            String publicKeyStr = message.substring("PUBLIC_KEY:".length());
+            
+            if (BINARY_SIGNALING) {
+                binarySignaling = negotiateBinary(signaling);
+                log(binarySignaling ? "Using binary signaling" : "MSC doesn't support binary signaling, using text");
+            }
+            
             try {
-                BufferedReader in = new BufferedReader(new InputStreamReader(signalingSocket.getInputStream()));
-                String message;
+                // A repeat caller first tries its session ticket, which saves the MSC an RSA decryption
+                boolean ready = SESSION_TICKETS && resumeSession();
+                if (!ready) {
+                    ready = exchangeKey(publicKeyStr);
+                }
                 
-                while (running && (message = in.readLine()) != null) {
-                    System.out.println("Received from MSC: " + (message.startsWith("ENC:") ? "[Encrypted Message]" : message));
+                if (ready) {
+                    encryptionEnabled = true;
+                    log(resumed ? "Secure communication resumed with MSC" : "Secure communication established with MSC");
                     
-                    // Check if this is an encrypted message
-                    if (encryptionEnabled && message.startsWith("ENC:")) {
-                        try {
-                            // Decrypt the message
-                            String encryptedPart = message.substring("ENC:".length());
-                            String decryptedMessage = SecurityUtils.decryptStringAES(encryptedPart, aesKey, iv);
-                            System.out.println("Decrypted message: " + decryptedMessage);
-                            
-                            // Process the decrypted message
-                            if (decryptedMessage.startsWith("TERMINATE_CALL:")) {
-                                String reason = "Unknown reason";
-                                if (decryptedMessage.contains(":")) {
-                                    reason = decryptedMessage.substring(decryptedMessage.indexOf(":") + 1);
-                                }
-                                System.out.println("\n*** CALL TERMINATED BY MSC: " + reason + " ***");
-                                System.out.println("The call has been terminated by the Mobile Switching Center");
-                                running = false;
-                                
-                                // Exit the application after a brief pause
-                                scheduler.schedule(() -> {
-                                    System.exit(0);
-                                }, 2, TimeUnit.SECONDS);
-                            }
-                        } catch (Exception e) {
-                            System.err.println("Error decrypting message: " + e.getMessage());
-                        }
+                    AudioCryptoContext.Mode audioCipher = negotiateAudioCipher(signaling);
+                    audioCrypto = SecurityUtils.createAudioContext(aesKey, iv, audioCipher);
+                    log("Using " + audioCipher.wireName + " voice encryption");
+                    codec = negotiateVoiceCodec(signaling);
+                    callRate = negotiateSampleRate(signaling);
+                    resampler = callRate != SAMPLE_RATE ? new Resampler(SAMPLE_RATE, callRate) : null;
+                    vad = comfortNoise ? new VoiceActivityDetector(callRate) : null;
+                    silent = false;
+                    silentSamples = 0;
+                    ssrc = negotiateMediaHeader(signaling);
+                    mediaClock = ThreadLocalRandom.current().nextInt(); // A random start, as in RTP
+                    talkSpurtStart = true;
+                    if (ssrc != 0) {
+                        log("Voice packets carry media headers, SSRC " + Integer.toUnsignedString(ssrc));
                     }
-                    // Also support unencrypted messages for backward compatibility
-                    else if (message.startsWith("TERMINATE_CALL:")) {
-                        String reason = "Unknown reason";
-                        if (message.contains(":")) {
-                            reason = message.substring(message.indexOf(":") + 1);
-                        }
-                        System.out.println("\n*** CALL TERMINATED BY MSC: " + reason + " ***");
-                        System.out.println("The call has been terminated by the Mobile Switching Center");
+                    log("Using " + codec.getName() + " voice codec at " + callRate + " Hz" +
+                        (comfortNoise ? ", silence suppressed" : ""));
+                    
+                    // Send encrypted start call signaling, then ask for a ticket for the next call
+                    sendSignaling("START_CALL:" + msisdn);
+                    log("Sent encrypted start call signaling to MSC");
+                    if (SESSION_TICKETS) {
+                        sendSignaling("TICKET_REQUEST");
+                    }
+                } else {
+                    log("Warning: Server did not confirm encryption readiness");
+                    // Fall back to unencrypted mode
+                    sendSignaling("START_CALL:" + msisdn);
+                    log("Sent unencrypted start call signaling to MSC (encryption failed)");
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                Log.error("Error setting up encryption: " + e.getMessage());
+                // Fall back to unencrypted mode
+                encryptionEnabled = false;
+                sendSignaling("START_CALL:" + msisdn);
+                log("Sent unencrypted start call signaling to MSC (encryption failed)");
+            }
+        } else {
+            // Server doesn't support encryption, use unencrypted mode
+            sendSignaling("START_CALL:" + msisdn);
+            log("Sent unencrypted start call signaling to MSC (no encryption support)");
+        }
+    }
+    
+    // Full key exchange: a new AES key encrypted with the MSC's public key, and a new IV.
+    // Returns true once the MSC confirms it's ready for encrypted messages.
+    private boolean exchangeKey(String publicKeyStr) throws Exception {
+        // Convert the Base64-encoded string back to a PublicKey
+        byte[] publicKeyBytes = Base64.getDecoder().decode(publicKeyStr);
+        mscPublicKey = KeyFactory.getInstance("RSA").generatePublic(
+                new X509EncodedKeySpec(publicKeyBytes));
+        
+        // Generate AES key and IV for symmetric encryption
+        aesKey = SecurityUtils.generateAESKey();
+        iv = SecurityUtils.generateIV();
+        
+        // Encrypt the AES key with the server's public key
+        byte[] encryptedKey = SecurityUtils.encryptRSA(aesKey.getEncoded(), mscPublicKey);
+        
+        // Send the encrypted AES key to the server, then the IV (not encrypted, as it's not sensitive)
+        if (binarySignaling) {
+            writeSignaling(SignalingCodec.encode(SignalingCodec.AES_KEY, encryptedKey));
+            writeSignaling(SignalingCodec.encode(SignalingCodec.IV, iv));
+            
+            SignalingCodec.Frame frame = SignalingCodec.readFrame(signalingIn);
+            return frame != null && frame.type == SignalingCodec.READY;
+        }
+        
+        String encryptedKeyStr = Base64.getEncoder().encodeToString(encryptedKey);
+        writeLine("AES_KEY:" + encryptedKeyStr);
+        
+        String ivStr = Base64.getEncoder().encodeToString(iv);
+        writeLine("IV:" + ivStr);
+        
+        // Wait for server to confirm it's ready for encrypted messages
+        String message = SignalingCodec.readLine(signalingIn, MAX_LINE_LENGTH);
+        return message != null && message.equals("READY_FOR_ENCRYPTED");
+    }
+    
+    // Present the ticket from an earlier call with a new IV. Returns true if the MSC took it; false if
+    // there is no usable ticket or the MSC refused it (e.g. expired), and the full exchange is needed.
+    private boolean resumeSession() throws IOException {
+        SessionTicket ticket = takeSessionTicket(msisdn);
+        if (ticket == null) {
+            return false;
+        }
+        byte[] newIv = SecurityUtils.generateIV();
+        boolean ready;
+        if (binarySignaling) {
+            byte[] payload = new byte[ticket.ticket.length + newIv.length];
+            System.arraycopy(ticket.ticket, 0, payload, 0, ticket.ticket.length);
+            System.arraycopy(newIv, 0, payload, ticket.ticket.length, newIv.length);
+            writeSignaling(SignalingCodec.encode(SignalingCodec.RESUME, payload));
+            
+            SignalingCodec.Frame frame = SignalingCodec.readFrame(signalingIn);
+            ready = frame != null && frame.type == SignalingCodec.READY;
+        } else {
+            Base64.Encoder encoder = Base64.getEncoder();
+            writeLine("RESUME:" + encoder.encodeToString(ticket.ticket) + ":" + encoder.encodeToString(newIv));
+            
+            String message = SignalingCodec.readLine(signalingIn, MAX_LINE_LENGTH);
+            ready = message != null && message.equals("READY_FOR_ENCRYPTED");
+        }
+        
+        if (!ready) {
+            log("MSC did not accept the session ticket, doing a full key exchange");
+            return false;
+        }
+        aesKey = new SecretKeySpec(ticket.key, "AES");
+        iv = newIv;
+        resumed = true;
+        return true;
+    }
+    
+    // Keep a ticket the MSC issued for the current key
+    private void storeSessionTicket(byte[] ticket, int ttlSeconds) {
+        SessionTicket session = new SessionTicket(ticket, aesKey.getEncoded(),
+                System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds));
+        sessionTickets.put(msisdn, session);
+        if (SESSION_DIR != null) {
+            session.save(sessionFile(msisdn));
+        }
+    }
+    
+    // Tickets are single-use, so a ticket is forgotten as soon as it is taken
+    private static SessionTicket takeSessionTicket(String msisdn) {
+        SessionTicket ticket = sessionTickets.remove(msisdn);
+        if (SESSION_DIR != null) {
+            File file = sessionFile(msisdn);
+            if (ticket == null) {
+                ticket = SessionTicket.load(file);
+            }
+            file.delete();
+        }
+        return ticket != null && ticket.expiresMillis > System.currentTimeMillis() ? ticket : null;
+    }
+    
+    private static File sessionFile(String msisdn) {
+        return new File(SESSION_DIR, "session_" + msisdn + ".ticket");
+    }
+    
+    // Ask for binary frames. An MSC without them ignores the request, so only wait briefly for the answer.
+    private boolean negotiateBinary(Socket signaling) throws IOException {
+        writeLine(SignalingCodec.NEGOTIATE);
+        int timeout = signaling.getSoTimeout();
+        signaling.setSoTimeout(NEGOTIATION_TIMEOUT_MILLIS);
+        try {
+            return SignalingCodec.NEGOTIATED.equals(SignalingCodec.readLine(signalingIn, MAX_LINE_LENGTH));
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            signaling.setSoTimeout(timeout);
+        }
+    }
+    
+    // Ask for the configured voice packet format (encrypted, like every message after the key exchange)
+    // and use what the MSC answers. An MSC that predates the request ignores it, so only wait briefly.
+    private AudioCryptoContext.Mode negotiateAudioCipher(Socket signaling) throws Exception {
+        AudioCryptoContext.Mode wanted = AudioCryptoContext.Mode.fromWireName(AUDIO_CIPHER);
+        if (wanted == null || wanted == AudioCryptoContext.Mode.CBC) {
+            return AudioCryptoContext.Mode.CBC; // What every MSC assumes when nothing is asked
+        }
+        sendSignaling("AUDIO_CIPHER:" + wanted.wireName);
+        int timeout = signaling.getSoTimeout();
+        signaling.setSoTimeout(NEGOTIATION_TIMEOUT_MILLIS);
+        try {
+            String answer = receiveSignaling();
+            if (answer != null && answer.startsWith("AUDIO_CIPHER:")) {
+                AudioCryptoContext.Mode agreed = AudioCryptoContext.Mode.fromWireName(answer.substring("AUDIO_CIPHER:".length()));
+                return agreed != null ? agreed : AudioCryptoContext.Mode.CBC;
+            }
+            return AudioCryptoContext.Mode.CBC;
+        } catch (SocketTimeoutException e) {
+            log("MSC doesn't support " + wanted.wireName + " voice encryption");
+            return AudioCryptoContext.Mode.CBC;
+        } finally {
+            signaling.setSoTimeout(timeout);
+        }
+    }
+    
+    // Offer the configured codecs and use the one the MSC picks; comfortNoise is set if it also
+    // agreed to CN. An MSC without codecs ignores the offer and expects PCM, so again only wait briefly.
+    private VoiceCodec negotiateVoiceCodec(Socket signaling) throws Exception {
+        comfortNoise = false;
+        if (VOICE_CODECS.trim().isEmpty() || VOICE_CODECS.trim().equalsIgnoreCase(VoiceCodec.PCM)) {
+            return new VoiceCodec.Pcm();
+        }
+        sendSignaling("VOICE_CODEC:" + VOICE_CODECS.replace(" ", ""));
+        int timeout = signaling.getSoTimeout();
+        signaling.setSoTimeout(NEGOTIATION_TIMEOUT_MILLIS);
+        try {
+            String answer = receiveSignaling();
+            if (answer != null && answer.startsWith("VOICE_CODEC:")) {
+                String[] agreedNames = answer.substring("VOICE_CODEC:".length()).split(",");
+                comfortNoise = Arrays.asList(agreedNames).contains(ComfortNoise.NAME);
+                VoiceCodec agreed = VoiceCodec.forName(agreedNames[0]);
+                return agreed != null ? agreed : new VoiceCodec.Pcm();
+            }
+            return new VoiceCodec.Pcm();
+        } catch (SocketTimeoutException e) {
+            log("MSC doesn't support voice codecs, sending PCM");
+            return new VoiceCodec.Pcm();
+        } finally {
+            signaling.setSoTimeout(timeout);
+        }
+    }
+    
+    // Ask for media headers on the voice packets; returns the SSRC the MSC assigned, or 0 to send
+    // bare packets (refused, or an MSC that predates headers and doesn't answer)
+    private int negotiateMediaHeader(Socket signaling) throws Exception {
+        if (!MEDIA_HEADER) {
+            return 0;
+        }
+        sendSignaling("MEDIA_HEADER:" + MediaHeader.VERSION);
+        int timeout = signaling.getSoTimeout();
+        signaling.setSoTimeout(NEGOTIATION_TIMEOUT_MILLIS);
+        try {
+            String answer = receiveSignaling();
+            if (answer != null && answer.startsWith("MEDIA_HEADER:")) {
+                return Integer.parseUnsignedInt(answer.substring("MEDIA_HEADER:".length()).trim());
+            }
+            return 0;
+        } catch (SocketTimeoutException e) {
+            log("MSC doesn't support media headers, sending bare voice packets");
+            return 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            signaling.setSoTimeout(timeout);
+        }
+    }
+    
+    // Offer the configured sample rates and use the one the MSC picks; an MSC that predates rates
+    // ignores the offer and expects SAMPLE_RATE
+    private int negotiateSampleRate(Socket signaling) throws Exception {
+        if (VOICE_RATES.trim().isEmpty() || VOICE_RATES.trim().equals(String.valueOf(SAMPLE_RATE))) {
+            return SAMPLE_RATE;
+        }
+        sendSignaling("SAMPLE_RATE:" + VOICE_RATES.replace(" ", ""));
+        int timeout = signaling.getSoTimeout();
+        signaling.setSoTimeout(NEGOTIATION_TIMEOUT_MILLIS);
+        try {
+            String answer = receiveSignaling();
+            if (answer != null && answer.startsWith("SAMPLE_RATE:")) {
+                return Integer.parseInt(answer.substring("SAMPLE_RATE:".length()).trim());
+            }
+            return SAMPLE_RATE;
+        } catch (SocketTimeoutException e) {
+            log("MSC doesn't support other sample rates, sending " + SAMPLE_RATE + " Hz");
+            return SAMPLE_RATE;
+        } catch (NumberFormatException e) {
+            return SAMPLE_RATE;
+        } finally {
+            signaling.setSoTimeout(timeout);
+        }
+    }
+    
+    // Send a text protocol message such as "END_CALL:<msisdn>" in whatever form was negotiated:
+    // encrypted once the key exchange is done, and as a frame on binary connections
+    private void sendSignaling(String message) throws IOException {
+        if (encryptionEnabled) {
+            try {
+                if (binarySignaling) {
+                    byte[] encrypted = SecurityUtils.encryptAES(SignalingCodec.encode(message), aesKey, iv);
+                    writeSignaling(SignalingCodec.encode(SignalingCodec.ENCRYPTED, encrypted));
+                } else {
+                    writeLine("ENC:" + SecurityUtils.encryptStringAES(message, aesKey, iv));
+                }
+                return;
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                // Fall back to unencrypted mode if encryption fails
+                Log.error("Error encrypting signaling message: " + e.getMessage());
+            }
+        }
+        if (binarySignaling) {
+            writeSignaling(SignalingCodec.encode(message));
+        } else {
+            writeLine(message);
+        }
+    }
+    
+    private void writeLine(String line) throws IOException {
+        writeSignaling((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    
+    // One write per message, so END_CALL from the shutdown hook can't interleave with another message
+    private synchronized void writeSignaling(byte[] message) throws IOException {
+        signalingOut.write(message);
+        signalingOut.flush();
+    }
+    
+    // Next message from the MSC in its plaintext text form (e.g. "TERMINATE_CALL:<reason>"),
+    // or null once the MSC closed the connection
+    String receiveSignaling() throws Exception {
+        if (binarySignaling) {
+            SignalingCodec.Frame frame = SignalingCodec.readFrame(signalingIn);
+            if (frame == null) {
+                return null;
+            }
+            if (encryptionEnabled && frame.type == SignalingCodec.ENCRYPTED) {
+                frame = SignalingCodec.decode(SecurityUtils.decryptAES(frame.payload, aesKey, iv));
+                if (frame.type == SignalingCodec.TICKET && frame.payload.length > 4) {
+                    ByteBuffer ticket = ByteBuffer.wrap(frame.payload);
+                    int ttlSeconds = ticket.getInt();
+                    storeSessionTicket(Arrays.copyOfRange(frame.payload, 4, frame.payload.length), ttlSeconds);
+                    return "TICKET";
+                }
+            }
+            return SignalingCodec.toText(frame.type, frame.payload);
+        }
+        
+        String message = SignalingCodec.readLine(signalingIn, MAX_LINE_LENGTH);
+        if (message != null && encryptionEnabled && message.startsWith("ENC:")) {
+            message = SecurityUtils.decryptStringAES(message.substring("ENC:".length()), aesKey, iv);
+            if (message.startsWith("TICKET:")) {
+                // TICKET:<ticket>:<lifetime in seconds>
+                String[] parts = message.split(":");
+                storeSessionTicket(Base64.getDecoder().decode(parts[1]), Integer.parseInt(parts[2]));
+                return "TICKET"; // Don't pass the ticket itself on to be logged
+            }
+        }
+        return message;
+    }
+    
+    // True if this call's key came from a session ticket rather than a new RSA key exchange
+    boolean isResumed() {
+        return resumed;
+    }
+    
+    // True if a message from the MSC has (at least partly) arrived, so receiveSignaling won't wait for one
+    boolean hasSignaling() throws IOException {
+        return signalingIn.available() > 0;
+    }
+    
+    void sendEndCall() throws IOException {
+        sendSignaling("END_CALL:" + msisdn);
+        log(encryptionEnabled ? "Sent encrypted end call signaling to MSC" : "Sent unencrypted end call signaling to MSC");
+    }
+    
+    void setVoiceSocket(DatagramSocket socket) {
+        this.socket = socket;
+    }
+    
+    // Suppress per-call progress messages (errors are still printed), e.g. when many run in one JVM
+    void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+    
+    private void log(String message) {
+        if (!quiet) {
+            Log.info(message);
+        }
+    }
+    
+    private void debug(String template, Object... args) {
+        if (!quiet) {
+            Log.debug(template, args);
+        }
+    }
+    
+    private void startSignalingListener() {
+        Thread listenerThread = new Thread(() -> {
+            try {
+                while (running) {
+                    String message;
+                    try {
+                        message = receiveSignaling();
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        Log.error("Error decrypting message: " + e.getMessage());
+                        continue;
+                    }
+                    if (message == null) {
+                        break;
+                    }
+                    Log.info("Received from MSC: " + message);
+                    
+                    if (message.startsWith("TERMINATE_CALL:")) {
+                        String reason = message.substring("TERMINATE_CALL:".length());
+                        Log.info("\n*** CALL TERMINATED BY MSC: " + reason + " ***");
+                        Log.info("The call has been terminated by the Mobile Switching Center");
                         running = false;
                         
                         // Exit the application after a brief pause
@@ -248,7 +617,7 @@ public class Mobile {
                 }
             } catch (IOException e) {
                 if (running) {
-                    System.err.println("Error reading from signaling socket: " + e.getMessage());
+                    Log.error("Error reading from signaling socket: " + e.getMessage());
                     // No need to print error if we're shutting down
                 }
             }
@@ -256,7 +625,45 @@ public class Mobile {
         
         listenerThread.setDaemon(true);
         listenerThread.start();
-        System.out.println("Started signaling listener to receive messages from MSC");
+        Log.info("Started signaling listener to receive messages from MSC");
+    }
+    
+    // A ticket the MSC issued, with the AES key it stands for
+    private static class SessionTicket {
+        final byte[] ticket;
+        final byte[] key;
+        final long expiresMillis;
+        
+        SessionTicket(byte[] ticket, byte[] key, long expiresMillis) {
+            this.ticket = ticket;
+            this.key = key;
+            this.expiresMillis = expiresMillis;
+        }
+        
+        void save(File file) {
+            Base64.Encoder encoder = Base64.getEncoder();
+            try {
+                file.getParentFile().mkdirs();
+                Files.write(file.toPath(), Arrays.asList(encoder.encodeToString(ticket), encoder.encodeToString(key),
+                                                         Long.toString(expiresMillis)));
+                // Owner only - the file holds the call key
+                file.setReadable(false, false);
+                file.setReadable(true, true);
+            } catch (IOException e) {
+                Log.error("Could not save session ticket: " + e.getMessage());
+            }
+        }
+        
+        static SessionTicket load(File file) {
+            try {
+                List<String> lines = Files.readAllLines(file.toPath());
+                Base64.Decoder decoder = Base64.getDecoder();
+                return new SessionTicket(decoder.decode(lines.get(0)), decoder.decode(lines.get(1)),
+                                         Long.parseLong(lines.get(2)));
+            } catch (IOException | RuntimeException e) {
+                return null; // No ticket saved (or unreadable) - do the full key exchange
+            }
+        }
     }
     
     private static class MixerInfo {
@@ -272,7 +679,7 @@ public class Mobile {
     private List<MixerInfo> listAvailableMicrophones() {
         List<MixerInfo> availableMics = new ArrayList<>();
         try {
-            System.out.println("=== Available Audio Capture Devices ===");
+            Log.info("=== Available Audio Capture Devices ===");
             Mixer.Info[] mixerInfos = AudioSystem.getMixerInfo();
             boolean foundMixers = false;
             int micIndex = 0;
@@ -283,7 +690,7 @@ public class Mobile {
                 
                 for (Line.Info lineInfo : lineInfos) {
                     if (lineInfo.getLineClass().equals(TargetDataLine.class)) {
-                        System.out.println(micIndex + ": " + info.getName() + " - " + info.getDescription());
+                        Log.info(micIndex + ": " + info.getName() + " - " + info.getDescription());
                         availableMics.add(new MixerInfo(info, micIndex));
                         foundMixers = true;
                         micIndex++;
@@ -293,27 +700,27 @@ public class Mobile {
             }
             
             if (!foundMixers) {
-                System.out.println("No microphones found in the system!");
+                Log.info("No microphones found in the system!");
             } else {
                 if (selectedMicIndex >= 0 && selectedMicIndex < availableMics.size()) {
-                    System.out.println("Selected microphone: " + availableMics.get(selectedMicIndex).info.getName());
+                    Log.info("Selected microphone: " + availableMics.get(selectedMicIndex).info.getName());
                 } else if (selectedMicIndex >= 0) {
-                    System.out.println("Warning: Selected microphone index " + selectedMicIndex + 
+                    Log.warn("Warning: Selected microphone index " + selectedMicIndex + 
                                      " is out of range. Using default microphone.");
                     selectedMicIndex = -1;
                 } else {
-                    System.out.println("Using default microphone");
+                    Log.info("Using default microphone");
                 }
             }
-            System.out.println("=======================================");
+            Log.info("=======================================");
         } catch (Exception e) {
-            System.err.println("Error listing audio devices: " + e.getMessage());
+            Log.error("Error listing audio devices: " + e.getMessage());
         }
         return availableMics;
     }
     
     private void runTestMode(InetAddress address) throws Exception {
-        System.out.println("Generating test tones at frequencies: 440Hz, 880Hz, 1320Hz");
+        Log.info("Generating test tones at frequencies: 440Hz, 880Hz, 1320Hz");
         
         // Generate some test tones at different frequencies
         byte[] tone1 = generateTestTone(440, SAMPLE_RATE, 0.1); // 440Hz (A4) for 0.1 seconds
@@ -342,54 +749,137 @@ public class Mobile {
         }
     }
     
-    private void sendAudioPacket(byte[] audioData, InetAddress address) throws IOException {
-        // Split the audio data into smaller packets if needed
-        int offset = 0;
-        int remaining = audioData.length;
-        
-        while (remaining > 0 && running) {
-            int chunkSize = Math.min(remaining, BUFFER_SIZE);
-            byte[] chunk = new byte[chunkSize];
-            System.arraycopy(audioData, offset, chunk, 0, chunkSize);
+    // Send SAMPLE_RATE audio (e.g. test tones) as voice packets of up to BUFFER_SIZE bytes at the
+    // call's rate; returns the number of packets sent. Resampled audio is collected until it fills a
+    // packet, so a lower call rate also means fewer packets.
+    int sendAudioPacket(byte[] audioData, InetAddress address) throws IOException {
+        int sentBefore = packetsSent;
+        if (resampler == null) {
+            // Split the audio data into smaller packets if needed
+            int offset = 0;
+            int remaining = audioData.length;
             
-            // If encryption is enabled, encrypt the chunk before sending
-            byte[] dataToSend = chunk;
-            if (encryptionEnabled && aesKey != null && iv != null) {
-                try {
-                    // Encrypt the audio data using the specialized audio encryption method
-                    dataToSend = SecurityUtils.encryptAudioAES(chunk, aesKey, iv);
-                    
-                    if (packetsSent == 0 || packetsSent % 1000 == 0) {
-                        System.out.println("Sending encrypted audio packet (original size: " + 
-                                        chunk.length + ", encrypted size: " + dataToSend.length + ")");
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error encrypting audio data: " + e.getMessage());
-                    // Fall back to unencrypted data if encryption fails
-                    dataToSend = chunk;
-                }
+            while (remaining > 0 && running) {
+                int chunkSize = Math.min(remaining, BUFFER_SIZE);
+                sendVoicePacket(audioData, offset, chunkSize, address);
+                offset += chunkSize;
+                remaining -= chunkSize;
             }
-            
-            DatagramPacket packet = new DatagramPacket(dataToSend, dataToSend.length, address, PORT);
-            if (!socket.isClosed()) {
-                socket.send(packet);
-                packetsSent++;
+            return packetsSent - sentBefore;
+        }
+        
+        int needed = resampler.maxOutputLength(audioData.length);
+        if (resampled.length < needed) {
+            resampled = new byte[needed];
+        }
+        int length = resampler.process(audioData, 0, audioData.length, resampled, 0);
+        int offset = 0;
+        while (offset < length && running) {
+            int chunkSize = Math.min(length - offset, BUFFER_SIZE - pendingLength);
+            System.arraycopy(resampled, offset, pending, pendingLength, chunkSize);
+            pendingLength += chunkSize;
+            offset += chunkSize;
+            if (pendingLength == BUFFER_SIZE) {
+                pendingLength = 0;
+                sendVoicePacket(pending, 0, BUFFER_SIZE, address);
+            }
+        }
+        return packetsSent - sentBefore;
+    }
+    
+    // Encode, encrypt and send one packet of call-rate PCM, unless it is held back as silence
+    private void sendVoicePacket(byte[] pcm, int offset, int length, InetAddress address) throws IOException {
+        int timestamp = mediaClock;
+        mediaClock += length / 2;
+        if (!transmitVoice(pcm, offset, length, timestamp, address)) {
+            return;
+        }
+        // If encryption is enabled, encrypt the chunk before sending
+        byte[] dataToSend = null;
+        if (encryptionEnabled && audioCrypto != null) {
+            try {
+                // Encode the chunk, then encrypt it with the session's cipher
+                int encodedLength = codec.encode(pcm, offset, length, encoded, 0);
+                dataToSend = ssrc != 0
+                        ? audioCrypto.encrypt(mediaHeader.set(MediaHeader.PT_VOICE, talkSpurtStart, timestamp, ssrc), 
+                                              encoded, 0, encodedLength)
+                        : audioCrypto.encrypt(encoded, 0, encodedLength);
                 
-                if (packetsSent % 100 == 0) {
-                    System.out.println("Sent " + packetsSent + " audio packets");
+                if ((packetsSent == 0 || packetsSent % 1000 == 0) && Log.isDebugEnabled()) {
+                    debug("Sending encrypted audio packet (original size: {}, encoded size: {}, encrypted size: {})", 
+                          length, encodedLength, dataToSend.length);
                 }
+            } catch (Exception e) {
+                Log.error(ENCRYPT_ERROR_LOG, "Error encrypting audio data: {}", e.getMessage());
+                // Fall back to unencrypted data if encryption fails
+                dataToSend = null;
             }
+        }
+        if (dataToSend == null) {
+            dataToSend = Arrays.copyOfRange(pcm, offset, offset + length);
+        }
+        
+        DatagramPacket packet = new DatagramPacket(dataToSend, dataToSend.length, address, PORT);
+        if (!socket.isClosed()) {
+            socket.send(packet);
+            packetsSent++;
+            talkSpurtStart = false;
             
-            offset += chunkSize;
-            remaining -= chunkSize;
+            if (packetsSent % 100 == 0 && Log.isDebugEnabled()) {
+                debug("Sent {} audio packets", packetsSent);
+            }
+        }
+    }
+    
+    // Discontinuous transmission: whether a packet of call-rate PCM is to be sent. While the VAD hears
+    // only background noise, packets are held back; a SID goes out in place of the first one and then
+    // every SID_INTERVAL_MILLIS, and one more before voice resumes, so the MSC learns the noise level
+    // and how much audio was held back. A packet of a few samples isn't worth sending (and a 3 byte
+    // PCMU packet would read as a SID), so it counts as silence.
+    private boolean transmitVoice(byte[] pcm, int offset, int length, int timestamp, InetAddress address) throws IOException {
+        if (vad == null) {
+            return true;
+        }
+        if (length / 2 > ComfortNoise.SID_LENGTH && vad.isSpeech(pcm, offset, length)) {
+            if (silentSamples > 0) {
+                sendSilenceDescriptor(address);
+            }
+            silent = false;
+            return true;
+        }
+        if (silentSamples == 0) {
+            silenceTimestamp = timestamp;
+        }
+        silentSamples += length / 2;
+        packetsHeldBack++;
+        if (!silent || silentSamples >= callRate * SID_INTERVAL_MILLIS / 1000) {
+            silent = true;
+            talkSpurtStart = true;
+            sendSilenceDescriptor(address);
+        }
+        return false;
+    }
+    
+    private void sendSilenceDescriptor(InetAddress address) throws IOException {
+        int length = ComfortNoise.encodeSid(vad.getNoiseLevel(), silentSamples, sid, 0);
+        silentSamples = 0;
+        byte[] dataToSend;
+        try {
+            dataToSend = ssrc != 0
+                    ? audioCrypto.encrypt(mediaHeader.set(MediaHeader.PT_COMFORT_NOISE, false, silenceTimestamp, ssrc), 
+                                          sid, 0, length)
+                    : audioCrypto.encrypt(sid, 0, length);
+        } catch (Exception e) {
+            Log.error(ENCRYPT_ERROR_LOG, "Error encrypting silence descriptor: {}", e.getMessage());
+            return;
+        }
+        if (!socket.isClosed()) {
+            socket.send(new DatagramPacket(dataToSend, dataToSend.length, address, PORT));
+            packetsSent++;
         }
     }
     
     private void runMicrophoneMode(InetAddress address, List<MixerInfo> mics) throws Exception {
-        // Try to use the default audio capture device
-        AudioFormat format = new AudioFormat(SAMPLE_RATE, SAMPLE_SIZE_IN_BITS, 
-                                            CHANNELS, SIGNED, BIG_ENDIAN);
-        
         // Check if any microphone is explicitly selected
         TargetDataLine line = null;
         
@@ -397,16 +887,13 @@ public class Mobile {
             // Try to open the selected microphone
             Mixer.Info selectedMixerInfo = mics.get(selectedMicIndex).info;
             try {
-                System.out.println("Opening selected microphone: " + selectedMixerInfo.getName());
-                Mixer mixer = AudioSystem.getMixer(selectedMixerInfo);
-                DataLine.Info dataLineInfo = new DataLine.Info(TargetDataLine.class, format);
-                line = (TargetDataLine) mixer.getLine(dataLineInfo);
-                line.open(format, BUFFER_SIZE * 5);
+                Log.info("Opening selected microphone: " + selectedMixerInfo.getName());
+                line = openCaptureLine(AudioSystem.getMixer(selectedMixerInfo));
                 line.start();
-                System.out.println("Successfully opened selected microphone");
+                Log.info("Successfully opened selected microphone");
             } catch (Exception e) {
-                System.err.println("Error opening selected microphone: " + e.getMessage());
-                System.err.println("Will try default microphone instead");
+                Log.error("Error opening selected microphone: " + e.getMessage());
+                Log.error("Will try default microphone instead");
                 line = null;
             }
         }
@@ -414,71 +901,107 @@ public class Mobile {
         // If selected mic didn't work or none was selected, try default mic
         if (line == null) {
             try {
-                System.out.println("Trying to open default microphone");
-                DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
-                line = (TargetDataLine) AudioSystem.getLine(info);
-                line.open(format, BUFFER_SIZE * 5);
+                Log.info("Trying to open default microphone");
+                line = openCaptureLine(null);
                 line.start();
-                System.out.println("Successfully opened default microphone");
+                Log.info("Successfully opened default microphone");
             } catch (Exception e) {
-                System.err.println("Error opening default microphone: " + e.getMessage());
-                System.err.println("Switching to test mode as fallback");
+                Log.error("Error opening default microphone: " + e.getMessage());
+                Log.error("Switching to test mode as fallback");
                 runTestMode(address);
                 return;
             }
         }
         
         // If we got here, we have an open microphone line
-        System.out.println("Capturing voice from microphone and sending via UDP...");
+        Log.info("Capturing voice from microphone and sending via UDP...");
         
         // Audio data buffer - make it a bit larger for more consistent audio
         byte[] buffer = new byte[BUFFER_SIZE];
         
+        // A device without the call's rate is resampled; reads are sized so a packet still fits BUFFER_SIZE
+        int lineRate = (int) line.getFormat().getSampleRate();
+        Resampler micResampler = lineRate != callRate ? new Resampler(lineRate, callRate) : null;
+        int readLength = BUFFER_SIZE;
+        byte[] micResampled = buffer;
+        if (micResampler != null) {
+            readLength = (int) Math.min(BUFFER_SIZE, (BUFFER_SIZE / 2 - 2) * (long) lineRate / callRate * 2);
+            micResampled = new byte[micResampler.maxOutputLength(readLength)];
+            Log.info("Resampling microphone audio from " + lineRate + " Hz to " + callRate + " Hz");
+        }
+        ByteBuffer audio = ByteBuffer.wrap(encoded);
+        
+        // Encrypted packets are built in one reusable buffer, so the steady-state loop allocates nothing
+        byte[] packetBuffer = new byte[MediaHeader.LENGTH + AudioCryptoContext.maxEncryptedLength(BUFFER_SIZE)];
+        ByteBuffer encrypted = ByteBuffer.wrap(packetBuffer);
+        DatagramPacket packet = new DatagramPacket(packetBuffer, packetBuffer.length, address, PORT);
+        
         // Main loop to capture and send audio data
         while (running) {
             try {
                 // Read from microphone
-                int count = line.read(buffer, 0, buffer.length);
+                int count = line.read(buffer, 0, readLength);
+                byte[] pcm = buffer;
+                if (count > 0 && micResampler != null) {
+                    count = micResampler.process(buffer, 0, count, micResampled, 0);
+                    pcm = micResampled;
+                }
                 
                 // Check if we got valid audio data
                 if (count > 0 && running) {
-                    // Check if there's actual audio (not just silence)
-                    boolean hasAudio = false;
-                    for (int i = 0; i < count; i++) {
-                        if (buffer[i] != 0) {
-                            hasAudio = true;
-                            break;
+                    // With comfort noise the VAD decides what is silence; otherwise only all-zero
+                    // buffers (a muted line) are skipped, and even then every 50th packet goes out
+                    int timestamp = mediaClock;
+                    mediaClock += count / 2;
+                    boolean send;
+                    if (vad != null) {
+                        send = transmitVoice(pcm, 0, count, timestamp, address);
+                    } else {
+                        boolean hasAudio = false;
+                        for (int i = 0; i < count; i++) {
+                            if (pcm[i] != 0) {
+                                hasAudio = true;
+                                break;
+                            }
                         }
+                        send = hasAudio || packetsSent % 50 == 0;
                     }
                     
-                    if (hasAudio || packetsSent % 50 == 0) {
+                    if (send) {
                         // If encryption is enabled, encrypt the audio data before sending
-                        byte[] dataToSend = Arrays.copyOf(buffer, count);
-                        if (encryptionEnabled && aesKey != null && iv != null) {
+                        packet.setData(pcm, 0, count);
+                        if (encryptionEnabled && audioCrypto != null) {
                             try {
-                                // Encrypt the audio data using the specialized audio encryption method
-                                dataToSend = SecurityUtils.encryptAudioAES(dataToSend, aesKey, iv);
+                                // Encode the audio data, then encrypt it with the session's cached cipher
+                                audio.clear();
+                                audio.limit(codec.encode(pcm, 0, count, encoded, 0));
+                                encrypted.clear();
+                                int encryptedLength = ssrc != 0
+                                        ? audioCrypto.encrypt(mediaHeader.set(MediaHeader.PT_VOICE, talkSpurtStart, timestamp, ssrc), 
+                                                              audio, encrypted)
+                                        : SecurityUtils.encryptAudioAES(audio, encrypted, audioCrypto);
+                                packet.setData(packetBuffer, 0, encryptedLength);
                                 
-                                if (packetsSent == 0 || packetsSent % 500 == 0) {
-                                    System.out.println("Sending encrypted microphone audio (original size: " + 
-                                                    count + ", encrypted size: " + dataToSend.length + ")");
+                                if ((packetsSent == 0 || packetsSent % 500 == 0) && Log.isDebugEnabled()) {
+                                    Log.debug("Sending encrypted microphone audio (original size: {}, encoded size: {}, encrypted size: {})", 
+                                              count, audio.limit(), encryptedLength);
                                 }
                             } catch (Exception e) {
-                                System.err.println("Error encrypting microphone data: " + e.getMessage());
+                                Log.error(ENCRYPT_ERROR_LOG, "Error encrypting microphone data: {}", e.getMessage());
                                 // Fall back to unencrypted data if encryption fails
-                                dataToSend = Arrays.copyOf(buffer, count);
+                                packet.setData(pcm, 0, count);
                             }
                         }
                         
                         // Send via UDP
-                        DatagramPacket packet = new DatagramPacket(dataToSend, dataToSend.length, address, PORT);
                         if (!socket.isClosed()) {
                             socket.send(packet);
                             packetsSent++;
+                            talkSpurtStart = false;
                             
-                            if (packetsSent % 50 == 0) {
-                                System.out.println("Sent " + packetsSent + " audio packets (size: " + 
-                                                (encryptionEnabled ? "original: " + count + ", encrypted: " + dataToSend.length : count) + " bytes)");
+                            if (packetsSent % 50 == 0 && Log.isDebugEnabled()) {
+                                Log.debug("Sent {} audio packets (size: {} bytes)", packetsSent, 
+                                          encryptionEnabled ? "original: " + count + ", encrypted: " + packet.getLength() : count);
                             }
                         }
                     }
@@ -500,6 +1023,25 @@ public class Mobile {
         }
     }
     
+    // Open a microphone (mixer null for the default one) at the call's sample rate, or at SAMPLE_RATE
+    // if the device doesn't offer that
+    private TargetDataLine openCaptureLine(Mixer mixer) throws Exception {
+        int[] rates = callRate != SAMPLE_RATE ? new int[] { callRate, SAMPLE_RATE } : new int[] { SAMPLE_RATE };
+        Exception failure = null;
+        for (int rate : rates) {
+            AudioFormat format = new AudioFormat(rate, SAMPLE_SIZE_IN_BITS, CHANNELS, SIGNED, BIG_ENDIAN);
+            DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
+            try {
+                TargetDataLine line = (TargetDataLine) (mixer != null ? mixer.getLine(info) : AudioSystem.getLine(info));
+                line.open(format, BUFFER_SIZE * 5);
+                return line;
+            } catch (LineUnavailableException | IllegalArgumentException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+    
     private void cleanup(TargetDataLine line) {
         try {
             if (running) {  // Only do cleanup here if we're not already in the shutdown hook
@@ -507,27 +1049,9 @@ public class Mobile {
                 
                 if (signalingSocket != null && !signalingSocket.isClosed()) {
                     try {
-                        PrintWriter shutdownOut = new PrintWriter(signalingSocket.getOutputStream(), true);
-                        
-                        // If encryption is enabled, send encrypted END_CALL message
-                        if (encryptionEnabled && aesKey != null && iv != null) {
-                            try {
-                                String endCallMsg = "END_CALL:" + msisdn;
-                                String encryptedMsg = SecurityUtils.encryptStringAES(endCallMsg, aesKey, iv);
-                                shutdownOut.println("ENC:" + encryptedMsg);
-                                System.out.println("Sent encrypted end call signaling to MSC");
-                            } catch (Exception e) {
-                                // Fall back to unencrypted mode if encryption fails
-                                shutdownOut.println("END_CALL:" + msisdn);
-                                System.out.println("Sent unencrypted end call signaling (encryption failed)");
-                            }
-                        } else {
-                            // Unencrypted mode
-                            shutdownOut.println("END_CALL:" + msisdn);
-                            System.out.println("Sent unencrypted end call signaling to MSC");
+                        if (signalingOut != null) {
+                            sendEndCall();
                         }
-                        
-                        shutdownOut.close();
                     } catch (IOException e) {
                         // Ignore, we're shutting down
                     } finally {
@@ -553,7 +1077,7 @@ public class Mobile {
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error during cleanup: " + e.getMessage());
+            Log.error("Error during cleanup: " + e.getMessage());
         }
     }
     
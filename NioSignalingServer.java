@@ -0,0 +1,429 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Selector based signaling engine: one accept thread hands connections round-robin to a small,
+// fixed set of event loops, which parse signaling lines incrementally without blocking on any client
+public class NioSignalingServer implements SignalingServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int INITIAL_LINE_CAPACITY = 256;
+    private static final int MAX_LINE_LENGTH = 64 * 1024; // Key exchange lines are well below this
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final int port;
+    private final Handler handler;
+    private final EventLoop[] eventLoops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    private int nextEventLoop = 0;
+
+    public NioSignalingServer(int port, int eventLoopCount, Handler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        running = true;
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(i);
+            eventLoops[i].thread.start();
+        }
+
+        Thread acceptThread = new Thread(this::acceptConnections, "signaling-accept");
+        acceptThread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Log.error("Error closing signaling server: {}", e.getMessage());
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.selector.wakeup();
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                EventLoop eventLoop = eventLoops[nextEventLoop];
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+                eventLoop.execute(() -> eventLoop.register(channel));
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("Error accepting signaling connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "signaling-loop-" + index);
+        }
+
+        // Run a task on this loop's thread (connection state is only ever touched from here)
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            NioConnection connection = null;
+            try {
+                connection = new NioConnection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                handler.onConnect(connection);
+            } catch (Exception e) {
+                if (connection != null) {
+                    connection.closeNow(e);
+                } else {
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        } catch (RuntimeException e) {
+                            // A bug in one connection's handling must not take the loop's other connections with it
+                            Log.error("Error handling signaling connection " + connection.address + ":" + connection.port, e);
+                            connection.closeNow(e);
+                        }
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            Log.error("Error in signaling event loop task", e);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        Log.error("Error in signaling event loop: {}", e.getMessage());
+                    }
+                }
+            }
+
+            // Shutting down - drop every connection this loop still owns
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).closeNow(null);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore, we're shutting down
+            }
+        }
+    }
+
+    private class NioConnection implements Connection {
+        final EventLoop eventLoop;
+        final SocketChannel channel;
+        final InetAddress address;
+        final int port;
+        final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        SelectionKey key;
+        volatile boolean open = true;
+        volatile boolean binary;
+        volatile Object attachment;
+
+        // Partial line (or frame, once binary) carried over between reads; only allocated while one is incomplete
+        byte[] lineBuffer;
+        int lineLength;
+
+        NioConnection(EventLoop eventLoop, SocketChannel channel) throws IOException {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+            InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+            this.address = remote.getAddress();
+            this.port = remote.getPort();
+        }
+
+        void onReadable() {
+            ByteBuffer buffer = eventLoop.readBuffer;
+            buffer.clear();
+
+            int count;
+            try {
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                closeNow(e);
+                return;
+            }
+            if (count < 0) {
+                closeNow(null);
+                return;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (binary) {
+                    readFrame(buffer);
+                    if (!open) {
+                        return;
+                    }
+                    continue;
+                }
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int length = lineLength;
+                    if (length > 0 && lineBuffer[length - 1] == '\r') {
+                        length--;
+                    }
+                    String line = length == 0 ? "" : new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    if (lineBuffer != null && lineBuffer.length > INITIAL_LINE_CAPACITY) {
+                        lineBuffer = null; // Don't keep key exchange sized buffers around for idle calls
+                    }
+
+                    try {
+                        handler.onLine(this, line);
+                    } catch (Exception e) {
+                        closeNow(e);
+                    }
+                    if (!open) {
+                        return;
+                    }
+                } else {
+                    appendToLine(b);
+                    if (!open) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void appendToLine(byte b) {
+            if (lineBuffer == null) {
+                lineBuffer = new byte[INITIAL_LINE_CAPACITY];
+            } else if (lineLength == lineBuffer.length) {
+                if (lineBuffer.length >= MAX_LINE_LENGTH) {
+                    closeNow(new IOException("Signaling line exceeds " + MAX_LINE_LENGTH + " bytes"));
+                    return;
+                }
+                byte[] grown = new byte[Math.min(lineBuffer.length * 2, MAX_LINE_LENGTH)];
+                System.arraycopy(lineBuffer, 0, grown, 0, lineLength);
+                lineBuffer = grown;
+            }
+            lineBuffer[lineLength++] = b;
+        }
+
+        // Collect the next frame from the buffer into lineBuffer, handing it over once complete. The
+        // header says how long the frame is, so the payload is copied in bulk.
+        private void readFrame(ByteBuffer buffer) {
+            if (lineBuffer == null) {
+                lineBuffer = new byte[INITIAL_LINE_CAPACITY];
+            }
+            while (lineLength < SignalingCodec.HEADER_SIZE) {
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+                lineBuffer[lineLength++] = buffer.get();
+            }
+
+            int frameLength = SignalingCodec.HEADER_SIZE + SignalingCodec.payloadLength(lineBuffer[1], lineBuffer[2]);
+            if (lineBuffer.length < frameLength) {
+                byte[] grown = new byte[frameLength];
+                System.arraycopy(lineBuffer, 0, grown, 0, lineLength);
+                lineBuffer = grown;
+            }
+            int count = Math.min(buffer.remaining(), frameLength - lineLength);
+            buffer.get(lineBuffer, lineLength, count);
+            lineLength += count;
+            if (lineLength < frameLength) {
+                return;
+            }
+
+            int type = lineBuffer[0] & 0xFF;
+            byte[] payload = new byte[frameLength - SignalingCodec.HEADER_SIZE];
+            System.arraycopy(lineBuffer, SignalingCodec.HEADER_SIZE, payload, 0, payload.length);
+            lineLength = 0;
+            if (lineBuffer.length > INITIAL_LINE_CAPACITY) {
+                lineBuffer = null;
+            }
+
+            try {
+                handler.onFrame(this, type, payload);
+            } catch (Exception e) {
+                closeNow(e);
+            }
+        }
+
+        @Override
+        public void send(String line) {
+            enqueue((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void sendFrame(int type, byte[] payload) {
+            enqueue(SignalingCodec.encode(type, payload));
+        }
+
+        private void enqueue(byte[] message) {
+            if (!open) {
+                return;
+            }
+            writeQueue.add(ByteBuffer.wrap(message));
+            if (Thread.currentThread() == eventLoop.thread) {
+                flush();
+            } else {
+                eventLoop.execute(this::flush);
+            }
+        }
+
+        // Only called from onLine on this loop's thread; the rest of the read buffer is parsed as frames
+        @Override
+        public void switchToBinary() {
+            binary = true;
+        }
+
+        @Override
+        public boolean isBinary() {
+            return binary;
+        }
+
+        void flush() {
+            if (!open) {
+                return;
+            }
+            try {
+                ByteBuffer pending;
+                while ((pending = writeQueue.peek()) != null) {
+                    channel.write(pending);
+                    if (pending.hasRemaining()) {
+                        // Socket buffer is full - resume when the selector says it's writable
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                closeNow(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (Thread.currentThread() == eventLoop.thread) {
+                closeNow(null);
+            } else {
+                eventLoop.execute(() -> closeNow(null));
+            }
+        }
+
+        void closeNow(Exception cause) {
+            if (!open) {
+                return;
+            }
+            if (cause == null && key != null && key.isValid()) {
+                flush(); // Best effort delivery of anything queued before the close
+                if (!open) {
+                    return; // flush() already failed and closed the connection
+                }
+            }
+            open = false;
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            writeQueue.clear();
+            lineBuffer = null;
+            try {
+                handler.onDisconnect(this, cause);
+            } catch (RuntimeException e) {
+                Log.error("Error ending signaling connection " + address + ":" + port, e);
+            }
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return address;
+        }
+
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore, the connection is being dropped anyway
+        }
+    }
+}
@@ -0,0 +1,277 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.SourceDataLine;
+
+// Plays the voice of all active calls through one output line. Each call gets a bounded jitter
+// buffer that the voice receivers fill as packets arrive; a single mixer thread takes one frame per
+// call on a fixed clock, sums the 16-bit samples (clipping at the sample range) and writes the mix
+// to the line. Receiving never waits on the audio device, and calls no longer interleave on the line.
+// Samples are 16-bit signed little-endian mono, as sent by the Mobile. Calls at another sample rate
+// than the line are resampled as they are queued. While a caller is silent (DTX), its stream plays
+// comfort noise whenever there is no voice to play.
+public class PlaybackMixer {
+    private final SourceDataLine line;
+    private final int sampleRate;
+    private final int frameSamples;
+    private final long frameNanos;
+    private final int capacitySamples;
+    private final int prebufferSamples;
+    private final List<Stream> streams = new CopyOnWriteArrayList<>();
+    private final int[] mix;
+    private final byte[] output;
+    private final Thread mixerThread;
+    private volatile boolean running = true;
+
+    // Totals over all calls, including calls that have ended
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong droppedSamples = new AtomicLong();
+    private volatile long framesMixed;
+
+    public PlaybackMixer(SourceDataLine line, int sampleRate, int frameMillis, int jitterMillis, int prebufferMillis) {
+        this.line = line;
+        this.sampleRate = sampleRate;
+        this.frameSamples = sampleRate * frameMillis / 1000;
+        this.frameNanos = TimeUnit.MILLISECONDS.toNanos(frameMillis);
+        this.capacitySamples = Math.max(frameSamples * 2, sampleRate * jitterMillis / 1000);
+        this.prebufferSamples = Math.min(capacitySamples - frameSamples, sampleRate * prebufferMillis / 1000);
+        this.mix = new int[frameSamples];
+        this.output = new byte[frameSamples * 2];
+
+        this.mixerThread = new Thread(this::mixFrames, "playback-mixer");
+        this.mixerThread.setDaemon(true);
+        this.mixerThread.start();
+    }
+
+    // Start playing a call; name is only used in log messages
+    public Stream addStream(String name) {
+        return addStream(name, sampleRate);
+    }
+
+    // Start playing a call whose audio has the given sample rate
+    public Stream addStream(String name, int streamRate) {
+        Stream stream = new Stream(name, streamRate != sampleRate ? new Resampler(streamRate, sampleRate) : null);
+        streams.add(stream);
+        return stream;
+    }
+
+    public long getUnderruns() {
+        return underruns.get();
+    }
+
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+
+    public long getFramesMixed() {
+        return framesMixed;
+    }
+
+    public int getActiveStreams() {
+        return streams.size();
+    }
+
+    // Samples waiting in all jitter buffers
+    public long getQueuedSamples() {
+        long queued = 0;
+        for (Stream stream : streams) {
+            queued += stream.getQueuedSamples();
+        }
+        return queued;
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(mixerThread);
+        try {
+            mixerThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        line.stop();
+        line.close();
+    }
+
+    private void mixFrames() {
+        long nextFrame = System.nanoTime();
+        while (running) {
+            long waitNanos;
+            while (running && (waitNanos = nextFrame - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, waitNanos);
+            }
+            if (!running) {
+                break;
+            }
+
+            Arrays.fill(mix, 0);
+            boolean audible = false;
+            for (Stream stream : streams) {
+                audible |= stream.mixInto(mix);
+            }
+
+            if (audible) {
+                for (int i = 0; i < frameSamples; i++) {
+                    int sample = mix[i];
+                    if (sample > Short.MAX_VALUE) {
+                        sample = Short.MAX_VALUE;
+                    } else if (sample < Short.MIN_VALUE) {
+                        sample = Short.MIN_VALUE;
+                    }
+                    output[i * 2] = (byte) sample;
+                    output[i * 2 + 1] = (byte) (sample >> 8);
+                }
+                // May block while the device catches up; only this thread waits on the line
+                line.write(output, 0, output.length);
+                framesMixed++;
+            }
+
+            nextFrame += frameNanos;
+            // After a stall (e.g. a blocked write), pick the clock up again instead of bursting
+            if (System.nanoTime() - nextFrame > frameNanos * 4) {
+                nextFrame = System.nanoTime();
+            }
+        }
+    }
+
+    // Jitter buffer of one call: a ring of samples written by the voice receiver and drained one
+    // frame per tick by the mixer. Playback starts (and restarts after an underrun) only once the
+    // prebuffer target is reached; when the ring is full the oldest audio is dropped, so latency
+    // stays bounded.
+    public final class Stream {
+        private final String name;
+        private final Resampler resampler; // null when the call has the line's sample rate
+        private byte[] resampled = new byte[0];
+        private final short[] ring = new short[capacitySamples];
+        private int readIndex;
+        private int available;
+        private boolean playing;
+        private boolean closed;
+        private long streamUnderruns;
+        private long streamOverruns;
+        private final ComfortNoise noise = new ComfortNoise();
+        private int noiseLevel = -1; // Comfort noise level until voice plays again; -1 for none
+
+        Stream(String name, Resampler resampler) {
+            this.name = name;
+            this.resampler = resampler;
+        }
+
+        // Queue 16-bit little-endian samples; a trailing odd byte is ignored
+        public synchronized void write(byte[] data, int offset, int length) {
+            if (closed) {
+                return;
+            }
+            if (resampler != null) {
+                int needed = resampler.maxOutputLength(length);
+                if (resampled.length < needed) {
+                    resampled = new byte[needed];
+                }
+                length = resampler.process(data, offset, length, resampled, 0);
+                data = resampled;
+                offset = 0;
+            }
+            int samples = length / 2;
+            if (samples > capacitySamples) {
+                offset += (samples - capacitySamples) * 2;
+                droppedSamples.addAndGet(samples - capacitySamples);
+                samples = capacitySamples;
+            }
+
+            int overflow = available + samples - capacitySamples;
+            if (overflow > 0) {
+                readIndex = (readIndex + overflow) % capacitySamples;
+                available -= overflow;
+                streamOverruns++;
+                overruns.incrementAndGet();
+                droppedSamples.addAndGet(overflow);
+            }
+
+            int writeIndex = (readIndex + available) % capacitySamples;
+            for (int i = 0; i < samples; i++) {
+                ring[writeIndex] = (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+                offset += 2;
+                if (++writeIndex == capacitySamples) {
+                    writeIndex = 0;
+                }
+            }
+            available += samples;
+        }
+
+        // Add this call's next frame to the mix; returns false if it contributed nothing
+        synchronized boolean mixInto(int[] mix) {
+            if (!playing) {
+                if (available < Math.max(frameSamples, prebufferSamples)) {
+                    if (noiseLevel >= 0) {
+                        noise.mix(mix, 0, frameSamples, noiseLevel);
+                        return true;
+                    }
+                    return false;
+                }
+                playing = true;
+                noiseLevel = -1;
+            }
+
+            int samples = Math.min(available, frameSamples);
+            if (samples < frameSamples) {
+                // Ran dry mid-frame: play what is there, then rebuild the prebuffer. Running out of
+                // voice is expected once the caller is silent, and noise fills the rest.
+                if (noiseLevel >= 0) {
+                    noise.mix(mix, samples, frameSamples - samples, noiseLevel);
+                } else {
+                    streamUnderruns++;
+                    underruns.incrementAndGet();
+                }
+                playing = false;
+            }
+            for (int i = 0; i < samples; i++) {
+                mix[i] += ring[readIndex];
+                if (++readIndex == capacitySamples) {
+                    readIndex = 0;
+                }
+            }
+            available -= samples;
+            return samples > 0 || noiseLevel >= 0;
+        }
+
+        // The caller went silent: play noise at level (see ComfortNoise) once the queued voice has
+        // played, until new voice has been buffered
+        public synchronized void comfortNoise(int level) {
+            if (!closed) {
+                noiseLevel = level;
+            }
+        }
+
+        public synchronized int getQueuedSamples() {
+            return available;
+        }
+
+        public synchronized long getUnderruns() {
+            return streamUnderruns;
+        }
+
+        public synchronized long getOverruns() {
+            return streamOverruns;
+        }
+
+        // Stop playing this call; anything still buffered is discarded
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                available = 0;
+            }
+            streams.remove(this);
+            Log.debug("Playback for {} stopped ({} underruns, {} overruns)", name, getUnderruns(), getOverruns());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+// Streaming sample rate converter for 16-bit little-endian mono PCM, e.g. 44.1 kHz microphone audio
+// down to a 16 kHz call. It is a polyphase FIR filter: the ratio is reduced to up/down (160/441 for
+// 44.1 to 16 kHz) and each output sample is one dot product of input samples with the filter phase
+// for its fractional position. The filter is a Blackman-windowed sinc cut off below the lower of the
+// two Nyquist frequencies, which keeps aliasing out of a downsampled call; it spans TAPS samples of
+// the lower rate, so its transition band stays the same width relative to the call's bandwidth.
+//
+// Input may come in pieces of any size; the newest input samples (one filter length) and the
+// fractional position are carried over, so the output is the same as converting the whole stream at
+// once. One instance converts one stream and isn't thread-safe.
+public final class Resampler {
+    private static final int TAPS = 32;        // Filter length in samples of the lower rate
+    private static final double ROLLOFF = 0.9; // Cutoff as a fraction of the lower Nyquist frequency
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int up;
+    private final int down;
+    private final int taps;                 // Per phase, i.e. input samples per output sample
+    private final float[][] phases;         // [phase][tap], tap 0 applying to the newest input sample
+    private float[] work;                   // Carried history followed by the new input
+    private int position;                   // Next output's newest input sample, as an index into work
+    private int phase;                      // Next output's fractional position, in 1/up input samples
+
+    public Resampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Invalid sample rates: " + inputRate + " -> " + outputRate);
+        }
+        int gcd = gcd(inputRate, outputRate);
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+        this.taps = (int) Math.ceil(TAPS * Math.max(1.0, (double) down / up));
+        this.phases = designFilter(up, down, taps);
+        this.work = new float[taps - 1];
+        this.position = taps - 1;
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    // Most output bytes that converting inputLength bytes can produce
+    public int maxOutputLength(int inputLength) {
+        return (int) (((long) (inputLength / 2) * up / down + 2) * 2);
+    }
+
+    // Convert length bytes of input (a trailing odd byte is ignored); returns the bytes written to out
+    public int process(byte[] in, int offset, int length, byte[] out, int outOffset) {
+        int samples = length / 2;
+        int history = taps - 1;
+        if (work.length < history + samples) {
+            work = java.util.Arrays.copyOf(work, history + samples);
+        }
+        for (int i = 0; i < samples; i++) {
+            work[history + i] = (short) ((in[offset + 2 * i] & 0xFF) | (in[offset + 2 * i + 1] << 8));
+        }
+        int end = history + samples;
+
+        int written = outOffset;
+        while (position < end) {
+            float[] coefficients = phases[phase];
+            float sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += coefficients[k] * work[position - k];
+            }
+            int sample = Math.round(sum);
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            out[written++] = (byte) sample;
+            out[written++] = (byte) (sample >> 8);
+
+            phase += down;
+            position += phase / up;
+            phase %= up;
+        }
+
+        // Keep the newest samples as history for the next call
+        System.arraycopy(work, end - history, work, 0, history);
+        position -= samples;
+        return written - outOffset;
+    }
+
+    // Prototype low-pass at up times the input rate, split into up phases of taps coefficients.
+    // Each phase is normalized to unity gain at DC, so a constant input stays constant.
+    private static float[][] designFilter(int up, int down, int taps) {
+        int length = taps * up;
+        double cutoff = ROLLOFF * 0.5 / Math.max(up, down); // Cycles per prototype sample
+        double center = (length - 1) / 2.0;
+        float[][] phases = new float[up][taps];
+        for (int p = 0; p < up; p++) {
+            double sum = 0;
+            double[] coefficients = new double[taps];
+            for (int k = 0; k < taps; k++) {
+                int j = k * up + p;
+                double x = j - center;
+                double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+                double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * j / (length - 1))
+                                + 0.08 * Math.cos(4 * Math.PI * j / (length - 1));
+                coefficients[k] = sinc * window;
+                sum += coefficients[k];
+            }
+            for (int k = 0; k < taps; k++) {
+                phases[p][k] = (float) (coefficients[k] / sum);
+            }
+        }
+        return phases;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
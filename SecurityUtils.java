@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.security.Key;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -77,17 +78,11 @@ public class SecurityUtils {
         // First 4 bytes will be the original length
         int audioLength = audioData.length;
         
-        // Calculate padded length for the audio data (must be multiple of 16 bytes for AES block size)
-        int paddedAudioLength = (audioLength + 15) & ~15; // Round up to multiple of 16
-        
         // Combined buffer: 4 bytes for length + padded audio data
-        byte[] combinedData = new byte[4 + paddedAudioLength];
+        byte[] combinedData = new byte[4 + paddedAudioLength(audioLength)];
         
         // Store the original length in the first 4 bytes (big-endian)
-        combinedData[0] = (byte) ((audioLength >> 24) & 0xFF);
-        combinedData[1] = (byte) ((audioLength >> 16) & 0xFF);
-        combinedData[2] = (byte) ((audioLength >> 8) & 0xFF);
-        combinedData[3] = (byte) (audioLength & 0xFF);
+        writeAudioLength(combinedData, audioLength);
         
         // Copy audio data after the length bytes
         System.arraycopy(audioData, 0, combinedData, 4, audioLength);
@@ -118,7 +113,56 @@ public class SecurityUtils {
         }
         
         // Extract the original length from the first 4 bytes
-        if (decryptedCombined.length < 4) {
+        int originalLength = readAudioLength(decryptedCombined, decryptedCombined.length);
+        
+        // Create result buffer of the original size
+        byte[] result = new byte[originalLength];
+        
+        // Copy only the original audio data (skipping the length bytes)
+        System.arraycopy(decryptedCombined, 4, result, 0, originalLength);
+        
+        return result;
+    }
+    
+    // Create a per-session audio crypto context so the voice hot path skips provider lookup
+    // and key setup on every packet (see AudioCryptoContext)
+    public static AudioCryptoContext createAudioContext(SecretKey key, byte[] iv) throws Exception {
+        return new AudioCryptoContext(key, iv, AES_ALGORITHM);
+    }
+    
+    // Session context for a negotiated voice packet format (CBC is the one every client supports)
+    public static AudioCryptoContext createAudioContext(SecretKey key, byte[] iv, AudioCryptoContext.Mode mode) throws Exception {
+        return mode == AudioCryptoContext.Mode.GCM ? new AudioCryptoContext(key, iv) : new AudioCryptoContext(key, iv, AES_ALGORITHM);
+    }
+    
+    // Buffer based variant for the voice hot path: encrypts audio (position..limit) into the
+    // caller's out buffer with a session context and returns the encrypted packet length
+    public static int encryptAudioAES(ByteBuffer audio, ByteBuffer out, AudioCryptoContext context) throws Exception {
+        return context.encrypt(audio, out);
+    }
+    
+    // Buffer based variant for the voice hot path: decrypts packet (position..limit) into the
+    // caller's out buffer, leaves out framing the audio payload and returns its length
+    public static int decryptAudioAES(ByteBuffer packet, ByteBuffer out, AudioCryptoContext context) throws Exception {
+        return context.decrypt(packet, out);
+    }
+    
+    // Round an audio payload up to a multiple of the 16 byte AES block size
+    static int paddedAudioLength(int audioLength) {
+        return (audioLength + 15) & ~15;
+    }
+    
+    // Store the original audio length as the 4 byte big-endian packet header
+    static void writeAudioLength(byte[] combinedData, int audioLength) {
+        combinedData[0] = (byte) ((audioLength >> 24) & 0xFF);
+        combinedData[1] = (byte) ((audioLength >> 16) & 0xFF);
+        combinedData[2] = (byte) ((audioLength >> 8) & 0xFF);
+        combinedData[3] = (byte) (audioLength & 0xFF);
+    }
+    
+    // Read and validate the audio length header of a decrypted packet
+    static int readAudioLength(byte[] decryptedCombined, int decryptedLength) {
+        if (decryptedLength < 4) {
             throw new IllegalArgumentException("Decrypted data too short to contain length header");
         }
         
@@ -129,17 +173,10 @@ public class SecurityUtils {
             (decryptedCombined[3] & 0xFF);
         
         // Ensure the extracted length is reasonable to prevent issues
-        if (originalLength <= 0 || originalLength > decryptedCombined.length - 4) {
+        if (originalLength <= 0 || originalLength > decryptedLength - 4) {
             throw new IllegalArgumentException("Invalid decoded audio length: " + originalLength);
         }
-        
-        // Create result buffer of the original size
-        byte[] result = new byte[originalLength];
-        
-        // Copy only the original audio data (skipping the length bytes)
-        System.arraycopy(decryptedCombined, 4, result, 0, originalLength);
-        
-        return result;
+        return originalLength;
     }
     
     // Encode key to Base64 string for sending over network
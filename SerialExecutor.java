@@ -0,0 +1,50 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs tasks one at a time, in submission order, on a shared executor. Each signaling session
+// gets one, so its messages are handled in order without tying up a thread between them, and
+// without the event loop that read them waiting for the handler. execute() never blocks; at most
+// one task per instance is queued on, or running in, the shared executor at a time.
+public class SerialExecutor implements Executor {
+    private final Executor threads;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public SerialExecutor(Executor threads) {
+        this.threads = threads;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                threads.execute(this::runNext);
+            } catch (RejectedExecutionException e) {
+                // The shared executor is shutting down; nothing queued here will run
+                tasks.clear();
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void runNext() {
+        try {
+            Runnable task = tasks.poll();
+            if (task != null) {
+                task.run();
+            }
+        } finally {
+            scheduled.set(false);
+            schedule();
+        }
+    }
+}
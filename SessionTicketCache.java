@@ -0,0 +1,123 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKey;
+
+// Session resumption for repeat callers. After a full RSA key exchange the MSC can hand the client
+// an opaque ticket naming the AES key it just agreed; the client presents the ticket (with a fresh
+// IV) on its next connection instead of an RSA-encrypted key, skipping the private-key operation.
+// Tickets are random, single-use (redeeming one removes it; the client asks for a new one each
+// call), tied to the MSISDN they were issued for, and expire after a fixed lifetime. The cache holds
+// at most maxTickets; the oldest ticket is dropped to make room.
+public class SessionTicketCache {
+    public static final int TICKET_LENGTH = 16;
+
+    private final int maxTickets;
+    private final long ttlNanos;
+    private final SecureRandom random = new SecureRandom();
+    // Insertion order is expiry order, since every ticket gets the same lifetime (guarded by this)
+    private final LinkedHashMap<String, Entry> tickets = new LinkedHashMap<>();
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    public SessionTicketCache(int maxTickets, long ttl, TimeUnit unit) {
+        this.maxTickets = Math.max(1, maxTickets);
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    // A new ticket for the key, valid for getTtlSeconds()
+    public byte[] issue(String msisdn, SecretKey key) {
+        byte[] ticket = new byte[TICKET_LENGTH];
+        random.nextBytes(ticket);
+        long now = System.nanoTime();
+        synchronized (this) {
+            purgeExpired(now);
+            if (tickets.size() >= maxTickets) {
+                Iterator<Entry> oldest = tickets.values().iterator();
+                oldest.next();
+                oldest.remove();
+                evicted.incrementAndGet();
+            }
+            tickets.put(idOf(ticket), new Entry(msisdn, key, now + ttlNanos));
+        }
+        issued.incrementAndGet();
+        return ticket;
+    }
+
+    // Redeem a ticket: returns its entry and forgets the ticket, or null if unknown or expired
+    public Entry redeem(byte[] ticket) {
+        if (ticket.length != TICKET_LENGTH) {
+            misses.incrementAndGet();
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = tickets.remove(idOf(ticket));
+        }
+        if (entry == null || System.nanoTime() - entry.expiresNanos >= 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        resumed.incrementAndGet();
+        return entry;
+    }
+
+    public int getTtlSeconds() {
+        return (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toSeconds(ttlNanos));
+    }
+
+    public synchronized int size() {
+        return tickets.size();
+    }
+
+    public long getIssued() {
+        return issued.get();
+    }
+
+    public long getResumed() {
+        return resumed.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    // Caller holds the lock. Expired tickets are all at the head, so this stops at the first live one.
+    private void purgeExpired(long now) {
+        Iterator<Map.Entry<String, Entry>> it = tickets.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().expiresNanos < 0) {
+                break;
+            }
+            it.remove();
+            evicted.incrementAndGet();
+        }
+    }
+
+    private static String idOf(byte[] ticket) {
+        return Base64.getEncoder().encodeToString(ticket);
+    }
+
+    public static final class Entry {
+        public final String msisdn;
+        public final SecretKey key;
+        final long expiresNanos;
+
+        Entry(String msisdn, SecretKey key, long expiresNanos) {
+            this.msisdn = msisdn;
+            this.key = key;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+}
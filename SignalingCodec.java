@@ -0,0 +1,157 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Binary signaling frames: [type: 1 byte][payload length: 2 bytes, big-endian][payload].
+// Keys, IVs and ciphertext travel as raw bytes instead of Base64 text lines.
+//
+// A connection always starts in the text protocol, with the MSC sending its PUBLIC_KEY line. A client
+// that wants frames answers with the NEGOTIATE line; an MSC that supports them replies NEGOTIATED, and
+// from then on both directions use frames only. Old clients never ask, and an old MSC ignores the
+// request, so the client falls back to text after a short wait.
+//
+// ENCRYPTED frames carry another frame (e.g. START_CALL), AES-encrypted with the session key.
+public final class SignalingCodec {
+    public static final String NEGOTIATE = "PROTO:BINARY";
+    public static final String NEGOTIATED = "PROTO_OK:BINARY";
+
+    public static final int HEADER_SIZE = 3;
+    public static final int MAX_PAYLOAD = 0xFFFF;
+
+    public static final int PUBLIC_KEY = 1;      // X.509 encoded RSA public key
+    public static final int AES_KEY = 2;         // AES key encrypted with the MSC's public key
+    public static final int IV = 3;              // 16 byte AES IV
+    public static final int READY = 4;           // MSC is ready for encrypted frames (empty payload)
+    public static final int START_CALL = 5;      // MSISDN
+    public static final int END_CALL = 6;        // MSISDN
+    public static final int TERMINATE_CALL = 7;  // Reason
+    public static final int ENCRYPTED = 8;       // AES ciphertext of another frame
+    public static final int RESUME = 9;          // Session ticket followed by a new 16 byte IV, instead of AES_KEY and IV
+    public static final int RESUME_FAILED = 10;  // Ticket not accepted - do the full key exchange (empty payload)
+    public static final int TICKET_REQUEST = 11; // Encrypted: ask for a session ticket (empty payload)
+    public static final int TICKET = 12;         // Encrypted: lifetime in seconds (4 bytes), then the ticket
+    public static final int AUDIO_CIPHER = 13;   // Encrypted: voice packet format wanted / agreed, e.g. "AES-GCM"
+    public static final int VOICE_CODEC = 14;    // Encrypted: voice codecs offered in order of preference / agreed, e.g. "PCMU"
+    public static final int SAMPLE_RATE = 15;    // Encrypted: sample rates offered in order of preference / agreed, e.g. "16000"
+    public static final int MEDIA_HEADER = 16;   // Encrypted: media header version wanted / SSRC assigned (0 for none)
+
+    private static final String[] TYPE_NAMES = {
+        null, "PUBLIC_KEY", "AES_KEY", "IV", "READY_FOR_ENCRYPTED", "START_CALL", "END_CALL", "TERMINATE_CALL", "ENC",
+        "RESUME", "RESUME_FAILED", "TICKET_REQUEST", "TICKET", "AUDIO_CIPHER", "VOICE_CODEC", "SAMPLE_RATE",
+        "MEDIA_HEADER"
+    };
+
+    private SignalingCodec() {
+    }
+
+    public static byte[] encode(int type, byte[] payload) {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Signaling payload too large: " + payload.length + " bytes");
+        }
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        frame[0] = (byte) type;
+        frame[1] = (byte) (payload.length >>> 8);
+        frame[2] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+        return frame;
+    }
+
+    public static byte[] encode(int type, String value) {
+        return encode(type, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Frame for a text protocol message such as "START_CALL:<msisdn>"
+    public static byte[] encode(String message) {
+        int colon = message.indexOf(':');
+        String name = colon < 0 ? message : message.substring(0, colon);
+        for (int type = 1; type < TYPE_NAMES.length; type++) {
+            if (TYPE_NAMES[type].equals(name) && type != ENCRYPTED) {
+                return encode(type, colon < 0 ? "" : message.substring(colon + 1));
+            }
+        }
+        throw new IllegalArgumentException("No binary form for signaling message: " + message);
+    }
+
+    // The text protocol form of a frame with a text payload, e.g. "TERMINATE_CALL:<reason>"
+    public static String toText(int type, byte[] payload) {
+        String name = type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "UNKNOWN_" + type;
+        return payload.length == 0 ? name : name + ":" + new String(payload, StandardCharsets.UTF_8);
+    }
+
+    // Parse exactly one frame, e.g. the plaintext of an ENCRYPTED frame
+    public static Frame decode(byte[] data) throws IOException {
+        if (data.length < HEADER_SIZE) {
+            throw new IOException("Truncated signaling frame");
+        }
+        int length = payloadLength(data[1], data[2]);
+        if (data.length != HEADER_SIZE + length) {
+            throw new IOException("Signaling frame length " + length + " doesn't match " +
+                                  (data.length - HEADER_SIZE) + " payload bytes");
+        }
+        byte[] payload = new byte[length];
+        System.arraycopy(data, HEADER_SIZE, payload, 0, length);
+        return new Frame(data[0] & 0xFF, payload);
+    }
+
+    // Blocking read of the next frame; returns null at end of stream
+    public static Frame readFrame(InputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        int high = in.read();
+        int low = in.read();
+        if (low < 0) {
+            throw new EOFException("Connection closed inside a signaling frame");
+        }
+        byte[] payload = new byte[payloadLength((byte) high, (byte) low)];
+        int read = 0;
+        while (read < payload.length) {
+            int count = in.read(payload, read, payload.length - read);
+            if (count < 0) {
+                throw new EOFException("Connection closed inside a signaling frame");
+            }
+            read += count;
+        }
+        return new Frame(type, payload);
+    }
+
+    // Blocking read of one text line, a byte at a time from the stream's own buffer so nothing after
+    // the line is consumed (the peer may switch to frames right after it). Returns null at end of stream.
+    public static String readLine(InputStream in, int maxLength) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8.name());
+            }
+            if (line.size() >= maxLength) {
+                throw new IOException("Signaling line exceeds " + maxLength + " bytes");
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    static int payloadLength(byte high, byte low) {
+        return ((high & 0xFF) << 8) | (low & 0xFF);
+    }
+
+    public static final class Frame {
+        public final int type;
+        public final byte[] payload;
+
+        Frame(int type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.net.InetAddress;
+
+// Common contract for the MSC signaling engines (NIO event loops or one blocking thread per client)
+public interface SignalingServer {
+
+    void start() throws IOException;
+
+    void stop();
+
+    // Callbacks from the engine; all calls for one connection are made from a single thread at a time
+    interface Handler {
+        void onConnect(Connection connection) throws Exception;
+
+        // Called once per complete signaling line, without the line terminator
+        void onLine(Connection connection, String line) throws Exception;
+
+        // Called once per complete binary frame, after the connection switched to frames
+        void onFrame(Connection connection, int type, byte[] payload) throws Exception;
+
+        // cause is null when the client closed the connection normally
+        void onDisconnect(Connection connection, Exception cause);
+    }
+
+    // A connected signaling client, independent of how its socket is serviced
+    interface Connection {
+        InetAddress getInetAddress();
+
+        int getPort();
+
+        // Queue one line (a '\n' is appended) for sending; safe to call from any thread
+        void send(String line);
+
+        // Queue one binary frame for sending; only valid once the connection switched to frames
+        void sendFrame(int type, byte[] payload);
+
+        // From now on read and write SignalingCodec frames instead of lines. Must be called from the
+        // handler callback that received the negotiation line, so no byte is parsed the wrong way.
+        void switchToBinary();
+
+        boolean isBinary();
+
+        void close();
+
+        boolean isOpen();
+
+        Object getAttachment();
+
+        void setAttachment(Object attachment);
+    }
+}
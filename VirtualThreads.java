@@ -0,0 +1,66 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Thread-per-task executors that use virtual threads when the JVM has them (JDK 21+) and daemon
+// platform threads otherwise. The virtual thread API is looked up reflectively so the sources keep
+// building and running on JDK 11.
+final class VirtualThreads {
+    private static final ThreadFactory VIRTUAL_FACTORY_PROTOTYPE = lookupFactory("virtual");
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = lookupExecutorMethod();
+
+    private VirtualThreads() {
+    }
+
+    static boolean isAvailable() {
+        return VIRTUAL_FACTORY_PROTOTYPE != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    // One new thread per submitted task, named namePrefix-0, namePrefix-1, ...
+    static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        if (isAvailable()) {
+            ThreadFactory factory = lookupFactory(namePrefix);
+            if (factory != null) {
+                try {
+                    return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+                } catch (ReflectiveOperationException e) {
+                    Log.error("Virtual threads unavailable, using platform threads: {}", e.getMessage());
+                }
+            }
+        }
+
+        return Executors.newCachedThreadPool(platformThreads(namePrefix));
+    }
+
+    // Daemon platform threads named namePrefix-0, namePrefix-1, ...
+    static ThreadFactory platformThreads(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, namePrefix + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Thread.ofVirtual().name(namePrefix, 0).factory()
+    private static ThreadFactory lookupFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null; // Pre-21 JVM (or preview API not enabled)
+        }
+    }
+
+    private static Method lookupExecutorMethod() {
+        try {
+            return Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+// Energy-based voice activity detection, which decides when the Mobile can stop sending voice
+// (see ComfortNoise). Each packet's short-term energy, the mean square of its 16-bit samples in
+// dBov, is compared with a running estimate of the background noise, and anything SPEECH_MARGIN_DB
+// above it is speech. The estimate drops to a quieter packet at once and creeps up by at most
+// NOISE_RISE_DB_PER_SECOND, so it follows a noisier room without chasing the talker; it never goes
+// above MAX_NOISE_DBOV, so loud steady sounds such as the test tones stay speech.
+//
+// After speech, HANGOVER_MILLIS more audio counts as speech, which keeps word endings (quiet, but
+// not silence) and the short gaps between words. One instance per call; it isn't thread-safe.
+public final class VoiceActivityDetector {
+    private static final double SPEECH_MARGIN_DB = 9;
+    private static final double NOISE_RISE_DB_PER_SECOND = 3;
+    private static final double MAX_NOISE_DBOV = -35;
+    private static final int HANGOVER_MILLIS = 200;
+    private static final double SILENCE_SMOOTHING = 0.3; // Weight of the newest packet in the SID level
+
+    private final int sampleRate;
+    private final int hangoverSamples;
+    private double noiseDbov = MAX_NOISE_DBOV;
+    private double silenceMeanSquare = -1; // Smoothed energy of the packets held back; -1 before the first
+    private int hangover;                  // Samples still to be treated as speech
+
+    public VoiceActivityDetector(int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.hangoverSamples = sampleRate * HANGOVER_MILLIS / 1000;
+    }
+
+    // Classify one packet of 16-bit little-endian PCM
+    public boolean isSpeech(byte[] pcm, int offset, int length) {
+        int samples = length / 2;
+        if (samples == 0) {
+            return hangover > 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < samples; i++) {
+            int sample = (short) ((pcm[offset + 2 * i] & 0xFF) | (pcm[offset + 2 * i + 1] << 8));
+            sum += sample * sample;
+        }
+        double meanSquare = (double) sum / samples;
+        double dbov = ComfortNoise.toDbov(meanSquare);
+
+        if (dbov < noiseDbov) {
+            noiseDbov = dbov;
+        } else {
+            double rise = NOISE_RISE_DB_PER_SECOND * samples / sampleRate;
+            noiseDbov = Math.min(MAX_NOISE_DBOV, Math.min(dbov, noiseDbov + rise));
+        }
+
+        if (dbov > noiseDbov + SPEECH_MARGIN_DB) {
+            hangover = hangoverSamples;
+            return true;
+        }
+        if (hangover > 0) {
+            hangover -= samples;
+            return true;
+        }
+        silenceMeanSquare = silenceMeanSquare < 0 ? meanSquare
+                : silenceMeanSquare + SILENCE_SMOOTHING * (meanSquare - silenceMeanSquare);
+        return false;
+    }
+
+    // Level of the background noise for a SID, in -dBov
+    public int getNoiseLevel() {
+        return ComfortNoise.toLevel(silenceMeanSquare < 0 ? noiseDbov : ComfortNoise.toDbov(silenceMeanSquare));
+    }
+}
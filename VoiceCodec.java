@@ -0,0 +1,281 @@
+// Voice payload codecs. The Mobile encodes each captured packet before encrypting it and the MSC
+// decodes it after decrypting, so a compressed codec saves bandwidth and encryption work on both
+// sides. The PCM on either side of a codec is 16-bit little-endian mono, as captured and played.
+//
+// Every packet decodes on its own, so a lost packet costs its own audio and nothing after it. An
+// encoder may carry state from packet to packet (ADPCM keeps its step size), so each call gets its
+// own instance from forName().
+//
+//   PCM        16-bit samples as they are; what every MSC and Mobile assumes when nothing is agreed
+//   PCMU       G.711 mu-law, 8 bits per sample (2:1)
+//   IMA-ADPCM  4 bits per sample (about 4:1). A packet starts with a 4 byte header: the first sample
+//              (16-bit LE), the step index, and 1 if the last code is padding (0 otherwise). One 4-bit
+//              code per following sample comes next, two per byte, low nibble first.
+public interface VoiceCodec {
+    String PCM = "PCM";
+    String PCMU = "PCMU";
+    String IMA_ADPCM = "IMA-ADPCM";
+
+    // A new codec instance for a wire name, or null for a codec we don't have
+    static VoiceCodec forName(String name) {
+        switch (name.trim().toUpperCase()) {
+            case PCM:
+                return new Pcm();
+            case PCMU:
+                return new MuLaw();
+            case IMA_ADPCM:
+                return new ImaAdpcm();
+            default:
+                return null;
+        }
+    }
+
+    String getName();
+
+    // Largest encoding of pcmLength bytes of PCM
+    int maxEncodedLength(int pcmLength);
+
+    // Largest PCM decoded from encodedLength bytes
+    int maxDecodedLength(int encodedLength);
+
+    // Encode length bytes of PCM (a trailing odd byte is ignored); returns the bytes written to out
+    int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset);
+
+    // Decode one packet; returns the PCM bytes written. Never fails on the contents of a packet:
+    // whatever decrypted correctly is played, and a packet too short to decode gives no audio.
+    int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset);
+
+    default boolean isPcm() {
+        return false;
+    }
+
+    final class Pcm implements VoiceCodec {
+        @Override
+        public String getName() {
+            return PCM;
+        }
+
+        @Override
+        public boolean isPcm() {
+            return true;
+        }
+
+        @Override
+        public int maxEncodedLength(int pcmLength) {
+            return pcmLength;
+        }
+
+        @Override
+        public int maxDecodedLength(int encodedLength) {
+            return encodedLength;
+        }
+
+        @Override
+        public int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+            length &= ~1;
+            System.arraycopy(pcm, offset, out, outOffset, length);
+            return length;
+        }
+
+        @Override
+        public int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset) {
+            System.arraycopy(data, offset, pcm, pcmOffset, length);
+            return length;
+        }
+    }
+
+    final class MuLaw implements VoiceCodec {
+        private static final int BIAS = 0x84;
+        private static final int CLIP = 32635;
+        private static final short[] DECODED = new short[256];
+        private static final byte[] ENCODED = new byte[65536]; // By 16-bit sample: a load instead of the bit search
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int code = ~i & 0xFF;
+                int exponent = (code >> 4) & 0x07;
+                int sample = ((((code & 0x0F) << 3) + BIAS) << exponent) - BIAS;
+                DECODED[i] = (short) ((code & 0x80) != 0 ? -sample : sample);
+            }
+            for (int sample = Short.MIN_VALUE; sample <= Short.MAX_VALUE; sample++) {
+                ENCODED[sample & 0xFFFF] = compress(sample);
+            }
+        }
+
+        public static byte encodeSample(short sample) {
+            return ENCODED[sample & 0xFFFF];
+        }
+
+        private static byte compress(int sample) {
+            int sign = (sample >> 8) & 0x80;
+            if (sign != 0) {
+                sample = -sample;
+            }
+            sample = Math.min(sample, CLIP) + BIAS;
+            int exponent = Math.max(0, 24 - Integer.numberOfLeadingZeros(sample)); // Top bit above bit 7
+            int mantissa = (sample >> (exponent + 3)) & 0x0F;
+            return (byte) ~(sign | (exponent << 4) | mantissa);
+        }
+
+        public static int decodeSample(byte code) {
+            return DECODED[code & 0xFF];
+        }
+
+        @Override
+        public String getName() {
+            return PCMU;
+        }
+
+        @Override
+        public int maxEncodedLength(int pcmLength) {
+            return pcmLength / 2;
+        }
+
+        @Override
+        public int maxDecodedLength(int encodedLength) {
+            return encodedLength * 2;
+        }
+
+        @Override
+        public int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+            int samples = length / 2;
+            for (int i = 0; i < samples; i++) {
+                out[outOffset + i] = ENCODED[(pcm[offset + 2 * i] & 0xFF) | ((pcm[offset + 2 * i + 1] & 0xFF) << 8)];
+            }
+            return samples;
+        }
+
+        @Override
+        public int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset) {
+            for (int i = 0; i < length; i++) {
+                short sample = DECODED[data[offset + i] & 0xFF];
+                pcm[pcmOffset + 2 * i] = (byte) sample;
+                pcm[pcmOffset + 2 * i + 1] = (byte) (sample >> 8);
+            }
+            return length * 2;
+        }
+    }
+
+    final class ImaAdpcm implements VoiceCodec {
+        private static final int HEADER_SIZE = 4;
+        private static final int[] INDEX_ADJUST = { -1, -1, -1, -1, 2, 4, 6, 8 };
+        private static final int[] STEP_SIZES = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66,
+            73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408,
+            449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630,
+            9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+        };
+
+        private int stepIndex; // Carried into the next packet's header, so the step doesn't restart
+
+        @Override
+        public String getName() {
+            return IMA_ADPCM;
+        }
+
+        @Override
+        public int maxEncodedLength(int pcmLength) {
+            int samples = pcmLength / 2;
+            return samples == 0 ? 0 : HEADER_SIZE + samples / 2;
+        }
+
+        @Override
+        public int maxDecodedLength(int encodedLength) {
+            return encodedLength < HEADER_SIZE ? 0 : (1 + (encodedLength - HEADER_SIZE) * 2) * 2;
+        }
+
+        @Override
+        public int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+            int samples = length / 2;
+            if (samples == 0) {
+                return 0;
+            }
+            int predictor = (pcm[offset] & 0xFF) | (pcm[offset + 1] << 8);
+            int index = stepIndex;
+            int codes = samples - 1;
+            out[outOffset] = (byte) predictor;
+            out[outOffset + 1] = (byte) (predictor >> 8);
+            out[outOffset + 2] = (byte) index;
+            out[outOffset + 3] = (byte) (codes & 1);
+
+            int position = outOffset + HEADER_SIZE;
+            for (int i = 0; i < codes; i++) {
+                int p = offset + 2 * (i + 1);
+                int sample = (pcm[p] & 0xFF) | (pcm[p + 1] << 8);
+
+                int step = STEP_SIZES[index];
+                int diff = sample - predictor;
+                int code = 0;
+                if (diff < 0) {
+                    code = 8;
+                    diff = -diff;
+                }
+                int delta = step >> 3;
+                if (diff >= step) {
+                    code |= 4;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    code |= 2;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    code |= 1;
+                    delta += step;
+                }
+                predictor = clamp(predictor + ((code & 8) != 0 ? -delta : delta));
+                index = Math.min(88, Math.max(0, index + INDEX_ADJUST[code & 7]));
+
+                if ((i & 1) == 0) {
+                    out[position] = (byte) code;
+                } else {
+                    out[position++] |= (byte) (code << 4);
+                }
+            }
+            stepIndex = index;
+            return HEADER_SIZE + (codes + 1) / 2;
+        }
+
+        @Override
+        public int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset) {
+            if (length < HEADER_SIZE) {
+                return 0;
+            }
+            int predictor = (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+            int index = Math.min(88, data[offset + 2] & 0xFF);
+            int codes = (length - HEADER_SIZE) * 2 - (data[offset + 3] & 1);
+            pcm[pcmOffset] = (byte) predictor;
+            pcm[pcmOffset + 1] = (byte) (predictor >> 8);
+
+            int out = pcmOffset + 2;
+            for (int i = 0; i < codes; i++) {
+                int code = (data[offset + HEADER_SIZE + (i >> 1)] >> ((i & 1) << 2)) & 0x0F;
+                int step = STEP_SIZES[index];
+                int delta = step >> 3;
+                if ((code & 4) != 0) {
+                    delta += step;
+                }
+                if ((code & 2) != 0) {
+                    delta += step >> 1;
+                }
+                if ((code & 1) != 0) {
+                    delta += step >> 2;
+                }
+                predictor = clamp(predictor + ((code & 8) != 0 ? -delta : delta));
+                index = Math.min(88, Math.max(0, index + INDEX_ADJUST[code & 7]));
+                pcm[out++] = (byte) predictor;
+                pcm[out++] = (byte) (predictor >> 8);
+            }
+            return (codes + 1) * 2;
+        }
+
+        private static int clamp(int sample) {
+            return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Streams a call's PCM audio into a WAV file while the call is running, so the heap used per call
+// is one small staging buffer no matter how long the call lasts. The header is written up front
+// with empty sizes and the RIFF/data chunk sizes are patched in when the recorder is closed.
+// Writes and close may come from different threads (voice receiver vs. signaling/charging).
+// Besides PCM, the file can hold G.711 mu-law samples as they arrive from the network.
+public class WavRecorder implements Closeable {
+    public static final int FORMAT_PCM = 1;
+    public static final int FORMAT_MULAW = 7;
+
+    private static final int HEADER_SIZE = 44;
+    private static final int STAGING_SIZE = 8 * 1024;
+    private static final long MAX_DATA_LENGTH = 0xFFFFFFFFL - (HEADER_SIZE - 8); // 32-bit RIFF sizes
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer staging = ByteBuffer.allocate(STAGING_SIZE);
+    private long dataLength = 0;
+    private boolean closed = false;
+
+    public WavRecorder(Path path, int sampleRate, int sampleSizeInBits, int channels) throws IOException {
+        this(path, FORMAT_PCM, sampleRate, sampleSizeInBits, channels);
+    }
+
+    // format is one of the FORMAT_ tags; mu-law recordings have 8 bit samples
+    public WavRecorder(Path path, int format, int sampleRate, int sampleSizeInBits, int channels) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        int blockAlign = channels * (sampleSizeInBits / 8);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] {'R', 'I', 'F', 'F'});
+        header.putInt(0);                          // RIFF chunk size, patched on close
+        header.put(new byte[] {'W', 'A', 'V', 'E'});
+        header.put(new byte[] {'f', 'm', 't', ' '});
+        header.putInt(16);                         // fmt chunk size
+        header.putShort((short) format);           // Format tag
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * blockAlign);    // Byte rate
+        header.putShort((short) blockAlign);
+        header.putShort((short) sampleSizeInBits);
+        header.put(new byte[] {'d', 'a', 't', 'a'});
+        header.putInt(0);                          // data chunk size, patched on close
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Number of audio bytes recorded so far
+    public synchronized long getDataLength() {
+        return dataLength;
+    }
+
+    // Append audio to the recording; silently ignored once the recorder is closed
+    public synchronized void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            return;
+        }
+        length = (int) Math.min(length, MAX_DATA_LENGTH - dataLength);
+
+        dataLength += length;
+        while (length > 0) {
+            int chunk = Math.min(staging.remaining(), length);
+            staging.put(data, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+            if (!staging.hasRemaining()) {
+                flushStaging();
+            }
+        }
+    }
+
+    // Append the buffer's remaining audio, written straight from it (e.g. from an off-heap capture
+    // ring) rather than through the staging buffer; the buffer is consumed either way
+    public synchronized void write(ByteBuffer audio) throws IOException {
+        if (closed) {
+            audio.position(audio.limit());
+            return;
+        }
+        int length = (int) Math.min(audio.remaining(), MAX_DATA_LENGTH - dataLength);
+        int limit = audio.limit();
+
+        flushStaging(); // Keep the bytes in order
+        dataLength += length;
+        audio.limit(audio.position() + length);
+        while (audio.hasRemaining()) {
+            channel.write(audio);
+        }
+        audio.limit(limit).position(limit);
+    }
+
+    // Finish the file: flush buffered audio and fill in the chunk sizes
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flushStaging();
+
+            ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            size.putInt(0, (int) (dataLength + HEADER_SIZE - 8));
+            channel.write(size, 4);
+            size.clear();
+            size.putInt(0, (int) dataLength);
+            channel.write(size, HEADER_SIZE - 4);
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Close and delete the file, e.g. when the call never produced any audio
+    public synchronized void discard() throws IOException {
+        closed = true;
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    private void flushStaging() throws IOException {
+        staging.flip();
+        while (staging.hasRemaining()) {
+            channel.write(staging);
+        }
+        staging.clear();
+    }
+}
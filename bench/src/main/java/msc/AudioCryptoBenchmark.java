@@ -0,0 +1,98 @@
+package msc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Voice packet encryption/decryption: the original per-packet SecurityUtils calls against the cached
+// AudioCryptoContext, with byte[] and ByteBuffer packets, in both voice packet formats
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AudioCryptoBenchmark {
+
+    // Audio bytes per packet (the Mobile sends 1024)
+    @Param({"160", "1024", "4096"})
+    public int packetSize;
+
+    // Voice packet format of the context benchmarks (the per-packet calls are always CBC)
+    @Param({"CBC", "GCM"})
+    public String cipher;
+
+    private SecretKey key;
+    private byte[] iv;
+    private AudioCryptoContext context;
+    private byte[] audio;
+    private byte[] encrypted;
+    private byte[] contextPacket;
+    private ByteBuffer audioBuffer;
+    private ByteBuffer packetBuffer;
+    private ByteBuffer encryptedBuffer;
+    private ByteBuffer decryptedBuffer;
+
+    @Setup
+    public void setup() throws Exception {
+        key = SecurityUtils.generateAESKey();
+        iv = SecurityUtils.generateIV();
+        context = SecurityUtils.createAudioContext(key, iv, AudioCryptoContext.Mode.valueOf(cipher));
+
+        audio = Mobile.generateTestTone(440, 44100, packetSize / 2 / 44100.0);
+        audio = java.util.Arrays.copyOf(audio, packetSize);
+        encrypted = SecurityUtils.encryptAudioAES(audio, key, iv);
+        contextPacket = context.encrypt(audio, 0, audio.length);
+
+        int maxPacket = AudioCryptoContext.maxEncryptedLength(packetSize);
+        audioBuffer = ByteBuffer.wrap(audio);
+        packetBuffer = ByteBuffer.allocate(maxPacket);
+        encryptedBuffer = ByteBuffer.wrap(contextPacket);
+        decryptedBuffer = ByteBuffer.allocate(maxPacket);
+    }
+
+    @Benchmark
+    public byte[] encryptPerPacketCipher() throws Exception {
+        return SecurityUtils.encryptAudioAES(audio, key, iv);
+    }
+
+    @Benchmark
+    public byte[] decryptPerPacketCipher() throws Exception {
+        return SecurityUtils.decryptAudioAES(encrypted, key, iv, encrypted.length);
+    }
+
+    @Benchmark
+    public byte[] encryptContext() throws Exception {
+        return context.encrypt(audio, 0, audio.length);
+    }
+
+    @Benchmark
+    public byte[] decryptContext() throws Exception {
+        return context.decrypt(contextPacket, 0, contextPacket.length);
+    }
+
+    @Benchmark
+    public int encryptContextBuffer() throws Exception {
+        audioBuffer.clear();
+        packetBuffer.clear();
+        return SecurityUtils.encryptAudioAES(audioBuffer, packetBuffer, context);
+    }
+
+    @Benchmark
+    public int decryptContextBuffer() throws Exception {
+        encryptedBuffer.clear();
+        decryptedBuffer.clear();
+        return SecurityUtils.decryptAudioAES(encryptedBuffer, decryptedBuffer, context);
+    }
+}
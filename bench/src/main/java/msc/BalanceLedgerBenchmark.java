@@ -0,0 +1,65 @@
+package msc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Balance debits from several threads at once. With one subscriber every thread hits the same
+// balance slot (worst-case CAS contention); with more, updates spread over stripes and slots.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class BalanceLedgerBenchmark {
+
+    @Param({"1", "1000", "1000000"})
+    public int subscribers;
+
+    private BalanceLedger ledger;
+    private String[] msisdns;
+
+    @Setup
+    public void setup() {
+        ledger = new BalanceLedger(subscribers);
+        msisdns = new String[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            msisdns[i] = String.format("01%09d", i);
+            ledger.put(msisdns[i], Long.MAX_VALUE / 4); // Never runs out during a run
+        }
+    }
+
+    private String pick() {
+        return msisdns[ThreadLocalRandom.current().nextInt(subscribers)];
+    }
+
+    // Charge tick: take a minute, or what is left of it
+    @Benchmark
+    public long debitUpTo() {
+        return ledger.debitUpTo(pick(), 500);
+    }
+
+    // Call start and end: hold the first minute, then charge part of it and give back the rest
+    @Benchmark
+    public boolean reserveAndCommit() {
+        String msisdn = pick();
+        boolean reserved = ledger.reserve(msisdn, 500);
+        if (reserved) {
+            ledger.commit(msisdn, 500, 300);
+        }
+        return reserved;
+    }
+}
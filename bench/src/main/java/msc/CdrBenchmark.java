@@ -0,0 +1,66 @@
+package msc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// CDR generation: formatting the record, and formatting plus handing it to the CdrWriter (throughput
+// is then bounded by the writer keeping up with the file, since append blocks while the queue is full)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CdrBenchmark {
+
+    private final LocalDateTime startTime = LocalDateTime.of(2025, 3, 14, 10, 15, 30, 123456789);
+    private final LocalDateTime endTime = startTime.plusSeconds(185);
+
+    @State(Scope.Benchmark)
+    public static class Writer {
+        @Param({"false", "true"})
+        public boolean fsync;
+
+        CdrWriter cdrWriter;
+        Path file;
+
+        @Setup(Level.Trial)
+        public void open() throws IOException {
+            file = Files.createTempFile("calls", ".cdr");
+            cdrWriter = new CdrWriter(file, 10000, 100, 200, fsync);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            cdrWriter.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Benchmark
+    public String format() {
+        return MSC.formatCDR("01223456789", startTime, endTime, 4, 185, "Normal call Clearing", 20.0, 80.0);
+    }
+
+    @Benchmark
+    public void formatAndAppend(Writer writer) throws IOException {
+        writer.cdrWriter.append(
+                MSC.formatCDR("01223456789", startTime, endTime, 4, 185, "Normal call Clearing", 20.0, 80.0));
+    }
+}
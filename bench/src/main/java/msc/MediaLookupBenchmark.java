@@ -0,0 +1,78 @@
+package msc;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Call lookup done by handleVoiceData for every received packet, with 10/1k/100k active calls.
+// Probes are separate InetSocketAddress instances, as channel.receive() returns a new one per packet.
+// Calls with a media header are found by SSRC instead (at most 65536 hold one).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MediaLookupBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int activeCalls;
+
+    private MediaSessionIndex<Object> index;
+    private InetSocketAddress[] probes;
+    private InetSocketAddress unknownSource;
+    private int next;
+    private int[] ssrcs;
+    private int nextSsrc;
+
+    @Setup
+    public void setup() throws Exception {
+        index = new MediaSessionIndex<>();
+        probes = new InetSocketAddress[activeCalls];
+        ssrcs = new int[Math.min(activeCalls, 1 << 16)];
+        for (int i = 0; i < activeCalls; i++) {
+            InetAddress address = InetAddress.getByAddress(
+                    new byte[] {10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i});
+            int port = 40000 + (i % 20000);
+            int ssrc = index.reserveSsrc();
+            index.register(address, new Object(), ssrc);
+            index.lookup(new InetSocketAddress(address, port)); // First packet binds the endpoint
+            probes[i] = new InetSocketAddress(address, port);
+            if (ssrc != 0) {
+                ssrcs[i] = ssrc;
+            }
+        }
+        unknownSource = new InetSocketAddress(InetAddress.getByAddress(new byte[] {(byte) 192, 0, 2, 1}), 5000);
+    }
+
+    @Benchmark
+    public Object lookupActiveCall() {
+        int i = next;
+        next = i + 1 == activeCalls ? 0 : i + 1;
+        return index.lookup(probes[i]);
+    }
+
+    @Benchmark
+    public Object lookupBySsrc() {
+        int i = nextSsrc;
+        nextSsrc = i + 1 == ssrcs.length ? 0 : i + 1;
+        return index.lookup(ssrcs[i]);
+    }
+
+    // Stray packet from a source with no call, which falls through to the locked slow path
+    @Benchmark
+    public Object lookupUnknownSource() {
+        return index.lookup(unknownSource);
+    }
+}
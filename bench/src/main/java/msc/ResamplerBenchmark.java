@@ -0,0 +1,57 @@
+package msc;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Sample rate conversion of one packet: the Mobile's 44.1 kHz audio down to the call rate, and the
+// MSC's call-rate audio back up to the playback line
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResamplerBenchmark {
+
+    @Param({"16000", "8000"})
+    public int callRate;
+
+    // PCM bytes per packet (the Mobile sends 1024)
+    @Param({"1024"})
+    public int packetSize;
+
+    private Resampler down;
+    private Resampler up;
+    private byte[] audio;
+    private byte[] downsampled;
+    private byte[] upsampled;
+
+    @Setup
+    public void setup() {
+        down = new Resampler(44100, callRate);
+        up = new Resampler(callRate, 44100);
+        audio = java.util.Arrays.copyOf(Mobile.generateTestTone(440, 44100, 0.1), packetSize);
+        downsampled = new byte[down.maxOutputLength(packetSize)];
+        upsampled = new byte[up.maxOutputLength(packetSize)];
+    }
+
+    @Benchmark
+    public int downsample() {
+        return down.process(audio, 0, packetSize, downsampled, 0);
+    }
+
+    @Benchmark
+    public int upsample() {
+        return up.process(audio, 0, packetSize, upsampled, 0);
+    }
+}
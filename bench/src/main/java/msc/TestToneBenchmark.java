@@ -0,0 +1,32 @@
+package msc;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Test tone synthesis used by the Mobile when no microphone is available
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TestToneBenchmark {
+
+    // Tone length in seconds (the Mobile generates 0.1 s tones)
+    @Param({"0.02", "0.1"})
+    public double durationSecs;
+
+    @Benchmark
+    public byte[] generateTestTone() {
+        return Mobile.generateTestTone(440, 44100, durationSecs);
+    }
+}
@@ -0,0 +1,56 @@
+package msc;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Voice codecs: encoding a Mobile packet and decoding it on the MSC
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VoiceCodecBenchmark {
+
+    @Param({"PCM", "PCMU", "IMA-ADPCM"})
+    public String codecName;
+
+    // PCM bytes per packet (the Mobile sends 1024)
+    @Param({"1024"})
+    public int packetSize;
+
+    private VoiceCodec codec;
+    private byte[] audio;
+    private byte[] encoded;
+    private int encodedLength;
+    private byte[] decoded;
+
+    @Setup
+    public void setup() {
+        codec = VoiceCodec.forName(codecName);
+        audio = java.util.Arrays.copyOf(Mobile.generateTestTone(440, 44100, 0.1), packetSize);
+        encoded = new byte[codec.maxEncodedLength(packetSize)];
+        encodedLength = codec.encode(audio, 0, packetSize, encoded, 0);
+        decoded = new byte[codec.maxDecodedLength(encodedLength)];
+    }
+
+    @Benchmark
+    public int encode() {
+        return codec.encode(audio, 0, packetSize, encoded, 0);
+    }
+
+    @Benchmark
+    public int decode() {
+        return codec.decode(encoded, 0, encodedLength, decoded, 0);
+    }
+}